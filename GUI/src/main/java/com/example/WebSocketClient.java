@@ -7,12 +7,23 @@ import org.springframework.web.socket.client.standard.StandardWebSocketClient;
 import org.springframework.web.socket.messaging.WebSocketStompClient;
 
 import java.lang.reflect.Type;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WebSocketClient {
 
+    // The server marks frames holding an array of operations (broadcast batching) with this header
+    private static final String BATCH_HEADER = "editor-batch";
+
     private StompSession session;
 
+    // Highest server sequence among the operations received so far
+    private long applied;
+
+    // Latest cursor index of each user
+    private final Map<String, Integer> cursors = new ConcurrentHashMap<>();
+
     public void connect(String documentId) {
         WebSocketStompClient stompClient = new WebSocketStompClient(new StandardWebSocketClient());
         stompClient.setMessageConverter(new MappingJackson2MessageConverter());
@@ -28,12 +39,45 @@ public class WebSocketClient {
                 session.subscribe("/topic/Document/" + documentId, new StompFrameHandler() {
                     @Override
                     public Type getPayloadType(StompHeaders headers) {
-                        return Map.class;
+                        return isBatch(headers) ? List.class : Map.class;
+                    }
+
+                    @Override
+                    public void handleFrame(StompHeaders headers, Object payload) {
+                        long before = applied;
+                        if (payload instanceof List) {
+                            for (Object operation : (List<?>) payload) {
+                                System.out.println("Received: " + operation);
+                                applied = Math.max(applied, sequenceOf(operation));
+                            }
+                        } else {
+                            System.out.println("Received: " + payload);
+                            applied = Math.max(applied, sequenceOf(payload));
+                        }
+                        // Tells the server what this client holds, so it can collect tombstones
+                        if (applied > before) {
+                            session.send("/app/ack/" + documentId, Map.of("sequence", applied));
+                        }
+                    }
+                });
+
+                // Every cursor that moved during one server tick arrives as one array
+                session.subscribe("/topic/Document/" + documentId + "/cursors", new StompFrameHandler() {
+                    @Override
+                    public Type getPayloadType(StompHeaders headers) {
+                        return List.class;
                     }
 
                     @Override
                     public void handleFrame(StompHeaders headers, Object payload) {
-                        System.out.println("Received: " + payload);
+                        for (Object cursor : (List<?>) payload) {
+                            if (!(cursor instanceof Map)) continue;
+                            Object userId = ((Map<?, ?>) cursor).get("userId");
+                            Object index = ((Map<?, ?>) cursor).get("visualIndex");
+                            if (userId == null || !(index instanceof Number)) continue;
+                            cursors.put(userId.toString(), ((Number) index).intValue());
+                            System.out.println("Cursor: " + userId + " at " + index);
+                        }
                     }
                 });
 
@@ -42,4 +86,18 @@ public class WebSocketClient {
             }
         });
     }
+
+    public Map<String, Integer> getCursors() {
+        return cursors;
+    }
+
+    private static long sequenceOf(Object operation) {
+        if (!(operation instanceof Map)) return 0;
+        Object sequence = ((Map<?, ?>) operation).get("sequence");
+        return sequence instanceof Number ? ((Number) sequence).longValue() : 0;
+    }
+
+    private static boolean isBatch(StompHeaders headers) {
+        return "true".equals(headers.getFirst(BATCH_HEADER));
+    }
 }
@@ -0,0 +1,64 @@
+package com.editor.backend.cluster;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Carries document broadcasts between backend nodes, so that each node can deliver
+ * them to the clients subscribed on it. Every document has a channel of its own,
+ * and a node only hears the documents it listens to; every node also has a
+ * channel of its own, for operations passed on to it as a document's owner.
+ * Messages from one node arrive at the others in the order it published them.
+ */
+public interface BroadcastRelay {
+
+    /** One broadcast, or one forwarded operation, as it travels between nodes. */
+    final class Message {
+        public String origin;             // node that applied the change, or received the operation
+        public String id;                 // unique per message
+        public String documentId;         // channel the message travels on
+        public String destination;        // STOMP destination, e.g. /topic/Document/{id}
+        public Object payload;
+        public byte[] encoded;            // binary form of an operations payload, else null
+        public List<String> operationIds; // ids of the operations in payload, in order, for dropping repeats
+        public int hops;                  // times a forwarded operation has been passed on
+
+        public Message() {
+        }
+
+        public Message(String origin, String id, String documentId, String destination, Object payload) {
+            this.origin = origin;
+            this.id = id;
+            this.documentId = documentId;
+            this.destination = destination;
+            this.payload = payload;
+        }
+    }
+
+    /** A node's hold on the relay: what is sent to it, and the documents it listens to. */
+    interface Subscription {
+        void listen(String documentId);
+
+        void unlisten(String documentId);
+    }
+
+    /** Sends the message to every node listening to its document. */
+    void publish(Message message);
+
+    /**
+     * Whether a node other than nodeId may be listening to the document. A relay
+     * that cannot tell cheaply answers true.
+     */
+    default boolean reachesOthers(String nodeId, String documentId) {
+        return true;
+    }
+
+    /** Sends the message to one node, whatever it listens to. */
+    void send(String nodeId, Message message);
+
+    /**
+     * Handler for the messages sent to nodeId and those published on the documents
+     * it listens to, this node's own included.
+     */
+    Subscription subscribe(String nodeId, Consumer<Message> handler);
+}
@@ -0,0 +1,292 @@
+package com.editor.backend.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+import org.springframework.web.socket.messaging.SessionUnsubscribeEvent;
+
+import com.editor.backend.model.Operation;
+import com.editor.backend.service.DocumentActor;
+import com.editor.backend.wire.OperationCodec;
+import com.editor.backend.wire.WireFormat;
+
+/**
+ * Outbox of every document actor. A broadcast goes to the clients subscribed on
+ * this node right away and through the relay, on the document's channel, to the
+ * other nodes, which deliver it to theirs. A node listens to a document's channel
+ * while any of its clients is subscribed to the document's topics.
+ *
+ * Each operation reaches a node's clients at most once, however many messages
+ * carry it: operations are known by their id, other broadcasts by their message
+ * id, and a node ignores its own messages coming back. So a relay that repeats
+ * itself after a reconnect does not show clients an operation twice.
+ *
+ * An operation a client sends to a node that does not serve the document is
+ * passed on to the owner over the relay, to be applied there like its own.
+ */
+@Component
+public class ClusterBroadcaster implements DocumentActor.Outbox {
+
+    /** Applies an operation a client sent to another node, for a document served here. */
+    @FunctionalInterface
+    public interface ForwardedOperations {
+        void apply(String documentId, Operation operation);
+    }
+
+    // Ids remembered for spotting duplicates; repeats arrive close together
+    private static final int REMEMBERED_IDS = 10_000;
+
+    private static final String DOCUMENT_TOPIC = "/topic/Document/";
+    private static final String FORWARD_DESTINATION = "/app/updateDocument/";
+
+    // An operation whose document keeps changing hands, as during a takeover, is dropped after this
+    private static final int MAX_HOPS = 3;
+
+    private final SimpMessageSendingOperations messaging;
+    private final BroadcastRelay relay;
+    private final ClusterService cluster;
+    private final WireFormat wireFormat; // null when every broadcast is encoded
+    private final String nodeId;
+    private final BroadcastRelay.Subscription subscription;
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile ForwardedOperations forwarded = (documentId, operation) -> {
+        throw new IllegalStateException("Forwarded operations are not applied on this node");
+    };
+
+    private final Map<String, Boolean> delivered = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > REMEMBERED_IDS;
+        }
+    };
+
+    // Document of each client subscription to a document topic, by session; guarded by itself
+    private final Map<String, Map<String, String>> localSubscriptions = new HashMap<>();
+    // Client subscriptions per document whose channel this node listens to
+    private final Map<String, Integer> listening = new HashMap<>();
+
+    @Autowired
+    public ClusterBroadcaster(SimpMessageSendingOperations messaging, BroadcastRelay relay, ClusterService cluster,
+                              WireFormat wireFormat) {
+        this.messaging = messaging;
+        this.relay = relay;
+        this.cluster = cluster;
+        this.wireFormat = wireFormat;
+        this.nodeId = cluster.getNodeId();
+        this.subscription = relay.subscribe(nodeId, this::receive);
+    }
+
+    // Encodes every broadcast, as if a binary client were always connected
+    public ClusterBroadcaster(SimpMessageSendingOperations messaging, BroadcastRelay relay, ClusterService cluster) {
+        this(messaging, relay, cluster, null);
+    }
+
+    public void onForwardedOperation(ForwardedOperations handler) {
+        this.forwarded = handler;
+    }
+
+    // Operations are also encoded once in binary, for the subscribers that negotiated it and
+    // the other nodes. A single node whose clients all speak JSON skips both the encoding and
+    // the relay
+    @Override
+    public void send(String destination, Object payload) {
+        String documentId = documentId(destination);
+        boolean relayed = documentId != null && relay.reachesOthers(nodeId, documentId);
+        byte[] encoded = relayed || wireFormat == null || wireFormat.hasBinarySessions()
+                ? OperationCodec.encodePayload(payload) : null;
+        List<String> operationIds = operationIds(payload);
+        messaging.convertAndSend(destination, payload,
+                headers(encoded, operationIds != null && payload instanceof List));
+        if (!relayed) return;
+        BroadcastRelay.Message message = new BroadcastRelay.Message(nodeId, nextMessageId(), documentId,
+                destination, payload);
+        message.encoded = encoded;
+        message.operationIds = operationIds;
+        relay.publish(message);
+    }
+
+    /** Passes an operation a client sent here on to the node that serves its document. */
+    public void forward(String documentId, Operation operation) {
+        forward(documentId, operation, 0);
+    }
+
+    private void forward(String documentId, Operation operation, int hops) {
+        String owner = cluster.ownerOf(documentId);
+        if (nodeId.equals(owner)) { // it came here in the meantime
+            forwarded.apply(documentId, operation);
+            return;
+        }
+        BroadcastRelay.Message message = new BroadcastRelay.Message(nodeId, nextMessageId(), documentId,
+                FORWARD_DESTINATION + documentId, null);
+        message.encoded = OperationCodec.encodePayload(operation);
+        message.hops = hops;
+        relay.send(owner, message);
+    }
+
+    private void receive(BroadcastRelay.Message message) {
+        if (nodeId.equals(message.origin)) return;
+        if (message.destination.startsWith(FORWARD_DESTINATION)) {
+            receiveForwarded(message);
+        } else if (message.operationIds == null) {
+            if (firstDelivery(message.id)) {
+                messaging.convertAndSend(message.destination, message.payload, headers(message.encoded, false));
+            }
+        } else {
+            deliverOperations(message);
+        }
+    }
+
+    // Only the operations not delivered here before go out, in a frame of their own when some were
+    private void deliverOperations(BroadcastRelay.Message message) {
+        List<?> ops = message.payload instanceof List<?> list ? list : List.of(message.payload);
+        List<Integer> fresh = new ArrayList<>();
+        for (int i = 0; i < message.operationIds.size(); i++) {
+            if (firstDelivery(message.documentId + " " + message.operationIds.get(i))) fresh.add(i);
+        }
+        if (fresh.isEmpty()) return;
+        Object payload = message.payload;
+        byte[] encoded = message.encoded;
+        if (fresh.size() < ops.size()) {
+            List<Object> kept = new ArrayList<>();
+            for (int i : fresh) kept.add(ops.get(i));
+            payload = kept;
+            if (encoded != null) {
+                List<Operation> decoded = OperationCodec.decode(encoded);
+                List<Operation> keptDecoded = new ArrayList<>();
+                for (int i : fresh) keptDecoded.add(decoded.get(i));
+                encoded = OperationCodec.encode(keptDecoded);
+            }
+        }
+        messaging.convertAndSend(message.destination, payload, headers(encoded, payload instanceof List));
+    }
+
+    private void receiveForwarded(BroadcastRelay.Message message) {
+        if (!firstDelivery(message.id)) return;
+        Operation operation = OperationCodec.decode(message.encoded).get(0);
+        try {
+            if (cluster.isLocal(message.documentId)) {
+                forwarded.apply(message.documentId, operation);
+            } else if (message.hops < MAX_HOPS) {
+                forward(message.documentId, operation, message.hops + 1);
+            } else {
+                System.out.println("[Server] : Dropped an operation for document " + message.documentId
+                        + " after " + message.hops + " hops");
+            }
+        } catch (RuntimeException e) {
+            System.out.println("[Server] : Forwarded operation failed on document " + message.documentId + " - " + e);
+        }
+    }
+
+    @EventListener
+    public void handleSubscribe(SessionSubscribeEvent event) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        subscribed(headers.getSessionId(), headers.getSubscriptionId(), headers.getDestination());
+    }
+
+    @EventListener
+    public void handleUnsubscribe(SessionUnsubscribeEvent event) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(event.getMessage());
+        unsubscribed(headers.getSessionId(), headers.getSubscriptionId());
+    }
+
+    @EventListener
+    public void handleDisconnect(SessionDisconnectEvent event) {
+        disconnected(event.getSessionId());
+    }
+
+    void subscribed(String sessionId, String subscriptionId, String destination) {
+        String documentId = documentId(destination);
+        if (documentId == null || sessionId == null || subscriptionId == null) return;
+        synchronized (localSubscriptions) {
+            String replaced = localSubscriptions.computeIfAbsent(sessionId, id -> new HashMap<>())
+                    .put(subscriptionId, documentId);
+            if (replaced != null) release(replaced);
+            if (listening.merge(documentId, 1, Integer::sum) == 1) subscription.listen(documentId);
+        }
+    }
+
+    void unsubscribed(String sessionId, String subscriptionId) {
+        synchronized (localSubscriptions) {
+            Map<String, String> subscriptions = localSubscriptions.get(sessionId);
+            if (subscriptions == null) return;
+            String documentId = subscriptions.remove(subscriptionId);
+            if (subscriptions.isEmpty()) localSubscriptions.remove(sessionId);
+            if (documentId != null) release(documentId);
+        }
+    }
+
+    void disconnected(String sessionId) {
+        synchronized (localSubscriptions) {
+            Map<String, String> subscriptions = localSubscriptions.remove(sessionId);
+            if (subscriptions == null) return;
+            for (String documentId : subscriptions.values()) {
+                release(documentId);
+            }
+        }
+    }
+
+    // Called holding localSubscriptions; the last client gone, the channel is left
+    private void release(String documentId) {
+        if (listening.merge(documentId, -1, Integer::sum) > 0) return;
+        listening.remove(documentId);
+        subscription.unlisten(documentId);
+    }
+
+    // Document of /topic/Document/{id} and the topics beneath it, else null
+    static String documentId(String destination) {
+        if (destination == null || !destination.startsWith(DOCUMENT_TOPIC)) return null;
+        int end = destination.indexOf('/', DOCUMENT_TOPIC.length());
+        String documentId = destination.substring(DOCUMENT_TOPIC.length(), end < 0 ? destination.length() : end);
+        return documentId.isEmpty() ? null : documentId;
+    }
+
+    // Ids of a payload made of operations, in order, or null for any other payload
+    private static List<String> operationIds(Object payload) {
+        if (payload instanceof Operation op) return List.of(operationId(op));
+        if (!(payload instanceof List<?> list) || list.isEmpty()
+                || !list.stream().allMatch(Operation.class::isInstance)) {
+            return null;
+        }
+        List<String> ids = new ArrayList<>(list.size());
+        for (Object op : list) {
+            ids.add(operationId((Operation) op));
+        }
+        return ids;
+    }
+
+    // A client gives each of its operations a clock of its own
+    static String operationId(Operation op) {
+        return op.getUserId() + ":" + op.getClock() + ":" + op.getType();
+    }
+
+    private String nextMessageId() {
+        return nodeId + ":" + nextId.incrementAndGet();
+    }
+
+    // A frame holding an array of operations is marked as a batch for the clients
+    private static Map<String, Object> headers(byte[] encoded, boolean batch) {
+        if (encoded == null && !batch) return null;
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create();
+        if (encoded != null) headers.setHeader(WireFormat.ENCODED_HEADER, encoded);
+        if (batch) headers.setNativeHeader(WireFormat.BATCH_HEADER, "true");
+        headers.setLeaveMutable(true);
+        return headers.getMessageHeaders();
+    }
+
+    private boolean firstDelivery(String id) {
+        synchronized (delivered) {
+            return delivered.put(id, Boolean.TRUE) == null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.editor.backend.cluster;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+
+/**
+ * This node's view of the cluster. Every document has one owner: the node holding
+ * its lease, or, while nobody does, the node consistent hashing assigns it to
+ * among the live ones. Only the owner loads a document; other nodes send callers
+ * to the owner's address.
+ *
+ * With the local registry there is a single node, which owns everything.
+ */
+@Service
+public class ClusterService {
+
+    private final DocumentRegistry registry;
+    private final String nodeId;
+    private final String address;
+    private final long leaseTtlMs;
+
+    // Refreshed on every heartbeat; the ring is rebuilt only when membership changes
+    private volatile Map<String, String> nodes = Map.of();
+    private volatile HashRing ring = new HashRing(List.of());
+
+    public ClusterService(DocumentRegistry registry,
+                          @Value("${editor.cluster.node-id:}") String nodeId,
+                          @Value("${editor.cluster.address:http://localhost:${server.port:8081}}") String address,
+                          @Value("${editor.cluster.lease-ttl-ms:15000}") long leaseTtlMs) {
+        this.registry = registry;
+        this.nodeId = nodeId == null || nodeId.isEmpty() ? UUID.randomUUID().toString() : nodeId;
+        this.address = address;
+        this.leaseTtlMs = leaseTtlMs;
+    }
+
+    @PostConstruct
+    public void join() {
+        heartbeat(List.of());
+        System.out.println("[Server] : Node " + nodeId + " at " + address + " joined " + nodes.size() + " live nodes");
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Announces this node, refreshes the membership and renews the leases of the
+     * documents loaded here. Returns the documents whose lease could not be renewed
+     * because another node has taken it over; they must be dropped here.
+     */
+    public List<String> heartbeat(Collection<String> ownedDocuments) {
+        registry.announce(nodeId, address, leaseTtlMs);
+        Map<String, String> live = registry.liveNodes();
+        if (!live.keySet().equals(nodes.keySet())) {
+            ring = new HashRing(live.keySet());
+        }
+        nodes = live;
+
+        return ownedDocuments.isEmpty() ? List.of() : registry.renew(ownedDocuments, nodeId, leaseTtlMs);
+    }
+
+    /** Node that serves the document: its lease holder, else its place on the ring. */
+    public String ownerOf(String documentId) {
+        String holder = registry.owner(documentId);
+        if (holder != null) return holder;
+        String assigned = ring.nodeFor(documentId);
+        return assigned != null ? assigned : nodeId;
+    }
+
+    public boolean isLocal(String documentId) {
+        return nodeId.equals(ownerOf(documentId));
+    }
+
+    /**
+     * Throws DocumentMovedException when another live node serves the document.
+     * A lease still held by a node that stopped announcing itself is left to run
+     * out; until then the document is unavailable.
+     */
+    public void checkLocal(String documentId) {
+        String owner = ownerOf(documentId);
+        if (nodeId.equals(owner)) return;
+        String ownerAddress = nodes.get(owner);
+        if (ownerAddress == null) {
+            throw new IllegalStateException("Document " + documentId + " is held by node " + owner
+                    + ", which is not responding; try again shortly");
+        }
+        throw new DocumentMovedException(documentId, ownerAddress);
+    }
+
+    public boolean acquire(String documentId) {
+        return registry.acquire(documentId, nodeId, leaseTtlMs);
+    }
+
+    public void release(String documentId) {
+        registry.release(documentId, nodeId);
+    }
+
+    public void register(String documentId, String editorCode, String viewerCode) {
+        registry.register(new DocumentRegistry.Entry(documentId, editorCode, viewerCode));
+    }
+
+    public DocumentRegistry.Entry find(String documentId) {
+        return registry.find(documentId);
+    }
+
+    public DocumentRegistry.Entry findByCode(String code) {
+        return registry.findByCode(code);
+    }
+
+    public void remove(String documentId) {
+        registry.remove(documentId);
+    }
+}
@@ -0,0 +1,24 @@
+package com.editor.backend.cluster;
+
+/** Thrown when a document is owned by another node; callers are sent there instead. */
+public class DocumentMovedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String documentId;
+    private final String ownerAddress;
+
+    public DocumentMovedException(String documentId, String ownerAddress) {
+        super("Document " + documentId + " is served by " + ownerAddress);
+        this.documentId = documentId;
+        this.ownerAddress = ownerAddress;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public String getOwnerAddress() {
+        return ownerAddress;
+    }
+}
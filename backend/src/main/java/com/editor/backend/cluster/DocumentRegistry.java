@@ -0,0 +1,68 @@
+package com.editor.backend.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State the backend nodes share: which nodes are alive, the documents that exist
+ * with their join codes, and which node currently owns each document.
+ *
+ * Ownership is a lease: a node holds a document for ttl milliseconds at a time
+ * and renews it while the document stays loaded there. A lease that is not
+ * renewed runs out, and the document can then be taken by another node.
+ */
+public interface DocumentRegistry {
+
+    /** Metadata of one document, as any node may look it up. */
+    final class Entry {
+        public final String documentId;
+        public final String editorCode;
+        public final String viewerCode;
+
+        public Entry(String documentId, String editorCode, String viewerCode) {
+            this.documentId = documentId;
+            this.editorCode = editorCode;
+            this.viewerCode = viewerCode;
+        }
+    }
+
+    /** Marks the node alive for ttl milliseconds, reachable at address. */
+    void announce(String nodeId, String address, long ttlMs);
+
+    /** Live nodes and their addresses. */
+    Map<String, String> liveNodes();
+
+    void register(Entry entry);
+
+    Entry find(String documentId);
+
+    Entry findByCode(String code);
+
+    void remove(String documentId);
+
+    /** Node holding the document's lease, or null when nobody does. */
+    String owner(String documentId);
+
+    /**
+     * Takes the lease, or extends it when the node already holds it. Returns false
+     * when another node holds it.
+     */
+    boolean acquire(String documentId, String nodeId, long ttlMs);
+
+    /**
+     * Acquires every lease in documentIds for the node, as a heartbeat does.
+     * Returns the documents another node holds, which were not renewed.
+     */
+    default List<String> renew(Collection<String> documentIds, String nodeId, long ttlMs) {
+        List<String> lost = new ArrayList<>();
+        for (String documentId : documentIds) {
+            if (!acquire(documentId, nodeId, ttlMs)) lost.add(documentId);
+        }
+        return lost;
+    }
+
+    /** Gives the lease up, if the node holds it. */
+    void release(String documentId, String nodeId);
+}
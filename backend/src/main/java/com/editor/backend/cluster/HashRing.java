@@ -0,0 +1,57 @@
+package com.editor.backend.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of document ids onto nodes. Each node is placed at many
+ * points on a ring of 64-bit hashes and a document goes to the first node point
+ * at or after its own hash, so when a node joins or leaves only the documents
+ * next to its points move, about 1/n of them, and the rest keep their node.
+ */
+public class HashRing {
+
+    public static final int DEFAULT_POINTS_PER_NODE = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public HashRing(Collection<String> nodeIds) {
+        this(nodeIds, DEFAULT_POINTS_PER_NODE);
+    }
+
+    public HashRing(Collection<String> nodeIds, int pointsPerNode) {
+        for (String nodeId : nodeIds) {
+            for (int p = 0; p < pointsPerNode; p++) {
+                ring.put(hash(nodeId + "#" + p), nodeId);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return ring.isEmpty();
+    }
+
+    /** Node the key belongs to, or null on an empty ring. */
+    public String nodeFor(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a finalizer so nearby strings land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
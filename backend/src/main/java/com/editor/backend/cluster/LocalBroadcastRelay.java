@@ -0,0 +1,71 @@
+package com.editor.backend.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Relay inside this process, for a single node. Broadcasters subscribed to the
+ * same instance see each other's messages, like nodes on one Redis.
+ */
+@Component
+@ConditionalOnProperty(name = "editor.cluster.relay", havingValue = "local", matchIfMissing = true)
+public class LocalBroadcastRelay implements BroadcastRelay {
+
+    private final List<LocalSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Map<String, LocalSubscription> nodes = new ConcurrentHashMap<>();
+
+    @Override
+    public void publish(Message message) {
+        for (LocalSubscription subscription : subscriptions) {
+            if (subscription.documents.contains(message.documentId)) subscription.handler.accept(message);
+        }
+    }
+
+    @Override
+    public void send(String nodeId, Message message) {
+        LocalSubscription subscription = nodes.get(nodeId);
+        if (subscription != null) subscription.handler.accept(message);
+    }
+
+    @Override
+    public boolean reachesOthers(String nodeId, String documentId) {
+        for (Map.Entry<String, LocalSubscription> node : nodes.entrySet()) {
+            if (!node.getKey().equals(nodeId) && node.getValue().documents.contains(documentId)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Subscription subscribe(String nodeId, Consumer<Message> handler) {
+        LocalSubscription subscription = new LocalSubscription(handler);
+        subscriptions.add(subscription);
+        nodes.put(nodeId, subscription);
+        return subscription;
+    }
+
+    private static final class LocalSubscription implements Subscription {
+        private final Consumer<Message> handler;
+        private final Set<String> documents = ConcurrentHashMap.newKeySet();
+
+        LocalSubscription(Consumer<Message> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void listen(String documentId) {
+            documents.add(documentId);
+        }
+
+        @Override
+        public void unlisten(String documentId) {
+            documents.remove(documentId);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.editor.backend.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry held in this process, for a single node. Several services handed the
+ * same instance behave like nodes sharing one Redis, which is how the cluster
+ * logic is tested.
+ */
+@Component
+@ConditionalOnProperty(name = "editor.cluster.registry", havingValue = "local", matchIfMissing = true)
+public class LocalDocumentRegistry implements DocumentRegistry {
+
+    private static final class Lease {
+        final String holder;
+        final long expiresAt;
+
+        Lease(String holder, long expiresAt) {
+            this.holder = holder;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LongSupplier clock;
+    private final Map<String, Entry> documents = new ConcurrentHashMap<>();
+    private final Map<String, Entry> codes = new ConcurrentHashMap<>();
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final Map<String, Lease> nodes = new ConcurrentHashMap<>(); // holder is the address here
+
+    public LocalDocumentRegistry() {
+        this(System::currentTimeMillis);
+    }
+
+    public LocalDocumentRegistry(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void announce(String nodeId, String address, long ttlMs) {
+        nodes.put(nodeId, new Lease(address, clock.getAsLong() + ttlMs));
+    }
+
+    @Override
+    public Map<String, String> liveNodes() {
+        long now = clock.getAsLong();
+        Map<String, String> live = new HashMap<>();
+        nodes.forEach((nodeId, node) -> {
+            if (node.expiresAt > now) live.put(nodeId, node.holder);
+        });
+        return live;
+    }
+
+    @Override
+    public void register(Entry entry) {
+        documents.put(entry.documentId, entry);
+        codes.put(entry.editorCode, entry);
+        codes.put(entry.viewerCode, entry);
+    }
+
+    @Override
+    public Entry find(String documentId) {
+        return documents.get(documentId);
+    }
+
+    @Override
+    public Entry findByCode(String code) {
+        return codes.get(code);
+    }
+
+    @Override
+    public void remove(String documentId) {
+        Entry entry = documents.remove(documentId);
+        if (entry != null) {
+            codes.remove(entry.editorCode);
+            codes.remove(entry.viewerCode);
+        }
+        leases.remove(documentId);
+    }
+
+    @Override
+    public String owner(String documentId) {
+        Lease lease = leases.get(documentId);
+        return lease == null || lease.expiresAt <= clock.getAsLong() ? null : lease.holder;
+    }
+
+    @Override
+    public boolean acquire(String documentId, String nodeId, long ttlMs) {
+        long now = clock.getAsLong();
+        Lease lease = leases.compute(documentId, (id, current) ->
+                current == null || current.expiresAt <= now || current.holder.equals(nodeId)
+                        ? new Lease(nodeId, now + ttlMs) : current);
+        return lease.holder.equals(nodeId);
+    }
+
+    @Override
+    public void release(String documentId, String nodeId) {
+        leases.computeIfPresent(documentId, (id, current) -> current.holder.equals(nodeId) ? null : current);
+    }
+}
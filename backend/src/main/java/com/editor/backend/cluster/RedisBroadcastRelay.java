@@ -0,0 +1,106 @@
+package com.editor.backend.cluster;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Relay over Redis pub/sub, as JSON: a document's messages go to the channel
+ * editor:document:{id}, which a node subscribes to while it has clients on the
+ * document, and messages for one node go to editor:node:{id}. So a node only
+ * carries the traffic of the documents it serves or has clients on. Publishing
+ * happens on a single thread of its own, so the document actors never wait on
+ * Redis and one node's messages keep their order. Pub/sub does not store
+ * anything: a node that is disconnected misses what is published meanwhile, and
+ * its clients catch up through the sync handshake.
+ */
+@Component
+@ConditionalOnProperty(name = "editor.cluster.relay", havingValue = "redis")
+public class RedisBroadcastRelay implements BroadcastRelay {
+
+    static final String DOCUMENT_CHANNEL = "editor:document:";
+    static final String NODE_CHANNEL = "editor:node:";
+
+    private final StringRedisTemplate redis;
+    private final ObjectMapper json;
+    private final RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor();
+
+    public RedisBroadcastRelay(StringRedisTemplate redis, RedisConnectionFactory connections, ObjectMapper json) {
+        this.redis = redis;
+        this.json = json;
+        container.setConnectionFactory(connections);
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @Override
+    public void publish(Message message) {
+        convertAndSend(DOCUMENT_CHANNEL + message.documentId, message);
+    }
+
+    @Override
+    public void send(String nodeId, Message message) {
+        convertAndSend(NODE_CHANNEL + nodeId, message);
+    }
+
+    private void convertAndSend(String channel, Message message) {
+        String encoded;
+        try {
+            encoded = json.writeValueAsString(message);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Broadcast cannot be relayed: " + e.getMessage(), e);
+        }
+        publisher.execute(() -> {
+            try {
+                redis.convertAndSend(channel, encoded);
+            } catch (RuntimeException e) {
+                System.out.println("[Server] : Relay publish failed - " + e);
+            }
+        });
+    }
+
+    // The container subscribes and unsubscribes on its own connection as channels are added and removed
+    @Override
+    public Subscription subscribe(String nodeId, Consumer<Message> handler) {
+        MessageListener listener = (message, pattern) -> {
+            try {
+                handler.accept(json.readValue(message.getBody(), Message.class));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("[Server] : Dropped a relayed broadcast - " + e);
+            }
+        };
+        container.addMessageListener(listener, new ChannelTopic(NODE_CHANNEL + nodeId));
+        return new Subscription() {
+            @Override
+            public void listen(String documentId) {
+                container.addMessageListener(listener, new ChannelTopic(DOCUMENT_CHANNEL + documentId));
+            }
+
+            @Override
+            public void unlisten(String documentId) {
+                container.removeMessageListener(listener, new ChannelTopic(DOCUMENT_CHANNEL + documentId));
+            }
+        };
+    }
+
+    @PreDestroy
+    public void close() throws Exception {
+        publisher.shutdown();
+        container.destroy();
+    }
+}
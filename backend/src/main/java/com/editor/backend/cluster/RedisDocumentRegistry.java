@@ -0,0 +1,157 @@
+package com.editor.backend.cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry shared by every node through Redis.
+ *
+ *   editor:nodes               set of node ids that have announced themselves
+ *   editor:node:{nodeId}       address, expires with the node's heartbeat
+ *   editor:document:{id}       hash of editorCode and viewerCode
+ *   editor:code:{code}         document id the join code belongs to
+ *   editor:lease:{id}          id of the owning node, expires with the lease
+ *
+ * Taking and giving up a lease compare the holder and write in one script, so two
+ * nodes can never both believe they own a document. A heartbeat renews a node's
+ * leases RENEW_BATCH at a time, one script call each.
+ */
+@Component
+@ConditionalOnProperty(name = "editor.cluster.registry", havingValue = "redis")
+public class RedisDocumentRegistry implements DocumentRegistry {
+
+    private static final String NODES = "editor:nodes";
+    private static final String NODE = "editor:node:";
+    private static final String DOCUMENT = "editor:document:";
+    private static final String CODE = "editor:code:";
+    private static final String LEASE = "editor:lease:";
+
+    private static final DefaultRedisScript<Long> ACQUIRE = new DefaultRedisScript<>(
+            "local holder = redis.call('GET', KEYS[1]) "
+                    + "if holder == false or holder == ARGV[1] then "
+                    + "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) return 1 end "
+                    + "return 0", Long.class);
+
+    // Same as ACQUIRE over every key; returns the 1-based positions of the keys another node holds
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static final DefaultRedisScript<List<Long>> RENEW = new DefaultRedisScript<>(
+            "local lost = {} "
+                    + "for i, key in ipairs(KEYS) do "
+                    + "local holder = redis.call('GET', key) "
+                    + "if holder == false or holder == ARGV[1] then "
+                    + "redis.call('SET', key, ARGV[1], 'PX', ARGV[2]) else lost[#lost + 1] = i end end "
+                    + "return lost", (Class) List.class);
+
+    // Leases per script call, so one heartbeat of a busy node does not hold Redis up for long
+    static final int RENEW_BATCH = 500;
+
+    private static final DefaultRedisScript<Long> RELEASE = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end "
+                    + "return 0", Long.class);
+
+    private final StringRedisTemplate redis;
+
+    public RedisDocumentRegistry(StringRedisTemplate redis) {
+        this.redis = redis;
+    }
+
+    @Override
+    public void announce(String nodeId, String address, long ttlMs) {
+        redis.opsForValue().set(NODE + nodeId, address, Duration.ofMillis(ttlMs));
+        redis.opsForSet().add(NODES, nodeId);
+    }
+
+    @Override
+    public Map<String, String> liveNodes() {
+        List<String> ids = new ArrayList<>(redis.opsForSet().members(NODES));
+        List<String> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(NODE + id);
+        }
+        List<String> addresses = ids.isEmpty() ? List.of() : redis.opsForValue().multiGet(keys);
+        Map<String, String> live = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (addresses.get(i) != null) {
+                live.put(ids.get(i), addresses.get(i));
+            } else {
+                // Its heartbeat ran out; tidy the set so it does not grow forever
+                redis.opsForSet().remove(NODES, ids.get(i));
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public void register(Entry entry) {
+        redis.opsForHash().putAll(DOCUMENT + entry.documentId,
+                Map.of("editorCode", entry.editorCode, "viewerCode", entry.viewerCode));
+        redis.opsForValue().set(CODE + entry.editorCode, entry.documentId);
+        redis.opsForValue().set(CODE + entry.viewerCode, entry.documentId);
+    }
+
+    @Override
+    public Entry find(String documentId) {
+        Map<Object, Object> fields = redis.opsForHash().entries(DOCUMENT + documentId);
+        if (fields.isEmpty()) return null;
+        return new Entry(documentId, (String) fields.get("editorCode"), (String) fields.get("viewerCode"));
+    }
+
+    @Override
+    public Entry findByCode(String code) {
+        String documentId = redis.opsForValue().get(CODE + code);
+        return documentId == null ? null : find(documentId);
+    }
+
+    @Override
+    public void remove(String documentId) {
+        Entry entry = find(documentId);
+        if (entry != null) {
+            redis.delete(List.of(CODE + entry.editorCode, CODE + entry.viewerCode));
+        }
+        redis.delete(List.of(DOCUMENT + documentId, LEASE + documentId));
+    }
+
+    @Override
+    public String owner(String documentId) {
+        return redis.opsForValue().get(LEASE + documentId);
+    }
+
+    @Override
+    public boolean acquire(String documentId, String nodeId, long ttlMs) {
+        Long taken = redis.execute(ACQUIRE, List.of(LEASE + documentId), nodeId, Long.toString(ttlMs));
+        return taken != null && taken == 1;
+    }
+
+    @Override
+    public List<String> renew(Collection<String> documentIds, String nodeId, long ttlMs) {
+        List<String> ids = new ArrayList<>(documentIds);
+        List<String> lost = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += RENEW_BATCH) {
+            List<String> batch = ids.subList(start, Math.min(ids.size(), start + RENEW_BATCH));
+            List<String> keys = new ArrayList<>(batch.size());
+            for (String documentId : batch) {
+                keys.add(LEASE + documentId);
+            }
+            List<Long> positions = redis.execute(RENEW, keys, nodeId, Long.toString(ttlMs));
+            if (positions == null) continue;
+            for (Long position : positions) {
+                lost.add(batch.get(position.intValue() - 1));
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public void release(String documentId, String nodeId) {
+        redis.execute(RELEASE, List.of(LEASE + documentId), nodeId);
+    }
+}
@@ -0,0 +1,34 @@
+package com.editor.backend.config;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+/**
+ * Threads a kind of work runs on. The build targets Java 17; virtual threads are
+ * used when the JVM running it is Java 21 or later, and VIRTUAL falls back to the
+ * caller's platform pool otherwise.
+ */
+public enum Threads {
+    PLATFORM, VIRTUAL;
+
+    public static boolean virtualThreadsAvailable() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    /**
+     * An executor starting a virtual thread per task, with at most concurrencyLimit
+     * running at once (SimpleAsyncTaskExecutor.UNBOUNDED_CONCURRENCY for no limit);
+     * null when this mode is PLATFORM or the JVM has no virtual threads. Submitting
+     * past the limit waits for a running task to finish.
+     */
+    public SimpleAsyncTaskExecutor executor(String threadNamePrefix, int concurrencyLimit, String usedFor) {
+        if (this != VIRTUAL) return null;
+        if (!virtualThreadsAvailable()) {
+            System.out.println("[Server] : Virtual threads need Java 21 or later; " + usedFor + " stay on platform threads");
+            return null;
+        }
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+        executor.setVirtualThreads(true);
+        executor.setConcurrencyLimit(concurrencyLimit);
+        return executor;
+    }
+}
@@ -1,24 +1,78 @@
 package com.editor.backend.config;
 
+import java.util.concurrent.Executor;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
+
+import com.editor.backend.wire.OutboundQueues;
+import com.editor.backend.wire.WireFormat;
 
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+
+    private final WireFormat wireFormat;
+    private final OutboundQueues outboundQueues;
+    // Null on platform threads, where each channel keeps Spring's default pool
+    private final Executor inboundExecutor;
+    private final Executor outboundExecutor;
+
+    public WebSocketConfig(WireFormat wireFormat, OutboundQueues outboundQueues,
+                           @Value("${editor.websocket.threads:PLATFORM}") Threads threads,
+                           @Value("${editor.websocket.max-concurrency:4096}") int maxConcurrency) {
+        this.wireFormat = wireFormat;
+        this.outboundQueues = outboundQueues;
+        // A handler blocked on a join or a disk write parks its virtual thread instead of holding a
+        // pool thread; the limit bounds how many handlers of each channel run at once
+        this.inboundExecutor = threads.executor("stomp-inbound-", maxConcurrency, "STOMP channels");
+        this.outboundExecutor = inboundExecutor == null ? null
+                : threads.executor("stomp-outbound-", maxConcurrency, "STOMP channels");
+    }
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
-        // Enable a simple message broker with the destination "/topic"
-        config.enableSimpleBroker("/topic");
+        // Enable a simple message broker with the destinations "/topic" and, for replies
+        // to one client, "/queue"
+        config.enableSimpleBroker("/topic", "/queue");
         config.setApplicationDestinationPrefixes("/app");
+        // Messages to one session leave in the order they were published, however many threads send
+        config.setPreservePublishOrder(true);
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
         // * define the WebSocket endpoint where clients will actually connect.
         registry.addEndpoint("/ws").setAllowedOrigins("*").withSockJS();
+        // * the same without SockJS, whose frames are text only, for clients using the binary wire format
+        registry.addEndpoint("/ws-native").setAllowedOrigins("*");
+        // Messages from one session reach the controllers, and so the document actors, in the order
+        // they were sent; the actor then keeps that order for the whole document
+        registry.setPreserveReceiveOrder(true);
+    }
+
+    // Binary operation frames are translated at the edges; everything in between sees Operation objects
+    @Override
+    public void configureClientInboundChannel(ChannelRegistration registration) {
+        registration.interceptors(wireFormat.inbound());
+        if (inboundExecutor != null) registration.executor(inboundExecutor);
+    }
+
+    @Override
+    public void configureClientOutboundChannel(ChannelRegistration registration) {
+        registration.interceptors(wireFormat.outbound());
+        if (outboundExecutor != null) registration.executor(outboundExecutor);
+    }
+
+    // Sessions are bounded where frames wait for the connection, beneath Spring's own send buffer
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        registration.addDecoratorFactory(outboundQueues);
     }
 }
@@ -5,17 +5,27 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.editor.backend.cluster.DocumentMovedException;
 import com.editor.backend.model.Comment;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import jakarta.servlet.http.HttpServletRequest;
+
 import com.editor.backend.model.DocumentSession;
+import com.editor.backend.model.DocumentSnapshot;
 import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentImage;
+import com.editor.backend.service.DocumentSessionService;
+import com.editor.backend.storage.SnapshotCodec;
 
 @RestController
 @RequestMapping("/api/documents")
@@ -34,11 +44,20 @@ public class DocumentRestController {
         return ResponseEntity.status(500).body(error);
     }
 
+    // The document lives on another node: send the client there with the same request
+    @ExceptionHandler(DocumentMovedException.class)
+    public ResponseEntity<Map<String, String>> handleMoved(DocumentMovedException ex, HttpServletRequest request) {
+        String location = ex.getOwnerAddress() + request.getRequestURI()
+                + (request.getQueryString() == null ? "" : "?" + request.getQueryString());
+        return ResponseEntity.status(307)
+                .header("Location", location)
+                .body(Map.of("documentId", ex.getDocumentId(), "server", ex.getOwnerAddress()));
+    }
+
     //! USED
     @PostMapping("")
     public ResponseEntity<Map<String, String>> createNewDocument() {
-        DocumentSession session = new DocumentSession();
-        documentSessions.addDocumentSession(session.getDocId(), session);
+        DocumentSession session = documentSessions.createDocumentSession();
 
         Map<String, String> response = new HashMap<>();
         response.put("documentId", session.getDocId());
@@ -63,14 +82,10 @@ public class DocumentRestController {
         System.out.println("[Server] : File content decoded - " + fileContent);
 
         // Proceed with CRDT session creation and other logic
-        DocumentSession session = new DocumentSession();
-        documentSessions.getDocumentSession(session.getDocId());
-        CRDTService docCRDT = session.getDocCRDT();
-        System.out.println("[Server] : " + fileContent);
-        for (char c : fileContent.toCharArray()) {
-            System.out.println("[Server] : " + c);
-            docCRDT.insertAtCursor(c, "userId", System.currentTimeMillis());
-        }
+        DocumentSession session = documentSessions.createDocumentSession();
+        // One paste keeps the whole file in a single span with consecutive clocks
+        long clock = System.currentTimeMillis();
+        session.getActor().run(docCRDT -> docCRDT.paste(fileContent, "userId", clock)).join();
 
         Map<String, String> response = new HashMap<>();
         response.put("message", "uploaded successfully");
@@ -97,7 +112,7 @@ public ResponseEntity<?> undo(@PathVariable String documentId,
         throw new IllegalArgumentException("Invalid documentId");
     }
 
-    session.getDocCRDT().undo(userId);
+    session.getActor().run(docCRDT -> docCRDT.undo(userId)).join();
 
     return ResponseEntity.ok(Map.of("message", "Undo successful"));
 }
@@ -109,7 +124,7 @@ public ResponseEntity<?> redo(@PathVariable String documentId,
         throw new IllegalArgumentException("Invalid documentId");
     }
 
-    session.getDocCRDT().redo(userId);
+    session.getActor().run(docCRDT -> docCRDT.redo(userId)).join();
 
     return ResponseEntity.ok(Map.of("message", "Redo successful"));
 }
@@ -122,7 +137,7 @@ public ResponseEntity<?> updateCursor(@PathVariable String documentId,
         throw new IllegalArgumentException("Invalid documentId");
     }
 
-    session.getDocCRDT().updateCursorByIndex(userId, index);
+    session.getActor().run(docCRDT -> docCRDT.updateCursorByIndex(userId, index)).join();
 
     return ResponseEntity.ok(Map.of("message", "Cursor updated"));
 }
@@ -135,23 +150,48 @@ public ResponseEntity<?> updateCursor(@PathVariable String documentId,
             @RequestParam int startIndex,
             @RequestParam int endIndex
     ) {
-        DocumentSession session = documentSessions.get(documentId);
+        DocumentSession session = documentSessions.getDocumentSession(documentId);
         if (session == null) {
             throw new IllegalArgumentException("Invalid documentId");
         }
 
-        session.getDocCRDT().addCommentFromIndexRange(userId, content, startIndex, endIndex);
+        session.getActor().run(docCRDT -> docCRDT.addCommentFromIndexRange(userId, content, startIndex, endIndex)).join();
 
         return ResponseEntity.ok(Map.of("message", "Comment added"));
     }
+    // Read from the latest snapshot, without queueing behind edits
+    @GetMapping("/{documentId}")
+    public ResponseEntity<?> getDocument(@PathVariable String documentId) {
+        DocumentSession session = documentSessions.getDocumentSession(documentId);
+        if (session == null) {
+            throw new IllegalArgumentException("Invalid documentId");
+        }
+
+        DocumentSnapshot snapshot = session.getActor().snapshot();
+        return ResponseEntity.ok(Map.of("document", snapshot.getDocument(), "sequence", snapshot.getSequence()));
+    }
+
+    // The whole document in the binary snapshot format, for a client's initial load
+    @GetMapping(path = "/{documentId}/snapshot", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<byte[]> getSnapshot(@PathVariable String documentId) {
+        DocumentSession session = documentSessions.getDocumentSession(documentId);
+        if (session == null) {
+            throw new IllegalArgumentException("Invalid documentId");
+        }
+
+        // Only the copy is taken on the actor; encoding does not hold up edits
+        DocumentImage image = session.getActor().call(CRDTService::toImage).join();
+        return ResponseEntity.ok(SnapshotCodec.encode(image));
+    }
+
     @GetMapping("/{documentId}/comments")
     public ResponseEntity<?> getAllComments(@PathVariable String documentId) {
-        DocumentSession session = documentSessions.get(documentId);
+        DocumentSession session = documentSessions.getDocumentSession(documentId);
         if (session == null) {
             throw new IllegalArgumentException("Invalid documentId");
         }
 
-        List<Comment> comments = session.getDocCRDT().getAllComments();
+        List<Comment> comments = session.getActor().snapshot().getAllComments();
         return ResponseEntity.ok(comments);
     }
     @GetMapping("/generateUserId")
@@ -1,28 +1,56 @@
 package com.editor.backend.controller;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.context.event.EventListener;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.messaging.handler.annotation.MessageExceptionHandler;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.SendTo;
+import org.springframework.messaging.simp.annotation.SendToUser;
+import org.springframework.stereotype.Controller;
 import org.springframework.web.socket.messaging.SessionConnectEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
 
+import com.editor.backend.cluster.ClusterBroadcaster;
+import com.editor.backend.cluster.DocumentMovedException;
+import com.editor.backend.model.Cursor;
 import com.editor.backend.model.DocumentSession;
+import com.editor.backend.model.DocumentSnapshot;
 import com.editor.backend.model.Operation;
+import com.editor.backend.model.SyncRequest;
+import com.editor.backend.model.SyncResponse;
 import com.editor.backend.model.User;
-import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentActor;
 import com.editor.backend.service.DocumentSessionService;
-import com.editor.backend.service.CRDTService;
 
+@Controller
 public class DocumentWebSocketController {
 
     private final DocumentSessionService documentSessionService;
+    private final ClusterBroadcaster broadcaster;
 
-    public DocumentWebSocketController(DocumentSessionService documentSessionService) {
+    public DocumentWebSocketController(DocumentSessionService documentSessionService, ClusterBroadcaster broadcaster) {
         this.documentSessionService = documentSessionService;
+        this.broadcaster = broadcaster;
+        // Operations clients sent to other nodes, for documents served here; looked up like any
+        // other request, so a stored document is loaded and one gone or moved again is refused
+        broadcaster.onForwardedOperation((documentId, operation) ->
+                apply(localSession(documentId).getActor(), documentId, operation));
+    }
+
+    // The document served here, loaded if need be, the way the REST endpoints find it.
+    // Throws DocumentMovedException when another node serves it
+    private DocumentSession localSession(String documentId) {
+        DocumentSession session = documentSessionService.getDocumentSession(documentId);
+        if (session == null) {
+            throw new IllegalArgumentException("Invalid documentId");
+        }
+        return session;
     }
 
     @EventListener
@@ -33,6 +61,7 @@ public class DocumentWebSocketController {
     // TODO : Remove User Id from the Document
     @EventListener
     public void handleSessionDisconnect(SessionDisconnectEvent event) {
+        documentSessionService.removeReplica(event.getSessionId());
         System.out.println("[Server] : User Disconnected disconnected from document");
     }
 
@@ -48,56 +77,106 @@ public class DocumentWebSocketController {
         return response;
     }
 
+    // Applied and broadcast to /topic/Document/{documentId} by the document's actor, in arrival order.
+    // A node that does not serve the document passes the operation on to the one that does
     @MessageMapping("/updateDocument/{documentId}")
-    @SendTo("/topic/Document/{documentId}")
-    public Operation updateDocument(@DestinationVariable String documentId, Operation operation) {
+    public void updateDocument(@DestinationVariable String documentId, Operation operation) {
         System.out.println("[Server] : Got a UpdateRequest");
-        CRDTService sessionCRDT = documentSessionService.getDocumentSession(documentId).getDocCRDT();
-        System.out.println("[Server] : Found The Document");
-        switch (operation.getType()) {
-            case INSERT:
-                sessionCRDT.insertAtCursor(operation.getValue(), operation.getUserId(), operation.getClock());
-                break;
-            case DELETE:
-                sessionCRDT.delete(operation.getNodeId());
-                break;
-            case UNDO:
-                sessionCRDT.undo(operation.getUserId());
-                break;
-            case REDO:
-                sessionCRDT.redo(operation.getUserId());
-                break;
-            case PASTE:
-                sessionCRDT.paste("", documentId, operation.getClock());
-                break;
-            case COMMENT:
-                // TODO: Add CRDT Comment Function Here
-                break;
-            default:
-                System.out.println("[Server] Operation Type is Not Found");
-                break;
+        DocumentSession session;
+        try {
+            session = localSession(documentId);
+        } catch (DocumentMovedException e) {
+            broadcaster.forward(documentId, operation);
+            return;
         }
-        System.out.println("[Server] : Updated Now Giving Operations To Other Clients");
-        return operation;
+        apply(session.getActor(), documentId, operation);
     }
 
+    private static void apply(DocumentActor actor, String documentId, Operation operation) {
+        actor.run(sessionCRDT -> {
+            switch (operation.getType()) {
+                case INSERT:
+                    sessionCRDT.insertAtCursor(operation.getValue(), operation.getUserId(), operation.getClock());
+                    break;
+                case DELETE:
+                    sessionCRDT.delete(operation.getNodeId());
+                    break;
+                case UNDO:
+                    sessionCRDT.undo(operation.getUserId());
+                    break;
+                case REDO:
+                    sessionCRDT.redo(operation.getUserId());
+                    break;
+                case PASTE:
+                    sessionCRDT.paste("", documentId, operation.getClock());
+                    break;
+                case COMMENT:
+                    // TODO: Add CRDT Comment Function Here
+                    break;
+                default:
+                    System.out.println("[Server] Operation Type is Not Found");
+                    break;
+            }
+            operation.setSequence(sessionCRDT.getSequence());
+            actor.publish("/topic/Document/" + documentId, operation);
+        });
+    }
+
+    // Only the latest move per user is kept; moved cursors go to /topic/Document/{documentId}/cursors
+    // together on the next cursor tick
     @MessageMapping("/cursorUpdate/{documentId}")
-    @SendTo("/topic/Document/{documentId}/cursors")
-    public Operation updateCursor(@DestinationVariable String documentId, Operation operation) {
-        documentSessionService.getDocumentSession(documentId).getDocCRDT().updateCursor(operation.getUserId(), operation.getNodeId());
-        return operation;
+    public void updateCursor(@DestinationVariable String documentId, Operation operation) {
+        if (operation.getUserId() == null || operation.getNodeId() == null) return;
+        documentSessionService.getDocumentSession(documentId).moveCursor(operation.getUserId(), operation.getNodeId());
+    }
+
+    // Clients acknowledge the highest operation sequence they have applied, which lets
+    // the server collect tombstones once every client has seen them
+    @MessageMapping("/ack/{documentId}")
+    public void acknowledge(@DestinationVariable String documentId, @Header("simpSessionId") String sessionId,
+                            Map<String, Long> payload) {
+        Long sequence = payload.get("sequence");
+        if (sequence == null) return;
+        documentSessionService.acknowledge(documentId, sessionId, sequence);
     }
 
-    // TODO : Complete On Getting Bondok Get All Cursors
-    // @MessageMapping("/getCursors/{documentId}")
-    // @SendTo("/topic/Document/{documentId}/cursors/init")
-    // public Map<String, String> sendAllCursors(@DestinationVariable String documentId) {
-    //     return documentSessionService.getDocumentSession(documentId).getDocCRDT().
-    // }
+    // Every user's cursor with its current index, resolved once per batch into the snapshot
+    @MessageMapping("/getCursors/{documentId}")
+    @SendTo("/topic/Document/{documentId}/cursors/init")
+    public Collection<Cursor> sendAllCursors(@DestinationVariable String documentId) {
+        return documentSessionService.getDocumentSession(documentId).getActor().snapshot().getAllCursors();
+    }
+
+    // Reconnect handshake: the client sends its state vector and last applied sequence, and
+    // only it gets back the operations it missed, or a snapshot when the gap is too large.
+    // Answered when the actor gets to it, so the inbound thread never waits on the document
+    @MessageMapping("/sync/{documentId}")
+    @SendToUser(destinations = "/queue/sync", broadcast = false)
+    public CompletableFuture<SyncResponse> sync(@DestinationVariable String documentId,
+                                                @Header("simpSessionId") String sessionId, SyncRequest request) {
+        return documentSessionService.sync(documentId, sessionId, request);
+    }
+
+    // A sync for a document that does not exist, or lives on another node, is answered with
+    // the reason (and the owner's address) on the requester's error queue
+    @MessageExceptionHandler({ IllegalArgumentException.class, DocumentMovedException.class })
+    @SendToUser(destinations = "/queue/errors", broadcast = false)
+    public Map<String, String> handleError(RuntimeException ex) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", ex.getMessage());
+        if (ex instanceof DocumentMovedException moved) {
+            error.put("server", moved.getOwnerAddress());
+        }
+        return error;
+    }
 
+    // Served from the latest snapshot, whose broadcasts have all been sent already
     @MessageMapping("/getDocument/{documentId}")
     @SendTo("/topic/Document/{documentId}/full")
-    public String getFullDocument(@DestinationVariable String documentId) {
-        return documentSessionService.getDocumentSession(documentId).getDocCRDT().getDocument();
+    public String getFullDocument(@DestinationVariable String documentId, @Header("simpSessionId") String sessionId) {
+        DocumentSnapshot snapshot = localSession(documentId).getActor().snapshot();
+        // The requester now holds everything up to the snapshot, so it counts as a replica from there
+        documentSessionService.acknowledge(documentId, sessionId, snapshot.getSequence());
+        return snapshot.getDocument();
     }
 }
@@ -0,0 +1,27 @@
+package com.editor.backend.controller;
+
+import java.util.Map;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.editor.backend.wire.OutboundQueues;
+
+@RestController
+@RequestMapping("/api/stats")
+public class StatsController {
+
+    private final OutboundQueues outboundQueues;
+
+    public StatsController(OutboundQueues outboundQueues) {
+        this.outboundQueues = outboundQueues;
+    }
+
+    // Messages waiting for slow WebSocket sessions on this node, and the broadcasts dropped for them
+    @GetMapping("/outbound")
+    public ResponseEntity<Map<String, Object>> getOutbound() {
+        return ResponseEntity.ok(outboundQueues.stats());
+    }
+}
@@ -0,0 +1,56 @@
+package com.editor.backend.crdt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Version vector of what the connected replicas of a document have seen.
+ * Every change applied on the server gets the next value of the document's
+ * sequence, the clock of the server's own site (site 0), and replicas
+ * acknowledge the highest sequence they have applied. Since all changes pass
+ * through the server, that single clock per replica covers every site. A
+ * change is causally stable once every replica that may still ask for the
+ * changes after it has acknowledged it: the connected ones, and those that
+ * disconnected while a delta sync could still bring them up to date.
+ */
+public class AckVector {
+
+    private final Map<String, Long> acked = new HashMap<>();
+    // Replicas that disconnected, with what they had seen, in case they come back for a delta
+    private final Map<String, Long> departed = new HashMap<>();
+
+    /** Records that replica has seen every change up to sequence. */
+    public void acknowledge(String replica, long sequence) {
+        acked.merge(replica, sequence, Math::max);
+    }
+
+    /** Stops counting replica as connected, keeping what it had seen until stable() no longer needs it. */
+    public void remove(String replica) {
+        Long seen = acked.remove(replica);
+        if (seen != null) departed.merge(replica, seen, Math::max);
+    }
+
+    public int replicas() {
+        return acked.size();
+    }
+
+    /**
+     * Highest sequence seen by every connected replica and every disconnected
+     * one that had seen at least floor, the oldest sequence a delta sync can
+     * still start from. A replica further behind gets a full copy when it comes
+     * back, so it is forgotten here. With no replica left everything up to
+     * current is stable, since a replica that joins later starts from a full
+     * copy of the document.
+     */
+    public long stable(long current, long floor) {
+        departed.values().removeIf(sequence -> sequence < floor);
+        long stable = current;
+        for (long sequence : acked.values()) {
+            stable = Math.min(stable, sequence);
+        }
+        for (long sequence : departed.values()) {
+            stable = Math.min(stable, sequence);
+        }
+        return stable;
+    }
+}
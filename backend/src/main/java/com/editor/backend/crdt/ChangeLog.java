@@ -0,0 +1,123 @@
+package com.editor.backend.crdt;
+
+/**
+ * Recent tombstone flips of a document, tagged with the sequence that made them.
+ * A state vector tells which characters a replica has, but not which of them
+ * were deleted or restored since; this log answers that for the last capacity
+ * flips. A flip covers a run of characters with consecutive ids, so deleting a
+ * selection or undoing a paste is one entry however long it is. It is a ring of primitive arrays that starts small and doubles up to
+ * capacity, so idle documents stay cheap, recording costs no allocation once it
+ * is full, and the oldest flips are overwritten from then on.
+ */
+public class ChangeLog {
+
+    /** Receives flips in the order they were made. */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(long id, int count, boolean deleted);
+    }
+
+    private static final int INITIAL_SIZE = 16;
+
+    private final int capacity;
+    private long[] sequences;
+    private long[] ids;
+    private int[] counts;
+    private boolean[] deleted;
+    private int head; // index of the oldest flip
+    private int size;
+
+    // Highest sequence whose flips are no longer all held
+    private long forgotten;
+
+    public ChangeLog(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        int initial = Math.min(capacity, INITIAL_SIZE);
+        sequences = new long[initial];
+        ids = new long[initial];
+        counts = new int[initial];
+        deleted = new boolean[initial];
+    }
+
+    /** Records that the count characters from id on were deleted or restored. */
+    public void record(long sequence, long id, int count, boolean isDeleted) {
+        if (size == ids.length && size < capacity) {
+            grow();
+        }
+        if (size == ids.length) {
+            forgotten = Math.max(forgotten, sequences[head]);
+            head = (head + 1) % ids.length;
+            size--;
+        }
+        int i = (head + size++) % ids.length;
+        sequences[i] = sequence;
+        ids[i] = id;
+        counts[i] = count;
+        deleted[i] = isDeleted;
+    }
+
+    /** Oldest sequence from which every later flip is still held. */
+    public long floor() {
+        return forgotten;
+    }
+
+    /** Gives up on every flip up to sequence, for a copy rebuilt without knowing when they were made. */
+    public void forgetThrough(long sequence) {
+        forgotten = Math.max(forgotten, sequence);
+    }
+
+    /** Whether every flip made after sequence is still held. */
+    public boolean reaches(long sequence) {
+        return sequence >= forgotten;
+    }
+
+    /** Number of flips made after sequence, a run counting once. */
+    public int countSince(long sequence) {
+        return size - firstAfter(sequence);
+    }
+
+    public void forEachSince(long sequence, Visitor visitor) {
+        for (int k = firstAfter(sequence); k < size; k++) {
+            int i = (head + k) % ids.length;
+            visitor.visit(ids[i], counts[i], deleted[i]);
+        }
+    }
+
+    // Doubles the ring, oldest flip first
+    private void grow() {
+        int n = Math.min(capacity, ids.length * 2);
+        long[] newSequences = new long[n];
+        long[] newIds = new long[n];
+        int[] newCounts = new int[n];
+        boolean[] newDeleted = new boolean[n];
+        for (int k = 0; k < size; k++) {
+            int i = (head + k) % ids.length;
+            newSequences[k] = sequences[i];
+            newIds[k] = ids[i];
+            newCounts[k] = counts[i];
+            newDeleted[k] = deleted[i];
+        }
+        sequences = newSequences;
+        ids = newIds;
+        counts = newCounts;
+        deleted = newDeleted;
+        head = 0;
+    }
+
+    // Position, counted from the oldest flip, of the first flip made after sequence.
+    // Sequences only grow, so this is a binary search over the ring.
+    private int firstAfter(long sequence) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sequences[(head + mid) % ids.length] <= sequence) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
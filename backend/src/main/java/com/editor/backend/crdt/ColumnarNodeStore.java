@@ -0,0 +1,259 @@
+package com.editor.backend.crdt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Struct-of-arrays node store: every span field lives in its own primitive column
+ * and the characters live in one shared text arena, so the GC sees a handful of
+ * buffers instead of millions of objects. In off-heap mode the columns and the
+ * arena are direct buffers, which keeps multi-megabyte documents out of the Java
+ * heap entirely.
+ *
+ * Removing a span frees its handle but not its characters, since the arena
+ * only ever grows.
+ */
+public class ColumnarNodeStore implements NodeStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final boolean offHeap;
+    private int size;
+    private int capacity;
+
+    // Packed ids of each span's first character (site index + clock)
+    private LongBuffer ids;
+
+    // Each span's characters are arena[textStart, textStart + length)
+    private IntBuffer textStarts;
+    private IntBuffer lengths;
+
+    // Tree links (handles, NIL when absent)
+    private IntBuffer parents;
+    private IntBuffer firstChildren;
+    private IntBuffer nextSiblings;
+
+    // One tombstone bit per span
+    private LongBuffer deleted;
+
+    // Characters of all spans; splits share it, only new text is appended
+    private CharBuffer arena;
+    private int arenaSize;
+
+    // Handles of removed spans, reused before the columns grow
+    private int[] free = new int[16];
+    private int freeCount;
+
+    public ColumnarNodeStore(boolean offHeap) {
+        this.offHeap = offHeap;
+        allocate(INITIAL_CAPACITY);
+        arena = buffer(INITIAL_CAPACITY * Character.BYTES).asCharBuffer();
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    @Override
+    public int add(long id, CharSequence text) {
+        int h = newSpan(id, arenaSize, text.length());
+        writeText(text);
+        parents.put(h, NIL);
+        firstChildren.put(h, NIL);
+        nextSiblings.put(h, NIL);
+        setDeleted(h, false);
+        return h;
+    }
+
+    @Override
+    public boolean append(int h, CharSequence text) {
+        // Only the span that ends at the arena tail can grow in place
+        if (textStarts.get(h) + lengths.get(h) != arenaSize) return false;
+        writeText(text);
+        lengths.put(h, lengths.get(h) + text.length());
+        return true;
+    }
+
+    @Override
+    public int split(int h, int offset) {
+        int t = newSpan(ids.get(h) + offset, textStarts.get(h) + offset, lengths.get(h) - offset);
+        lengths.put(h, offset);
+        setDeleted(t, isDeleted(h));
+
+        // The tail inherits the children of the head's last character
+        firstChildren.put(t, firstChildren.get(h));
+        for (int c = firstChildren.get(t); c != NIL; c = nextSiblings.get(c)) {
+            parents.put(c, t);
+        }
+        firstChildren.put(h, t);
+        parents.put(t, h);
+        nextSiblings.put(t, NIL);
+        return t;
+    }
+
+    @Override
+    public void remove(int h) {
+        int parent = parents.get(h);
+
+        // The children take h's place, the last of them continuing to h's next sibling
+        int replacement = nextSiblings.get(h);
+        if (firstChildren.get(h) != NIL) {
+            replacement = firstChildren.get(h);
+            int c = replacement;
+            while (true) {
+                parents.put(c, parent);
+                if (nextSiblings.get(c) == NIL) {
+                    nextSiblings.put(c, nextSiblings.get(h));
+                    break;
+                }
+                c = nextSiblings.get(c);
+            }
+        }
+
+        if (parent != NIL) {
+            if (firstChildren.get(parent) == h) {
+                firstChildren.put(parent, replacement);
+            } else {
+                int prev = firstChildren.get(parent);
+                while (nextSiblings.get(prev) != h) {
+                    prev = nextSiblings.get(prev);
+                }
+                nextSiblings.put(prev, replacement);
+            }
+        }
+
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = h;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int count() {
+        return size - freeCount;
+    }
+
+    @Override
+    public long id(int h) {
+        return ids.get(h);
+    }
+
+    @Override
+    public int length(int h) {
+        return lengths.get(h);
+    }
+
+    @Override
+    public char charAt(int h, int offset) {
+        return arena.get(textStarts.get(h) + offset);
+    }
+
+    @Override
+    public void appendTo(int h, int from, int to, StringBuilder sb) {
+        int start = textStarts.get(h);
+        sb.append(arena, start + from, start + to);
+    }
+
+    @Override
+    public boolean isDeleted(int h) {
+        return (deleted.get(h >>> 6) & (1L << h)) != 0;
+    }
+
+    @Override
+    public void setDeleted(int h, boolean value) {
+        long word = deleted.get(h >>> 6);
+        deleted.put(h >>> 6, value ? word | (1L << h) : word & ~(1L << h));
+    }
+
+    @Override
+    public int parent(int h) {
+        return parents.get(h);
+    }
+
+    @Override
+    public int firstChild(int h) {
+        return firstChildren.get(h);
+    }
+
+    @Override
+    public int nextSibling(int h) {
+        return nextSiblings.get(h);
+    }
+
+    @Override
+    public void linkChild(int parent, int prev, int child) {
+        parents.put(child, parent);
+        if (prev == NIL) {
+            nextSiblings.put(child, firstChildren.get(parent));
+            firstChildren.put(parent, child);
+        } else {
+            nextSiblings.put(child, nextSiblings.get(prev));
+            nextSiblings.put(prev, child);
+        }
+    }
+
+    // --- Column management ---
+
+    private int newSpan(long id, int textStart, int length) {
+        int h;
+        if (freeCount > 0) {
+            h = free[--freeCount];
+        } else {
+            if (size == capacity) {
+                allocate(capacity * 2);
+            }
+            h = size++;
+        }
+        ids.put(h, id);
+        textStarts.put(h, textStart);
+        lengths.put(h, length);
+        return h;
+    }
+
+    private void writeText(CharSequence text) {
+        int needed = arenaSize + text.length();
+        if (needed > arena.capacity()) {
+            CharBuffer grown = buffer(Math.max(needed, arena.capacity() * 2) * Character.BYTES).asCharBuffer();
+            grown.put(0, arena, 0, arenaSize);
+            arena = grown;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            arena.put(arenaSize++, text.charAt(i));
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        ids = copy(ids, buffer(newCapacity * Long.BYTES).asLongBuffer());
+        textStarts = copy(textStarts, buffer(newCapacity * Integer.BYTES).asIntBuffer());
+        lengths = copy(lengths, buffer(newCapacity * Integer.BYTES).asIntBuffer());
+        parents = copy(parents, buffer(newCapacity * Integer.BYTES).asIntBuffer());
+        firstChildren = copy(firstChildren, buffer(newCapacity * Integer.BYTES).asIntBuffer());
+        nextSiblings = copy(nextSiblings, buffer(newCapacity * Integer.BYTES).asIntBuffer());
+        deleted = copy(deleted, buffer((newCapacity / 64 + 1) * Long.BYTES).asLongBuffer());
+        capacity = newCapacity;
+    }
+
+    private ByteBuffer buffer(int bytes) {
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        return buffer.order(ByteOrder.nativeOrder());
+    }
+
+    private static LongBuffer copy(LongBuffer from, LongBuffer to) {
+        if (from != null) to.put(0, from, 0, from.capacity());
+        return to;
+    }
+
+    private static IntBuffer copy(IntBuffer from, IntBuffer to) {
+        if (from != null) to.put(0, from, 0, from.capacity());
+        return to;
+    }
+}
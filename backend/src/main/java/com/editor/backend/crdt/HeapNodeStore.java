@@ -0,0 +1,170 @@
+package com.editor.backend.crdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.editor.backend.model.CRDTNode;
+
+/**
+ * Node store backed by one CRDTNode object per span.
+ * This is the default layout and the simplest one to inspect in a debugger.
+ */
+public class HeapNodeStore implements NodeStore {
+
+    private final List<CRDTNode> nodes = new ArrayList<>();
+
+    // Handles of removed spans, reused before the list grows
+    private int[] free = new int[16];
+    private int freeCount;
+
+    @Override
+    public int add(long id, CharSequence text) {
+        return store(new CRDTNode(id, text, false, System.currentTimeMillis()));
+    }
+
+    @Override
+    public boolean append(int h, CharSequence text) {
+        nodes.get(h).getText().append(text);
+        return true;
+    }
+
+    @Override
+    public int split(int h, int offset) {
+        CRDTNode head = nodes.get(h);
+        StringBuilder text = head.getText();
+        CRDTNode tail = new CRDTNode(head.getId() + offset, text.substring(offset), head.isDeleted(), head.getCreatedAt());
+        text.setLength(offset);
+        int t = store(tail);
+
+        // The tail inherits the children of the head's last character
+        tail.setFirstChild(head.getFirstChild());
+        for (int c = tail.getFirstChild(); c != NIL; c = nodes.get(c).getNextSibling()) {
+            nodes.get(c).setParent(t);
+        }
+        head.setFirstChild(t);
+        tail.setParent(h);
+        return t;
+    }
+
+    @Override
+    public void remove(int h) {
+        CRDTNode node = nodes.get(h);
+        int parent = node.getParent();
+
+        // The children take h's place, the last of them continuing to h's next sibling
+        int replacement = node.getNextSibling();
+        if (node.getFirstChild() != NIL) {
+            replacement = node.getFirstChild();
+            int c = replacement;
+            while (true) {
+                CRDTNode child = nodes.get(c);
+                child.setParent(parent);
+                if (child.getNextSibling() == NIL) {
+                    child.setNextSibling(node.getNextSibling());
+                    break;
+                }
+                c = child.getNextSibling();
+            }
+        }
+
+        if (parent != NIL) {
+            CRDTNode p = nodes.get(parent);
+            if (p.getFirstChild() == h) {
+                p.setFirstChild(replacement);
+            } else {
+                CRDTNode prev = nodes.get(p.getFirstChild());
+                while (prev.getNextSibling() != h) {
+                    prev = nodes.get(prev.getNextSibling());
+                }
+                prev.setNextSibling(replacement);
+            }
+        }
+
+        nodes.set(h, null);
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = h;
+    }
+
+    @Override
+    public int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public int count() {
+        return nodes.size() - freeCount;
+    }
+
+    @Override
+    public long id(int h) {
+        return nodes.get(h).getId();
+    }
+
+    @Override
+    public int length(int h) {
+        return nodes.get(h).getText().length();
+    }
+
+    @Override
+    public char charAt(int h, int offset) {
+        return nodes.get(h).getText().charAt(offset);
+    }
+
+    @Override
+    public void appendTo(int h, int from, int to, StringBuilder sb) {
+        sb.append(nodes.get(h).getText(), from, to);
+    }
+
+    @Override
+    public boolean isDeleted(int h) {
+        return nodes.get(h).isDeleted();
+    }
+
+    @Override
+    public void setDeleted(int h, boolean deleted) {
+        nodes.get(h).setDeleted(deleted);
+    }
+
+    @Override
+    public int parent(int h) {
+        return nodes.get(h).getParent();
+    }
+
+    @Override
+    public int firstChild(int h) {
+        return nodes.get(h).getFirstChild();
+    }
+
+    @Override
+    public int nextSibling(int h) {
+        return nodes.get(h).getNextSibling();
+    }
+
+    private int store(CRDTNode node) {
+        if (freeCount > 0) {
+            int h = free[--freeCount];
+            nodes.set(h, node);
+            return h;
+        }
+        nodes.add(node);
+        return nodes.size() - 1;
+    }
+
+    @Override
+    public void linkChild(int parent, int prev, int child) {
+        CRDTNode node = nodes.get(child);
+        node.setParent(parent);
+        if (prev == NIL) {
+            CRDTNode p = nodes.get(parent);
+            node.setNextSibling(p.getFirstChild());
+            p.setFirstChild(child);
+        } else {
+            CRDTNode before = nodes.get(prev);
+            node.setNextSibling(before.getNextSibling());
+            before.setNextSibling(child);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.editor.backend.crdt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keyed intervals over character ids, such as comment ranges, ordered by
+ * document position.
+ * Intervals sit in a treap sorted by start, and every node caches the furthest
+ * end in its subtree, so the intervals covering a character or overlapping a
+ * range are found in O(log n + k) comparisons without looking at the others.
+ * Ids are compared through an Order supplied by the document. Characters of an
+ * RGA never change their relative order once placed, so the tree stays sorted
+ * while the document is edited around it; only removing a character requires
+ * moving the intervals anchored on it.
+ */
+public class IntervalIndex {
+
+    /** Document order of two character ids, as a comparator. */
+    @FunctionalInterface
+    public interface Order {
+        int compare(long a, long b);
+    }
+
+    private static final class Node {
+        final String key;
+        final long start;
+        final long end;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        long maxEnd;
+        Node left;
+        Node right;
+
+        Node(String key, long start, long end) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.maxEnd = end;
+        }
+    }
+
+    private final Order order;
+    private final Map<String, Node> byKey = new HashMap<>();
+    private Node root;
+
+    public IntervalIndex(Order order) {
+        this.order = order;
+    }
+
+    public int size() {
+        return byKey.size();
+    }
+
+    public boolean contains(String key) {
+        return byKey.containsKey(key);
+    }
+
+    /** Adds the interval [start, end], replacing any interval under the same key. */
+    public void add(String key, long start, long end) {
+        remove(key);
+        Node node = new Node(key, start, end);
+        byKey.put(key, node);
+        root = insert(root, node);
+    }
+
+    public void remove(String key) {
+        Node node = byKey.remove(key);
+        if (node != null) {
+            root = delete(root, node);
+        }
+    }
+
+    /** Keys of the intervals containing id. */
+    public List<String> covering(long id) {
+        return overlapping(id, id);
+    }
+
+    /** Keys of the intervals sharing at least one position with [from, to]. */
+    public List<String> overlapping(long from, long to) {
+        List<String> out = new ArrayList<>();
+        collect(root, from, to, out);
+        return out;
+    }
+
+    private void collect(Node n, long from, long to, List<String> out) {
+        // Nothing below reaches from
+        if (n == null || order.compare(n.maxEnd, from) < 0) return;
+
+        collect(n.left, from, to, out);
+        if (order.compare(n.start, to) > 0) return; // this and everything right start past to
+        if (order.compare(n.end, from) >= 0) {
+            out.add(n.key);
+        }
+        collect(n.right, from, to, out);
+    }
+
+    private Node insert(Node n, Node node) {
+        if (n == null) return node;
+        if (node.priority > n.priority) {
+            Node[] parts = split(n, node);
+            node.left = parts[0];
+            node.right = parts[1];
+            pull(node);
+            return node;
+        }
+        if (before(node, n)) {
+            n.left = insert(n.left, node);
+        } else {
+            n.right = insert(n.right, node);
+        }
+        pull(n);
+        return n;
+    }
+
+    private Node delete(Node n, Node node) {
+        if (n == null) return null;
+        if (n == node) return merge(n.left, n.right);
+        if (before(node, n)) {
+            n.left = delete(n.left, node);
+        } else {
+            n.right = delete(n.right, node);
+        }
+        pull(n);
+        return n;
+    }
+
+    // Splits n into the nodes sorting before pivot and the rest
+    private Node[] split(Node n, Node pivot) {
+        if (n == null) return new Node[] { null, null };
+        if (before(n, pivot)) {
+            Node[] parts = split(n.right, pivot);
+            n.right = parts[0];
+            pull(n);
+            return new Node[] { n, parts[1] };
+        }
+        Node[] parts = split(n.left, pivot);
+        n.left = parts[1];
+        pull(n);
+        return new Node[] { parts[0], n };
+    }
+
+    private Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority >= b.priority) {
+            a.right = merge(a.right, b);
+            pull(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        pull(b);
+        return b;
+    }
+
+    // Sorted by start, then by key so equal starts still have a fixed place
+    private boolean before(Node a, Node b) {
+        int c = order.compare(a.start, b.start);
+        return c != 0 ? c < 0 : a.key.compareTo(b.key) < 0;
+    }
+
+    private void pull(Node n) {
+        long max = n.end;
+        if (n.left != null && order.compare(n.left.maxEnd, max) > 0) max = n.left.maxEnd;
+        if (n.right != null && order.compare(n.right.maxEnd, max) > 0) max = n.right.maxEnd;
+        n.maxEnd = max;
+    }
+}
@@ -0,0 +1,42 @@
+package com.editor.backend.crdt;
+
+/**
+ * Packs a node identifier (site index + Lamport clock) into a single long.
+ * The high 20 bits hold the site index from the document's SiteDictionary,
+ * the low 44 bits hold the clock, so ids never need a String on the hot path.
+ */
+public final class NodeIds {
+
+    public static final int SITE_BITS = 20;
+    public static final int CLOCK_BITS = 44;
+
+    public static final int MAX_SITE = (1 << SITE_BITS) - 1;
+    public static final long MAX_CLOCK = (1L << CLOCK_BITS) - 1;
+
+    // The root belongs to the reserved "system" site (index 0) at clock 0
+    public static final long ROOT = 0L;
+
+    // Returned by lookups when an id does not exist
+    public static final long NONE = -1L;
+
+    private NodeIds() {
+    }
+
+    public static long pack(int site, long clock) {
+        if (site < 0 || site > MAX_SITE) {
+            throw new IllegalArgumentException("Site index out of range: " + site);
+        }
+        if (clock < 0 || clock > MAX_CLOCK) {
+            throw new IllegalArgumentException("Clock out of range: " + clock);
+        }
+        return ((long) site << CLOCK_BITS) | clock;
+    }
+
+    public static int site(long id) {
+        return (int) (id >>> CLOCK_BITS);
+    }
+
+    public static long clock(long id) {
+        return id & MAX_CLOCK;
+    }
+}
@@ -0,0 +1,101 @@
+package com.editor.backend.crdt;
+
+/**
+ * Storage for the nodes of one CRDT document, addressed by integer handles.
+ * Handles are assigned sequentially from 0 by add(), and the tree shape is kept
+ * as parent / first-child / next-sibling links so no per-node child list is needed.
+ * CRDTService only talks to this interface, which lets a document live either in
+ * plain CRDTNode objects or in a compact columnar layout.
+ *
+ * A node is a span: a run of characters from one site with consecutive clocks,
+ * starting at the clock packed into its id. Character k of span h therefore has
+ * id {@code id(h) + k}, and is the implicit parent of character k + 1. Children
+ * of a span always hang off its last character.
+ *
+ * Handles of removed spans are recycled by later add() and split() calls.
+ */
+public interface NodeStore {
+
+    int NIL = -1;
+
+    enum Kind {
+        HEAP,     // one CRDTNode object per span
+        COLUMNAR, // parallel primitive columns on the Java heap
+        OFF_HEAP  // the same columns in direct (off-heap) buffers
+    }
+
+    static NodeStore create(Kind kind) {
+        switch (kind) {
+            case COLUMNAR:
+                return new ColumnarNodeStore(false);
+            case OFF_HEAP:
+                return new ColumnarNodeStore(true);
+            default:
+                return new HeapNodeStore();
+        }
+    }
+
+    /** Appends a detached span holding text and returns its handle. */
+    int add(long id, CharSequence text);
+
+    /**
+     * Extends span h with more characters if the store can do so in place.
+     * Returns false when the caller should create a new span instead.
+     */
+    boolean append(int h, CharSequence text);
+
+    /**
+     * Cuts span h before character offset. The tail becomes a new span that
+     * takes over h's children and is linked as h's only child.
+     * Returns the handle of the tail.
+     */
+    int split(int h, int offset);
+
+    /**
+     * Unlinks span h and frees its handle. Its children take its place among
+     * its parent's children, keeping their own order.
+     */
+    void remove(int h);
+
+    /** Exclusive upper bound of the handles handed out so far. */
+    int size();
+
+    /** Number of spans currently stored. */
+    int count();
+
+    long id(int h);
+
+    int length(int h);
+
+    char charAt(int h, int offset);
+
+    /** Appends characters [from, to) of span h to sb. */
+    void appendTo(int h, int from, int to, StringBuilder sb);
+
+    boolean isDeleted(int h);
+
+    void setDeleted(int h, boolean deleted);
+
+    int parent(int h);
+
+    int firstChild(int h);
+
+    int nextSibling(int h);
+
+    /** Links child under parent, right after prev (or as the first child when prev is NIL). */
+    void linkChild(int parent, int prev, int child);
+
+    /**
+     * The span after h in document (preorder) order, or NIL after the last one.
+     * Walks the parent links instead of a call stack, so it works at any tree depth.
+     */
+    default int nextInPreorder(int h) {
+        int child = firstChild(h);
+        if (child != NIL) return child;
+        for (int x = h; x != NIL; x = parent(x)) {
+            int sibling = nextSibling(x);
+            if (sibling != NIL) return sibling;
+        }
+        return NIL;
+    }
+}
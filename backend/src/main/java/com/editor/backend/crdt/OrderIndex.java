@@ -0,0 +1,316 @@
+package com.editor.backend.crdt;
+
+import java.util.Arrays;
+
+/**
+ * An order-statistic index over the nodes of a CRDT document.
+ * Entries are kept in document order inside a treap (randomized balanced tree)
+ * whose nodes are addressed by integer handles supplied by the caller.
+ * Every subtree caches how many visible entries it holds, so converting a
+ * visible index to a handle (select) or a handle to its visible index (rank)
+ * costs O(log n), and tombstones (weight 0) are skipped for free.
+ * A second aggregate counts every character, tombstones included, which gives
+ * each entry a stable document position for ordering anchors (position).
+ */
+public class OrderIndex {
+
+    public static final int NIL = -1;
+
+    // Tree links, indexed by handle
+    private int[] left = new int[0];
+    private int[] right = new int[0];
+    private int[] parent = new int[0];
+    private int[] priority = new int[0];
+
+    // 1 if the entry is visible, 0 for tombstones and the root
+    private int[] weight = new int[0];
+
+    // Subtree aggregate: visible entries below and including each node
+    private int[] visible = new int[0];
+
+    // Characters of each entry, deleted or not, and their subtree sums
+    private int[] length = new int[0];
+    private int[] total = new int[0];
+
+    // Whether the handle is currently linked into the tree
+    private boolean[] present = new boolean[0];
+
+    private int root = NIL;
+    private int seed = 0x2545F491;
+
+    public boolean contains(int h) {
+        return h >= 0 && h < present.length && present[h];
+    }
+
+    public int visibleCount() {
+        return visible(root);
+    }
+
+    /** Characters of every entry, tombstones included. */
+    public int length() {
+        return total(root);
+    }
+
+    public int weight(int h) {
+        return weight[h];
+    }
+
+    /** Links h right after prev, or at the very front when prev is NIL. */
+    public void insertAfter(int prev, int h, int w, int len) {
+        init(h, w, len);
+        if (root == NIL) {
+            root = h;
+        } else if (prev == NIL) {
+            attachLeft(leftmost(root), h);
+        } else if (right[prev] == NIL) {
+            attachRight(prev, h);
+        } else {
+            attachLeft(leftmost(right[prev]), h);
+        }
+        bubbleUp(h);
+    }
+
+    /** Links h right before next. */
+    public void insertBefore(int next, int h, int w, int len) {
+        init(h, w, len);
+        if (left[next] == NIL) {
+            attachLeft(next, h);
+        } else {
+            attachRight(rightmost(left[next]), h);
+        }
+        bubbleUp(h);
+    }
+
+    /**
+     * Replaces the whole index with count entries given in document order, in
+     * linear time. Builds the treap left to right along its right spine instead
+     * of inserting and rotating one entry at a time.
+     */
+    public void build(int[] handles, int[] weights, int[] lengths, int count) {
+        Arrays.fill(present, false);
+        int[] spine = new int[count];
+        int top = 0;
+        for (int i = 0; i < count; i++) {
+            int h = handles[i];
+            init(h, weights[i], lengths[i]);
+            // Entries of lower priority leave the spine as h's left subtree, complete
+            int below = NIL;
+            while (top > 0 && priority[spine[top - 1]] < priority[h]) {
+                below = spine[--top];
+                pull(below);
+            }
+            if (below != NIL) attachLeft(h, below);
+            if (top > 0) attachRight(spine[top - 1], h);
+            spine[top++] = h;
+        }
+        while (top > 0) {
+            pull(spine[--top]);
+        }
+        root = count == 0 ? NIL : spine[0];
+    }
+
+    /** Unlinks h; the handle may be inserted again later. */
+    public void remove(int h) {
+        // Rotate h down until it is a leaf, then cut it off
+        while (left[h] != NIL || right[h] != NIL) {
+            int child;
+            if (left[h] == NIL) {
+                child = right[h];
+            } else if (right[h] == NIL) {
+                child = left[h];
+            } else {
+                child = priority[left[h]] > priority[right[h]] ? left[h] : right[h];
+            }
+            rotateUp(child);
+        }
+
+        int p = parent[h];
+        if (p == NIL) {
+            root = NIL;
+        } else if (left[p] == h) {
+            left[p] = NIL;
+        } else {
+            right[p] = NIL;
+        }
+        for (int x = p; x != NIL; x = parent[x]) {
+            visible[x] -= weight[h];
+            total[x] -= length[h];
+        }
+        parent[h] = NIL;
+        present[h] = false;
+    }
+
+    public void setWeight(int h, int w) {
+        int delta = w - weight[h];
+        if (delta == 0) return;
+        weight[h] = w;
+        for (int x = h; x != NIL; x = parent[x]) {
+            visible[x] += delta;
+        }
+    }
+
+    public void setLength(int h, int len) {
+        int delta = len - length[h];
+        if (delta == 0) return;
+        length[h] = len;
+        for (int x = h; x != NIL; x = parent[x]) {
+            total[x] += delta;
+        }
+    }
+
+    /** Number of characters before h, tombstones included. */
+    public int position(int h) {
+        int r = total(left[h]);
+        for (int x = h; parent[x] != NIL; x = parent[x]) {
+            int p = parent[x];
+            if (right[p] == x) {
+                r += total(left[p]) + length[p];
+            }
+        }
+        return r;
+    }
+
+    /** Number of visible entries strictly before h. */
+    public int rank(int h) {
+        int r = visible(left[h]);
+        for (int x = h; parent[x] != NIL; x = parent[x]) {
+            int p = parent[x];
+            if (right[p] == x) {
+                r += visible(left[p]) + weight[p];
+            }
+        }
+        return r;
+    }
+
+    /** Handle of the k-th visible entry, or NIL when k is out of range. */
+    public int select(int k) {
+        if (k < 0 || k >= visibleCount()) return NIL;
+        int x = root;
+        while (true) {
+            int lv = visible(left[x]);
+            if (k < lv) {
+                x = left[x];
+                continue;
+            }
+            k -= lv;
+            if (k < weight[x]) return x;
+            k -= weight[x];
+            x = right[x];
+        }
+    }
+
+    /** In-order successor of h, or NIL at the end of the document. */
+    public int next(int h) {
+        if (right[h] != NIL) return leftmost(right[h]);
+        int x = h;
+        while (parent[x] != NIL && right[parent[x]] == x) {
+            x = parent[x];
+        }
+        return parent[x];
+    }
+
+    // --- Internals ---
+
+    private void init(int h, int w, int len) {
+        ensureCapacity(h + 1);
+        left[h] = NIL;
+        right[h] = NIL;
+        parent[h] = NIL;
+        priority[h] = nextPriority();
+        weight[h] = w;
+        visible[h] = w;
+        length[h] = len;
+        total[h] = len;
+        present[h] = true;
+    }
+
+    private void attachLeft(int p, int h) {
+        left[p] = h;
+        parent[h] = p;
+    }
+
+    private void attachRight(int p, int h) {
+        right[p] = h;
+        parent[h] = p;
+    }
+
+    // Fixes the ancestors' aggregates, then rotates h up until the heap order holds
+    private void bubbleUp(int h) {
+        for (int x = parent[h]; x != NIL; x = parent[x]) {
+            visible[x] += weight[h];
+            total[x] += length[h];
+        }
+        while (parent[h] != NIL && priority[h] > priority[parent[h]]) {
+            rotateUp(h);
+        }
+    }
+
+    private void rotateUp(int x) {
+        int p = parent[x];
+        int g = parent[p];
+        if (left[p] == x) {
+            left[p] = right[x];
+            if (right[x] != NIL) parent[right[x]] = p;
+            right[x] = p;
+        } else {
+            right[p] = left[x];
+            if (left[x] != NIL) parent[left[x]] = p;
+            left[x] = p;
+        }
+        parent[p] = x;
+        parent[x] = g;
+        if (g == NIL) {
+            root = x;
+        } else if (left[g] == p) {
+            left[g] = x;
+        } else {
+            right[g] = x;
+        }
+        pull(p);
+        pull(x);
+    }
+
+    private void pull(int x) {
+        visible[x] = weight[x] + visible(left[x]) + visible(right[x]);
+        total[x] = length[x] + total(left[x]) + total(right[x]);
+    }
+
+    private int leftmost(int x) {
+        while (left[x] != NIL) x = left[x];
+        return x;
+    }
+
+    private int rightmost(int x) {
+        while (right[x] != NIL) x = right[x];
+        return x;
+    }
+
+    private int visible(int x) {
+        return x == NIL ? 0 : visible[x];
+    }
+
+    private int total(int x) {
+        return x == NIL ? 0 : total[x];
+    }
+
+    private int nextPriority() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= left.length) return;
+        int n = Math.max(capacity, Math.max(16, left.length * 2));
+        left = Arrays.copyOf(left, n);
+        right = Arrays.copyOf(right, n);
+        parent = Arrays.copyOf(parent, n);
+        priority = Arrays.copyOf(priority, n);
+        weight = Arrays.copyOf(weight, n);
+        visible = Arrays.copyOf(visible, n);
+        length = Arrays.copyOf(length, n);
+        total = Arrays.copyOf(total, n);
+        present = Arrays.copyOf(present, n);
+    }
+}
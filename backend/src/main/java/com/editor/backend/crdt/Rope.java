@@ -0,0 +1,215 @@
+package com.editor.backend.crdt;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An immutable rope: text stored as a balanced tree of chunks.
+ * Edits return a new rope that shares every untouched subtree with the old one,
+ * so an edit costs O(log n) and an older rope stays valid as a snapshot.
+ * The tree is a treap keyed by position; each node holds one chunk and caches
+ * the length of its subtree. Edits that fit inside one chunk rewrite that chunk
+ * instead of adding nodes, which keeps typing from fragmenting the tree.
+ */
+public final class Rope {
+
+    public static final Rope EMPTY = new Rope(null);
+
+    private static final int MAX_CHUNK = 512;
+
+    private final Node root;
+
+    // Built on the first toString() and shared by later reads
+    private String flat;
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    public int length() {
+        return length(root);
+    }
+
+    public char charAt(int index) {
+        checkRange(index, index + 1);
+        Node n = root;
+        while (true) {
+            int ll = length(n.left);
+            if (index < ll) {
+                n = n.left;
+            } else if (index < ll + n.chunk.length()) {
+                return n.chunk.charAt(index - ll);
+            } else {
+                index -= ll + n.chunk.length();
+                n = n.right;
+            }
+        }
+    }
+
+    public Rope insert(int index, CharSequence text) {
+        checkRange(index, index);
+        if (text.length() == 0) return this;
+
+        String s = text.toString();
+        Node patched = root == null ? null : insertInChunk(root, index, s);
+        if (patched != null) return new Rope(patched);
+
+        Node[] parts = split(root, index);
+        return new Rope(merge(merge(parts[0], chunks(s)), parts[1]));
+    }
+
+    /** Removes the characters in [from, to). */
+    public Rope delete(int from, int to) {
+        checkRange(from, to);
+        if (from == to) return this;
+
+        Node patched = deleteInChunk(root, from, to);
+        if (patched != null) return new Rope(patched);
+
+        Node[] head = split(root, from);
+        Node[] tail = split(head[1], to - from);
+        return new Rope(merge(head[0], tail[1]));
+    }
+
+    /** The characters in [from, to). */
+    public String substring(int from, int to) {
+        checkRange(from, to);
+        if (flat != null) return flat.substring(from, to);
+        StringBuilder sb = new StringBuilder(to - from);
+        appendTo(root, from, to, sb);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        String s = flat;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder(length());
+            appendTo(root, 0, length(), sb);
+            s = sb.toString();
+            flat = s; // racy but idempotent, String is safely published
+        }
+        return s;
+    }
+
+    // --- Treap operations ---
+
+    private static final class Node {
+        final String chunk;
+        final Node left;
+        final Node right;
+        final int priority;
+        final int length;
+
+        Node(String chunk, Node left, Node right, int priority) {
+            this.chunk = chunk;
+            this.left = left;
+            this.right = right;
+            this.priority = priority;
+            this.length = length(left) + chunk.length() + length(right);
+        }
+
+        Node with(Node left, Node right) {
+            return new Node(chunk, left, right, priority);
+        }
+    }
+
+    private static int length(Node n) {
+        return n == null ? 0 : n.length;
+    }
+
+    // Splices text into the chunk at index when it still fits, or returns null
+    private static Node insertInChunk(Node n, int index, String text) {
+        int ll = length(n.left);
+        int end = ll + n.chunk.length();
+        if (index < ll) {
+            Node left = insertInChunk(n.left, index, text);
+            return left == null ? null : n.with(left, n.right);
+        }
+        if (index > end) {
+            Node right = insertInChunk(n.right, index - end, text);
+            return right == null ? null : n.with(n.left, right);
+        }
+        if (n.chunk.length() + text.length() > MAX_CHUNK) return null;
+        int k = index - ll;
+        String chunk = n.chunk.substring(0, k) + text + n.chunk.substring(k);
+        return new Node(chunk, n.left, n.right, n.priority);
+    }
+
+    // Cuts [from, to) out of a single chunk without emptying it, or returns null
+    private static Node deleteInChunk(Node n, int from, int to) {
+        int ll = length(n.left);
+        int end = ll + n.chunk.length();
+        if (to <= ll) {
+            Node left = deleteInChunk(n.left, from, to);
+            return left == null ? null : n.with(left, n.right);
+        }
+        if (from >= end) {
+            Node right = deleteInChunk(n.right, from - end, to - end);
+            return right == null ? null : n.with(n.left, right);
+        }
+        if (from < ll || to > end || to - from == n.chunk.length()) return null;
+        String chunk = n.chunk.substring(0, from - ll) + n.chunk.substring(to - ll);
+        return new Node(chunk, n.left, n.right, n.priority);
+    }
+
+    // Splits n into the first index characters and the rest
+    private static Node[] split(Node n, int index) {
+        if (n == null) return new Node[]{null, null};
+        int ll = length(n.left);
+        int end = ll + n.chunk.length();
+        if (index <= ll) {
+            Node[] parts = split(n.left, index);
+            return new Node[]{parts[0], n.with(parts[1], n.right)};
+        }
+        if (index >= end) {
+            Node[] parts = split(n.right, index - end);
+            return new Node[]{n.with(n.left, parts[0]), parts[1]};
+        }
+        // Both halves keep the node's priority, which preserves the heap order
+        int k = index - ll;
+        return new Node[]{
+                new Node(n.chunk.substring(0, k), n.left, null, n.priority),
+                new Node(n.chunk.substring(k), null, n.right, n.priority)
+        };
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority >= b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        }
+        return b.with(merge(a, b.left), b.right);
+    }
+
+    // A subtree holding text cut into chunks of at most MAX_CHUNK characters
+    private static Node chunks(String text) {
+        Node result = null;
+        for (int i = 0; i < text.length(); i += MAX_CHUNK) {
+            String chunk = text.substring(i, Math.min(text.length(), i + MAX_CHUNK));
+            result = merge(result, new Node(chunk, null, null, ThreadLocalRandom.current().nextInt()));
+        }
+        return result;
+    }
+
+    private static void appendTo(Node n, int from, int to, StringBuilder sb) {
+        if (n == null || from >= to) return;
+        int ll = length(n.left);
+        int end = ll + n.chunk.length();
+        if (from < ll) {
+            appendTo(n.left, from, Math.min(to, ll), sb);
+        }
+        if (from < end && to > ll) {
+            sb.append(n.chunk, Math.max(from, ll) - ll, Math.min(to, end) - ll);
+        }
+        if (to > end) {
+            appendTo(n.right, Math.max(from, end) - end, to - end, sb);
+        }
+    }
+
+    private void checkRange(int from, int to) {
+        if (from < 0 || to > length() || from > to) {
+            throw new IndexOutOfBoundsException("range [" + from + ", " + to + ") of length " + length());
+        }
+    }
+}
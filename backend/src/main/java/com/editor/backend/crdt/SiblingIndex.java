@@ -0,0 +1,127 @@
+package com.editor.backend.crdt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds where a new child goes among its siblings.
+ * Siblings are ordered by clock descending, ties broken by user id ascending.
+ * Narrow parents are scanned along the store's sibling links. Once a scan has
+ * to pass threshold siblings, the parent's children also get a sorted array of
+ * their packed ids, so hot parents such as the root, or a spot where many users
+ * type at once, are placed with a binary search from then on. The user id is
+ * only looked up when two clocks tie.
+ */
+public class SiblingIndex {
+
+    public static final int DEFAULT_THRESHOLD = 16;
+
+    private final NodeStore nodes;
+    private final SiteDictionary sites;
+    private final int threshold;
+
+    // Parent handle -> its children in sibling order
+    private final Map<Integer, Children> wide = new HashMap<>();
+
+    public SiblingIndex(NodeStore nodes, SiteDictionary sites, int threshold) {
+        this.nodes = nodes;
+        this.sites = sites;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Links child under parent at its sorted position, updating the store's sibling
+     * links. Returns the sibling it was placed after, or NIL when it is the first child.
+     */
+    public int link(int parent, int child) {
+        long id = nodes.id(child);
+        Children children = wide.get(parent);
+        int prev;
+        if (children != null) {
+            int i = children.search(id);
+            prev = i == 0 ? NodeStore.NIL : children.handles[i - 1];
+            children.insert(i, id, child);
+        } else {
+            prev = NodeStore.NIL;
+            int count = 0;
+            for (int c = nodes.firstChild(parent); c != NodeStore.NIL && compare(nodes.id(c), id) < 0; c = nodes.nextSibling(c)) {
+                prev = c;
+                count++;
+            }
+            if (count >= threshold) {
+                nodes.linkChild(parent, prev, child);
+                build(parent);
+                return prev;
+            }
+        }
+        nodes.linkChild(parent, prev, child);
+        return prev;
+    }
+
+    /** Carries the index of from's children over to to, for when a split hands them down. */
+    public void moveChildren(int from, int to) {
+        Children children = wide.remove(from);
+        if (children != null) {
+            wide.put(to, children);
+        }
+    }
+
+    /**
+     * Drops the sorted array of parent's children, for when their order changed
+     * under it. It is rebuilt from the sibling links on the next long scan.
+     */
+    public void forget(int parent) {
+        wide.remove(parent);
+    }
+
+    /** Negative when the span starting at id a comes before the one at id b among siblings. */
+    public int compare(long a, long b) {
+        int cmp = Long.compare(NodeIds.clock(b), NodeIds.clock(a));
+        if (cmp == 0 && NodeIds.site(a) != NodeIds.site(b)) {
+            cmp = sites.userId(NodeIds.site(a)).compareTo(sites.userId(NodeIds.site(b)));
+        }
+        return cmp;
+    }
+
+    private void build(int parent) {
+        Children children = new Children();
+        for (int c = nodes.firstChild(parent); c != NodeStore.NIL; c = nodes.nextSibling(c)) {
+            children.insert(children.size, nodes.id(c), c);
+        }
+        wide.put(parent, children);
+    }
+
+    private final class Children {
+        long[] ids = new long[32];
+        int[] handles = new int[32];
+        int size;
+
+        // Position of the first sibling that id comes before
+        int search(long id) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(ids[mid], id) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        void insert(int i, long id, int handle) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            System.arraycopy(handles, i, handles, i + 1, size - i);
+            ids[i] = id;
+            handles[i] = handle;
+            size++;
+        }
+    }
+}
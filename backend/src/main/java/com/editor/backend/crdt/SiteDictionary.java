@@ -0,0 +1,76 @@
+package com.editor.backend.crdt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-document dictionary mapping user ids to compact site indexes.
+ * It also converts packed node ids to and from their "userId:clock" string
+ * form, which is only needed at the JSON/STOMP boundary.
+ */
+public class SiteDictionary {
+
+    public static final String SYSTEM_SITE = "system";
+    public static final String ROOT_ID = "root";
+
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> userIds = new ArrayList<>();
+
+    public SiteDictionary() {
+        intern(SYSTEM_SITE);
+    }
+
+    /** Returns the site index of the user, assigning the next free one if needed. */
+    public int intern(String userId) {
+        Integer site = indexes.get(userId);
+        if (site != null) return site;
+
+        if (userIds.size() > NodeIds.MAX_SITE) {
+            throw new IllegalStateException("Too many sites in one document");
+        }
+        int next = userIds.size();
+        indexes.put(userId, next);
+        userIds.add(userId);
+        return next;
+    }
+
+    /** Returns the site index of the user, or -1 if it never wrote to this document. */
+    public int lookup(String userId) {
+        Integer site = indexes.get(userId);
+        return site == null ? -1 : site;
+    }
+
+    public String userId(int site) {
+        return userIds.get(site);
+    }
+
+    public int size() {
+        return userIds.size();
+    }
+
+    public String format(long id) {
+        if (id == NodeIds.ROOT) return ROOT_ID;
+        return userId(NodeIds.site(id)) + ":" + NodeIds.clock(id);
+    }
+
+    /** Parses a "userId:clock" id, returning NodeIds.NONE if it cannot exist here. */
+    public long parse(String id) {
+        if (id == null) return NodeIds.NONE;
+        if (id.equals(ROOT_ID)) return NodeIds.ROOT;
+
+        int sep = id.lastIndexOf(':');
+        if (sep <= 0) return NodeIds.NONE;
+
+        int site = lookup(id.substring(0, sep));
+        if (site < 0) return NodeIds.NONE;
+        try {
+            long clock = Long.parseLong(id.substring(sep + 1));
+            if (clock < 0 || clock > NodeIds.MAX_CLOCK) return NodeIds.NONE;
+            return NodeIds.pack(site, clock);
+        } catch (NumberFormatException e) {
+            return NodeIds.NONE;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.editor.backend.crdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the span that contains a given character id.
+ * For every site it keeps the start clocks of that site's spans in a sorted
+ * primitive array, so a lookup is one binary search. Sites usually produce
+ * spans with increasing clocks, which makes registration an append.
+ */
+public class SpanIndex {
+
+    private final List<SiteSpans> sites = new ArrayList<>();
+
+    /** Registers a span starting at the given packed id. */
+    public void add(long startId, int handle) {
+        int site = NodeIds.site(startId);
+        while (sites.size() <= site) {
+            sites.add(new SiteSpans());
+        }
+        sites.get(site).add(NodeIds.clock(startId), handle);
+    }
+
+    /**
+     * Registers many spans at once. They are sorted first and then appended, where
+     * adding them one by one in any other order would shift the arrays for each.
+     */
+    public void addAll(long[] startIds, int[] handles, int count) {
+        long[] sorted = Arrays.copyOf(startIds, count);
+        Arrays.sort(sorted);
+        int[] sortedHandles = new int[count];
+        for (int i = 0; i < count; i++) {
+            sortedHandles[Arrays.binarySearch(sorted, startIds[i])] = handles[i];
+        }
+        for (int i = 0; i < count; i++) {
+            add(sorted[i], sortedHandles[i]);
+        }
+    }
+
+    /** Forgets the span starting at the given packed id. */
+    public void remove(long startId) {
+        SiteSpans spans = spans(startId);
+        if (spans != null) {
+            spans.remove(NodeIds.clock(startId));
+        }
+    }
+
+    /**
+     * Handle of the span with the greatest start at or before id on the same site,
+     * or NodeStore.NIL. The caller checks that the span is long enough to contain id.
+     */
+    public int floor(long id) {
+        SiteSpans spans = spans(id);
+        if (spans == null) return NodeStore.NIL;
+        int i = spans.search(NodeIds.clock(id));
+        if (i >= 0) return spans.handles[i];
+        int before = -i - 2;
+        return before < 0 ? NodeStore.NIL : spans.handles[before];
+    }
+
+    /** Packed id of the first span start after id on the same site, or NodeIds.NONE. */
+    public long nextStart(long id) {
+        SiteSpans spans = spans(id);
+        if (spans == null) return NodeIds.NONE;
+        int i = spans.search(NodeIds.clock(id));
+        int after = i >= 0 ? i + 1 : -i - 1;
+        if (after >= spans.size) return NodeIds.NONE;
+        return NodeIds.pack(NodeIds.site(id), spans.starts[after]);
+    }
+
+    private SiteSpans spans(long id) {
+        int site = NodeIds.site(id);
+        return site < sites.size() ? sites.get(site) : null;
+    }
+
+    private static final class SiteSpans {
+        long[] starts = new long[8];
+        int[] handles = new int[8];
+        int size;
+
+        int search(long clock) {
+            return Arrays.binarySearch(starts, 0, size, clock);
+        }
+
+        void add(long clock, int handle) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+            int i = size == 0 || starts[size - 1] < clock ? size : -search(clock) - 1;
+            System.arraycopy(starts, i, starts, i + 1, size - i);
+            System.arraycopy(handles, i, handles, i + 1, size - i);
+            starts[i] = clock;
+            handles[i] = handle;
+            size++;
+        }
+
+        void remove(long clock) {
+            int i = search(clock);
+            if (i < 0) return;
+            System.arraycopy(starts, i + 1, starts, i, size - i - 1);
+            System.arraycopy(handles, i + 1, handles, i, size - i - 1);
+            size--;
+        }
+    }
+}
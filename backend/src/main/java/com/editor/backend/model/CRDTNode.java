@@ -1,86 +1,94 @@
 package com.editor.backend.model;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.editor.backend.crdt.NodeIds;
+import com.editor.backend.crdt.NodeStore;
 
 /**
- * A CRDTNode represents a single character in the document.
- * Each node knows where it was inserted (parentId),
- * and maintains a list of children (for tree structure).
+ * A CRDTNode represents a run of characters typed or pasted by one user
+ * with consecutive clocks (a span). Nodes are owned by a HeapNodeStore,
+ * which links them into a tree through store handles
+ * (parent, first child, next sibling).
  */
 public class CRDTNode {
 
-    // Unique identifier of this character (e.g., "u1:4")
-    private String id;
+    // Packed identifier of the first character (site index + clock, see NodeIds)
+    private final long id;
 
-    // ID of the character this was inserted after
-    private String parentId;
+    // The actual characters; character k has id (id + k)
+    private final StringBuilder text;
 
-    // The actual character (e.g., 'a', 'b', etc.)
-    private char value;
-
-    // True if the character has been logically deleted (tombstone)
+    // True if the characters have been logically deleted (tombstone)
     private boolean deleted;
 
-    // Lamport timestamp when inserted (used for causal ordering)
-    private long lamportClock;
-
-    // The user who inserted this character
-    private String userId;
-
     // Real-world time when the node was created (optional UI purposes)
     private long createdAt;
 
-    // List of IDs of children inserted after this node (preserves ordering)
-    private List<String> children;
+    // Store handles of the node this was inserted after, its first child and next sibling
+    private int parent = NodeStore.NIL;
+    private int firstChild = NodeStore.NIL;
+    private int nextSibling = NodeStore.NIL;
 
     // --- Constructor ---
-    public CRDTNode(String id, String parentId, char value, boolean deleted, long lamportClock, String userId, long createdAt) {
+    public CRDTNode(long id, CharSequence text, boolean deleted, long createdAt) {
         this.id = id;
-        this.parentId = parentId;
-        this.value = value;
+        this.text = new StringBuilder(text);
         this.deleted = deleted;
-        this.lamportClock = lamportClock;
-        this.userId = userId;
         this.createdAt = createdAt;
-        this.children = new ArrayList<>();
     }
 
     // --- Getters ---
-    public String getId() {
+    public long getId() {
         return id;
     }
 
-    public String getParentId() {
-        return parentId;
-    }
-
-    public char getValue() {
-        return value;
+    public StringBuilder getText() {
+        return text;
     }
 
     public boolean isDeleted() {
         return deleted;
     }
 
+    // Lamport timestamp of the first character (used for causal ordering)
     public long getLamportClock() {
-        return lamportClock;
+        return NodeIds.clock(id);
     }
 
-    public String getUserId() {
-        return userId;
+    // Site index of the user who inserted this character
+    public int getSite() {
+        return NodeIds.site(id);
     }
 
     public long getCreatedAt() {
         return createdAt;
     }
 
-    public List<String> getChildren() {
-        return children;
+    public int getParent() {
+        return parent;
+    }
+
+    public int getFirstChild() {
+        return firstChild;
+    }
+
+    public int getNextSibling() {
+        return nextSibling;
     }
 
     // --- Setters ---
     public void setDeleted(boolean deleted) {
         this.deleted = deleted;
     }
+
+    public void setParent(int parent) {
+        this.parent = parent;
+    }
+
+    public void setFirstChild(int firstChild) {
+        this.firstChild = firstChild;
+    }
+
+    public void setNextSibling(int nextSibling) {
+        this.nextSibling = nextSibling;
+    }
 }
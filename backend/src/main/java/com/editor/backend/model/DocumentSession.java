@@ -1,6 +1,12 @@
 package com.editor.backend.model;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
 import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentActor;
 import java.util.List;
 
 
@@ -9,13 +15,39 @@ public class DocumentSession {
     private String editorCode;
     private String viewerCode;
     private CRDTService docCRDT;
+    private DocumentActor actor;
     private List<User> docUsers;
 
+    // Last time the document was looked up, for evicting cold ones
+    private volatile long lastAccessed = System.currentTimeMillis();
+
+    // Latest cursor move per user since the last cursor tick; a newer move overwrites an older one unseen
+    private final Map<String, String> cursorMoves = new ConcurrentHashMap<>();
+
     public DocumentSession () {
-        this.documentId = UUID.randomUUID().toString();
-        this.editorCode = "E-" + UUID.randomUUID().toString().substring(0, 8);
-        this.viewerCode = "V-" + UUID.randomUUID().toString().substring(0, 8);
-        this.docCRDT = new CRDTService();
+        this(new CRDTService());
+    }
+
+    // Applies work on the calling thread and drops broadcasts; for tools and tests
+    public DocumentSession(CRDTService docCRDT) {
+        this(docCRDT, Runnable::run, (destination, payload) -> { });
+    }
+
+    public DocumentSession(CRDTService docCRDT, Executor executor, DocumentActor.Outbox outbox) {
+        this(UUID.randomUUID().toString(),
+                "E-" + UUID.randomUUID().toString().substring(0, 8),
+                "V-" + UUID.randomUUID().toString().substring(0, 8),
+                docCRDT, executor, outbox);
+    }
+
+    // Restores a document that already has an id and join codes, e.g. one read back from disk
+    public DocumentSession(String documentId, String editorCode, String viewerCode,
+                           CRDTService docCRDT, Executor executor, DocumentActor.Outbox outbox) {
+        this.documentId = documentId;
+        this.editorCode = editorCode;
+        this.viewerCode = viewerCode;
+        this.docCRDT = docCRDT;
+        this.actor = new DocumentActor(documentId, docCRDT, executor, outbox);
     }
 
     public boolean isEditor(String code) {
@@ -38,11 +70,39 @@ public class DocumentSession {
         return this.documentId;
     }
 
-    //* Maybe Change Later
+    // Not thread-safe: touch the CRDT only from work queued on getActor()
     public CRDTService getDocCRDT() {
         return this.docCRDT;
     }
 
+    // Single writer that serializes every access to this document's CRDT
+    public DocumentActor getActor() {
+        return this.actor;
+    }
+
+    public long getLastAccessed() {
+        return this.lastAccessed;
+    }
+
+    public void markAccessed() {
+        this.lastAccessed = System.currentTimeMillis();
+    }
+
+    public void moveCursor(String userId, String nodeId) {
+        cursorMoves.put(userId, nodeId);
+    }
+
+    // Takes the moves recorded so far; one that lands meanwhile stays for the next tick
+    public Map<String, String> takeCursorMoves() {
+        Map<String, String> moves = new HashMap<>();
+        for (Map.Entry<String, String> move : cursorMoves.entrySet()) {
+            if (cursorMoves.remove(move.getKey(), move.getValue())) {
+                moves.put(move.getKey(), move.getValue());
+            }
+        }
+        return moves;
+    }
+
     public void addToUsers(User newUser) {
         this.docUsers.add(newUser);
     }
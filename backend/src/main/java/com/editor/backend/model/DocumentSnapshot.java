@@ -0,0 +1,48 @@
+package com.editor.backend.model;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.editor.backend.crdt.Rope;
+
+/**
+ * Read-only view of a document as of one applied batch.
+ * The document's actor publishes a fresh snapshot after every batch, and readers
+ * take the latest one without waiting for or racing with the writer. Snapshots are
+ * cheap: the text is a persistent rope shared with the live document, and the
+ * comment and cursor collections are only copied when they changed.
+ */
+public class DocumentSnapshot {
+
+    private final long sequence;
+    private final Rope text;
+    private final List<Comment> comments;
+    private final Map<String, Cursor> cursors;
+
+    public DocumentSnapshot(long sequence, Rope text, List<Comment> comments, Map<String, Cursor> cursors) {
+        this.sequence = sequence;
+        this.text = text;
+        this.comments = comments;
+        this.cursors = cursors;
+    }
+
+    // Sequence of the last change included in this snapshot
+    public long getSequence() { return sequence; }
+
+    public String getDocument() { return text.toString(); }
+
+    public int getLength() { return text.length(); }
+
+    // Text between two visible indices, both inclusive; empty when out of range
+    public String getTextBetweenIndices(int startIndex, int endIndex) {
+        if (startIndex < 0 || endIndex >= text.length() || startIndex > endIndex) return "";
+        return text.substring(startIndex, endIndex + 1);
+    }
+
+    public List<Comment> getAllComments() { return comments; }
+
+    public Cursor getCursor(String userId) { return cursors.get(userId); }
+
+    public Collection<Cursor> getAllCursors() { return cursors.values(); }
+}
@@ -9,6 +9,7 @@ public class Operation {
     private char value;
     private long clock;
     private String userId;
+    private long sequence;       // server sequence once applied, acknowledged by clients
 
     public Operation(Type type, String nodeId, String parentId, char value, long clock, String userId) {
         this.type = type;
@@ -25,4 +26,7 @@ public class Operation {
     public char getValue() { return value; }
     public long getClock() { return clock; }
     public String getUserId() { return userId; }
+    public long getSequence() { return sequence; }
+
+    public void setSequence(long sequence) { this.sequence = sequence; }
 }
@@ -0,0 +1,25 @@
+package com.editor.backend.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Sent by a reconnecting client: the highest clock it holds per user, and the last
+// server sequence it applied
+public class SyncRequest {
+    private Map<String, Long> stateVector = new HashMap<>();
+    private long sequence;
+
+    public SyncRequest() {
+    }
+
+    public SyncRequest(Map<String, Long> stateVector, long sequence) {
+        this.stateVector = stateVector;
+        this.sequence = sequence;
+    }
+
+    public Map<String, Long> getStateVector() { return stateVector; }
+    public long getSequence() { return sequence; }
+
+    public void setStateVector(Map<String, Long> stateVector) { this.stateVector = stateVector; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
+}
@@ -0,0 +1,64 @@
+package com.editor.backend.model;
+
+import java.util.List;
+
+// Reply to a SyncRequest. A delta holds the spans the client is missing plus the runs of
+// characters it holds that were deleted or restored since its sequence; the runs do not
+// overlap. A snapshot replaces the client's copy: every span of the document, tombstones
+// included.
+public class SyncResponse {
+    private boolean snapshot;
+    private long sequence;           // server sequence the client is at once this is applied
+    private List<Span> spans;        // parents come before their children
+    private List<Run> deleted;
+    private List<Run> restored;
+
+    public SyncResponse(boolean snapshot, long sequence, List<Span> spans, List<Run> deleted, List<Run> restored) {
+        this.snapshot = snapshot;
+        this.sequence = sequence;
+        this.spans = spans;
+        this.deleted = deleted;
+        this.restored = restored;
+    }
+
+    public boolean isSnapshot() { return snapshot; }
+    public long getSequence() { return sequence; }
+    public List<Span> getSpans() { return spans; }
+    public List<Run> getDeleted() { return deleted; }
+    public List<Run> getRestored() { return restored; }
+
+    // Characters with consecutive clocks from id on, each inserted after the one before
+    // it and the first one after parentId
+    public static class Span {
+        private String id;
+        private String parentId;
+        private String text;
+        private boolean deleted;
+
+        public Span(String id, String parentId, String text, boolean deleted) {
+            this.id = id;
+            this.parentId = parentId;
+            this.text = text;
+            this.deleted = deleted;
+        }
+
+        public String getId() { return id; }
+        public String getParentId() { return parentId; }
+        public String getText() { return text; }
+        public boolean isDeleted() { return deleted; }
+    }
+
+    // Characters with consecutive clocks from id on
+    public static class Run {
+        private String id;
+        private int length;
+
+        public Run(String id, int length) {
+            this.id = id;
+            this.length = length;
+        }
+
+        public String getId() { return id; }
+        public int getLength() { return length; }
+    }
+}
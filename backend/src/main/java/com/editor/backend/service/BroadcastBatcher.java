@@ -0,0 +1,143 @@
+package com.editor.backend.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.editor.backend.cluster.ClusterBroadcaster;
+import com.editor.backend.model.Operation;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Coalesces the operations broadcast on a document's topic, /topic/Document/{id},
+ * into one frame per window. The first operation of a window is held for at most
+ * window-ms, and a window holding max-ops operations goes at once, so a subscriber
+ * gets at most one frame per window however many people are typing, and no
+ * operation waits longer than the window.
+ *
+ * With batching on, operations go out as a JSON array (or one binary frame) even
+ * when a window holds only one, and the frame carries the header
+ * {@code editor-batch: true} ({@link com.editor.backend.wire.WireFormat#BATCH_HEADER});
+ * a client reads the body as a list of operations when it is present and as a
+ * single operation otherwise. Every other broadcast, and every broadcast with
+ * batching off, is passed on unchanged; a broadcast to a document's topic that is
+ * not an operation first sends the window ahead of it, keeping the topic in order.
+ */
+@Component
+public class BroadcastBatcher implements DocumentActor.Outbox {
+
+    private static final String DOCUMENT_TOPIC = "/topic/Document/";
+
+    private final DocumentActor.Outbox outbox;
+    private final long windowMs;
+    private final int maxOps;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    @Autowired
+    public BroadcastBatcher(ClusterBroadcaster outbox,
+                            @Value("${editor.broadcast.batch-window-ms:0}") long windowMs,
+                            @Value("${editor.broadcast.batch-max-ops:64}") int maxOps) {
+        this((DocumentActor.Outbox) outbox, windowMs, maxOps);
+    }
+
+    BroadcastBatcher(DocumentActor.Outbox outbox, long windowMs, int maxOps) {
+        this.outbox = outbox;
+        this.windowMs = windowMs;
+        this.maxOps = Math.max(1, maxOps);
+        this.timer = windowMs > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "broadcast-batcher");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @Override
+    public void send(String destination, Object payload) {
+        if (timer == null || !isDocumentTopic(destination)) {
+            outbox.send(destination, payload);
+            return;
+        }
+        // A window retired by its timer is already out of the map, so the retry gets a fresh one
+        Window window;
+        do {
+            window = windows.computeIfAbsent(destination, Window::new);
+        } while (!window.accept(payload));
+    }
+
+    // Sends every open window; nothing is held back once the node stops
+    @PreDestroy
+    public void close() {
+        if (timer == null) return;
+        timer.shutdownNow();
+        for (Window window : windows.values()) {
+            window.flush();
+        }
+    }
+
+    private static boolean isDocumentTopic(String destination) {
+        return destination.startsWith(DOCUMENT_TOPIC) && destination.indexOf('/', DOCUMENT_TOPIC.length()) < 0;
+    }
+
+    // Operations held for one destination; sends happen under its lock, so frames leave in order
+    private final class Window {
+        private final String destination;
+        private List<Operation> pending = new ArrayList<>();
+        private ScheduledFuture<?> deadline;
+        private boolean retired;
+
+        Window(String destination) {
+            this.destination = destination;
+        }
+
+        // False once retired, for the caller to retry on the current window
+        synchronized boolean accept(Object payload) {
+            if (retired) return false;
+            if (!(payload instanceof Operation op)) {
+                flush();
+                outbox.send(destination, payload);
+            } else {
+                pending.add(op);
+                if (pending.size() >= maxOps) {
+                    flush();
+                } else if (deadline == null) {
+                    deadline = timer.schedule(this::expire, windowMs, TimeUnit.MILLISECONDS);
+                }
+            }
+            return true;
+        }
+
+        // The window is over; a destination that went quiet does not keep one
+        synchronized void expire() {
+            deadline = null;
+            flush();
+            retired = true;
+            windows.remove(destination, this);
+        }
+
+        synchronized void flush() {
+            if (deadline != null) {
+                deadline.cancel(false);
+                deadline = null;
+            }
+            if (pending.isEmpty()) return;
+            List<Operation> batch = pending;
+            pending = new ArrayList<>();
+            try {
+                outbox.send(destination, batch);
+            } catch (RuntimeException e) {
+                System.out.println("[Server] : Broadcast failed on " + destination + " - " + e);
+            }
+        }
+    }
+}
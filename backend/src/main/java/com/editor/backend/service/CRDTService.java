@@ -1,30 +1,232 @@
 package com.editor.backend.service;
 
+import java.nio.CharBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.stereotype.Service;
 
-import com.editor.backend.model.CRDTNode;
+import com.editor.backend.crdt.AckVector;
+import com.editor.backend.crdt.ChangeLog;
+import com.editor.backend.crdt.HeapNodeStore;
+import com.editor.backend.crdt.IntervalIndex;
+import com.editor.backend.crdt.NodeIds;
+import com.editor.backend.crdt.NodeStore;
+import com.editor.backend.crdt.OrderIndex;
+import com.editor.backend.crdt.Rope;
+import com.editor.backend.crdt.SiblingIndex;
+import com.editor.backend.crdt.SiteDictionary;
+import com.editor.backend.crdt.SpanIndex;
 import com.editor.backend.model.Comment;
 import com.editor.backend.model.Cursor;
+import com.editor.backend.model.DocumentSnapshot;
 import com.editor.backend.model.Operation;
+import com.editor.backend.model.SyncResponse;
 
 @Service
 public class CRDTService {
 
-    private final String ROOT_ID = "root";
-    private final Map<String, CRDTNode> nodeMap = new HashMap<>();
-    private final Map<String, Stack<Operation>> undoStacks = new HashMap<>();
-    private final Map<String, Stack<Operation>> redoStacks = new HashMap<>();
-    private final Map<String, Cursor> userCursors = new HashMap<>();
+    // Tombstone flips remembered for reconnecting clients; older gaps get a full snapshot
+    private static final int SYNC_LOG_CAPACITY = 10_000;
+
+    // Rough heap cost of a span across the store and indexes, of a comment, and of an
+    // undo entry; only used to weigh documents against each other for eviction
+    private static final int SPAN_BYTES = 160;
+    private static final int COMMENT_BYTES = 512;
+    private static final int HISTORY_ENTRY_BYTES = 64;
+
+    private final SiteDictionary sites = new SiteDictionary();
+    private final EditHistory history;
+    // Cursors are anchored to character ids; visual indices are derived from the order index on read
+    private final Map<String, CursorAnchor> userCursors = new HashMap<>();
     private final Map<String, Comment> commentMap = new HashMap<>();
 
+    // Comment ranges in document order; comments whose anchors are not attached yet wait aside
+    private final IntervalIndex commentRanges = new IntervalIndex(this::compareIds);
+    private final Set<String> unplacedComments = new HashSet<>();
+
+    // Read-only copies handed to snapshots, rebuilt only after a change (null when stale).
+    // Cursor indices also move with the text, so their copy is tied to a sequence.
+    private List<Comment> commentsView;
+    private Map<String, Cursor> cursorsView;
+    private long cursorsViewSequence;
+
+    // Span storage; store handles double as order index handles
+    private final NodeStore nodes;
+    private final int rootHandle;
+
+    // Character id -> handle of the span containing it
+    private final SpanIndex spans = new SpanIndex();
+
+    // Document order of every attached span, weighted by visible characters
+    private final OrderIndex order = new OrderIndex();
+
+    // Sorted placement among the children of wide parents
+    private final SiblingIndex siblings;
+
+    // Visible text, kept in step with every visibility change so reads need no walk
+    private Rope visibleText = Rope.EMPTY;
+
+    // Server-side change counter (the clock of site 0) and what each replica has seen of it
+    private long sequence;
+    private final AckVector acks = new AckVector();
+    private final ChangeLog changes = new ChangeLog(SYNC_LOG_CAPACITY);
+
+    // Durable record of every change; nothing by default
+    private DocumentJournal journal = DocumentJournal.NONE;
+
+    // Sequence of the last change to each span: creation, growth, a new child, a tombstone flip
+    private long[] touched = new long[64];
+
+    // Runs of characters deleted since the last collection, as first id and length; the
+    // next collection checks them again
+    private long[] tombstones = new long[64];
+    private int[] tombstoneLengths = new int[64];
+    private int tombstoneCount;
+    private long reclaimed;
+
     public CRDTService() {
-        nodeMap.put(ROOT_ID, new CRDTNode(ROOT_ID, null, '#', false, 0, "system", System.currentTimeMillis()));
+        this(new HeapNodeStore());
+    }
+
+    public CRDTService(NodeStore nodes) {
+        this(nodes, SiblingIndex.DEFAULT_THRESHOLD);
+    }
+
+    // siblingIndexThreshold: sibling count past which a parent's children are binary searched
+    public CRDTService(NodeStore nodes, int siblingIndexThreshold) {
+        this(nodes, siblingIndexThreshold, new EditHistory());
+    }
+
+    public CRDTService(NodeStore nodes, int siblingIndexThreshold, EditHistory history) {
+        this.nodes = nodes;
+        this.history = history;
+        this.siblings = new SiblingIndex(nodes, sites, siblingIndexThreshold);
+        this.rootHandle = register(NodeIds.ROOT, "#");
+        order.insertAfter(OrderIndex.NIL, rootHandle, 0, 0);
+    }
+
+    public CRDTService(DocumentImage image) {
+        this(new HeapNodeStore(), SiblingIndex.DEFAULT_THRESHOLD, new EditHistory(), image);
+    }
+
+    // Builds a copy of a saved document in one pass over its columns. Spans arrive in
+    // document order, so each is linked after its previous sibling and appended to the
+    // order index as is: no sibling placement, no rotations, no per-character insert.
+    public CRDTService(NodeStore nodes, int siblingIndexThreshold, EditHistory history, DocumentImage image) {
+        this.nodes = nodes;
+        this.history = history;
+        this.siblings = new SiblingIndex(nodes, sites, siblingIndexThreshold);
+        this.sequence = image.sequence;
+        changes.forgetThrough(image.sequence); // when each tombstone was made is not saved
+        for (int s = 1; s < image.siteIds.length; s++) {
+            if (sites.intern(image.siteIds[s]) != s) {
+                throw new IllegalArgumentException("Duplicate site " + image.siteIds[s]);
+            }
+        }
+        this.rootHandle = register(NodeIds.ROOT, "#");
+
+        int n = image.spanCount;
+        int[] handles = new int[n + 1];
+        long[] ids = new long[n];
+        int[] weights = new int[n + 1];
+        int[] lengths = new int[n + 1];
+        handles[0] = rootHandle;
+        int[] lastChild = new int[n + 1]; // by slot + 1, the root being slot 0
+        Arrays.fill(lastChild, NodeStore.NIL);
+        StringBuilder visible = new StringBuilder();
+        int textStart = 0;
+        for (int i = 0; i < n; i++) {
+            int p = image.parent[i];
+            if (p < -1 || p >= i) {
+                throw new IllegalArgumentException("Span " + i + " comes before its parent " + p);
+            }
+            if (image.site[i] <= 0 || image.site[i] >= sites.size()) {
+                throw new IllegalArgumentException("Span " + i + " has unknown site " + image.site[i]);
+            }
+            long id = NodeIds.pack(image.site[i], image.clock[i]);
+            CharSequence text = CharBuffer.wrap(image.text, textStart, image.length[i]);
+            textStart += image.length[i];
+
+            int node = nodes.add(id, text);
+            touch(node);
+            ids[i] = id;
+            int parent = handles[p + 1];
+            nodes.linkChild(parent, lastChild[p + 1], node);
+            lastChild[p + 1] = node;
+            if (image.deleted[i]) {
+                nodes.setDeleted(node, true);
+                addTombstone(id, image.length[i]);
+            } else {
+                visible.append(text);
+            }
+            handles[i + 1] = node;
+            weights[i + 1] = weightOf(node);
+            lengths[i + 1] = lengthOf(node);
+        }
+        spans.addAll(ids, Arrays.copyOfRange(handles, 1, n + 1), n);
+        order.build(handles, weights, lengths, n + 1);
+        visibleText = Rope.EMPTY.insert(0, visible);
+
+        for (Comment comment : image.comments) {
+            commentMap.put(comment.getId(), comment);
+            placeComment(comment);
+        }
+        for (int c = 0; c < image.cursorCount; c++) {
+            userCursors.put(image.cursorUsers[c], new CursorAnchor(image.cursorAnchors[c], image.cursorUpdatedAt[c]));
+        }
+    }
+
+    // The durable state as columns, spans in document order; detached spans are left out
+    public DocumentImage toImage() {
+        int spanCount = 0;
+        int textLength = 0;
+        for (int node = nodes.nextInPreorder(rootHandle); node != NodeStore.NIL; node = nodes.nextInPreorder(node)) {
+            spanCount++;
+            textLength += nodes.length(node);
+        }
+
+        DocumentImage image = new DocumentImage(spanCount, textLength, userCursors.size());
+        image.sequence = sequence;
+        image.siteIds = new String[sites.size()];
+        for (int s = 0; s < sites.size(); s++) {
+            image.siteIds[s] = sites.userId(s);
+        }
+
+        int[] slotOf = new int[nodes.size()];
+        slotOf[rootHandle] = -1;
+        StringBuilder text = new StringBuilder(textLength);
+        int i = 0;
+        for (int node = nodes.nextInPreorder(rootHandle); node != NodeStore.NIL; node = nodes.nextInPreorder(node), i++) {
+            slotOf[node] = i;
+            long id = nodes.id(node);
+            image.site[i] = NodeIds.site(id);
+            image.clock[i] = NodeIds.clock(id);
+            image.length[i] = nodes.length(node);
+            image.parent[i] = slotOf[nodes.parent(node)];
+            image.deleted[i] = nodes.isDeleted(node);
+            nodes.appendTo(node, 0, nodes.length(node), text);
+        }
+        text.getChars(0, textLength, image.text, 0);
+
+        for (Comment c : commentMap.values()) {
+            image.comments.add(copyOf(c));
+        }
+        int c = 0;
+        for (Map.Entry<String, CursorAnchor> cursor : userCursors.entrySet()) {
+            image.cursorUsers[c] = cursor.getKey();
+            image.cursorAnchors[c] = cursor.getValue().nodeId;
+            image.cursorUpdatedAt[c] = cursor.getValue().updatedAt;
+            c++;
+        }
+        return image;
     }
 
     public void addComment(Comment comment) {
         commentMap.put(comment.getId(), comment);
+        journal.commentSaved(comment);
+        placeComment(comment);
+        commentsView = null;
     }
 
     public void addCommentFromIndexRange(String userId, String content, int startIndex, int endIndex) {
@@ -54,229 +256,863 @@ public class CRDTService {
     }
 
     public void deleteComment(String id) {
-        commentMap.remove(id);
+        if (commentMap.remove(id) != null) {
+            journal.commentRemoved(id);
+            commentRanges.remove(id);
+            unplacedComments.remove(id);
+            commentsView = null;
+        }
     }
 
     public void resolveComment(String id) {
         Comment c = commentMap.get(id);
         if (c != null) {
             c.setResolved(true);
+            journal.commentSaved(c);
+            commentsView = null;
         }
     }
 
-    private void removeCommentsRelatedToNode(String deletedNodeId) {
-        List<String> ordered = new ArrayList<>();
-        dfsCollectIds(ROOT_ID, ordered, true); // include deleted
-        int deletedIndex = ordered.indexOf(deletedNodeId);
+    // Indexes a comment's range, or parks it until both of its anchors are in the document
+    private void placeComment(Comment comment) {
+        String id = comment.getId();
+        long start = sites.parse(comment.getStartNodeId());
+        long end = sites.parse(comment.getEndNodeId());
+        commentRanges.remove(id);
+        unplacedComments.remove(id);
+        if (find(start) == NodeStore.NIL || find(end) == NodeStore.NIL) {
+            unplacedComments.add(id); // anchored on characters that have not arrived yet
+        } else if (isAttached(start) && isAttached(end) && compareIds(start, end) <= 0) {
+            commentRanges.add(id, start, end); // a reversed range never covers anything
+        }
+    }
 
-        if (deletedIndex == -1) return;
+    // Drops the comments covering any character in [fromId, toId], in document order
+    private void removeCommentsOverlapping(long fromId, long toId) {
+        if (!unplacedComments.isEmpty()) {
+            for (String id : new ArrayList<>(unplacedComments)) {
+                placeComment(commentMap.get(id));
+            }
+        }
+        if (commentRanges.size() == 0) return;
 
-        commentMap.values().removeIf(comment -> {
-            int start = ordered.indexOf(comment.getStartNodeId());
-            int end = ordered.indexOf(comment.getEndNodeId());
-            return start != -1 && end != -1 && deletedIndex >= start && deletedIndex <= end;
-        });
+        List<String> covering = commentRanges.overlapping(fromId, toId);
+        for (String id : covering) {
+            commentMap.remove(id);
+            commentRanges.remove(id);
+            journal.commentRemoved(id);
+        }
+        if (!covering.isEmpty()) {
+            commentsView = null;
+        }
     }
 
     public void insert(char value, String parentId, String userId, long clock) {
-        String id = userId + ":" + clock;
-        CRDTNode node = new CRDTNode(id, parentId, value, false, clock, userId, System.currentTimeMillis());
-        nodeMap.put(id, node);
+        insert(String.valueOf(value), sites.parse(parentId), sites.intern(userId), clock, Origin.TYPED);
+    }
+
+    // Inserts text as a chain of characters with consecutive clocks after parentId,
+    // skipping ids that were already applied. Returns the id of the last character.
+    // Typed characters may join the user's current burst in the undo history, a paste is
+    // a group of its own, and characters copied from elsewhere are not undoable here.
+    private long insert(CharSequence text, long parentId, int site, long clock, Origin origin) {
+        NodeIds.pack(site, clock + text.length() - 1); // reject runs that overflow the clock
+        sequence++;
+
+        // A character typed right after the user's last one joins their current burst
+        String user = sites.userId(site);
+        long now = history.now();
+        boolean append = origin == Origin.TYPED && history.continuable(user, Operation.Type.INSERT, now) == parentId;
 
-        CRDTNode parent = nodeMap.get(parentId);
-        if (parent != null) {
-            parent.getChildren().add(id);
-            sortChildren(parent);
+        long last = parentId;
+        int i = 0;
+        while (i < text.length()) {
+            long id = NodeIds.pack(site, clock + i);
+            if (find(id) != NodeStore.NIL) { // already applied
+                last = id;
+                i++;
+                continue;
+            }
+
+            // Take the longest run of fresh ids, stopping before the next existing span
+            int n = text.length() - i;
+            long nextStart = spans.nextStart(id);
+            if (nextStart != NodeIds.NONE) {
+                n = (int) Math.min(n, nextStart - id);
+            }
+            attach(text.subSequence(i, i + n), last, id);
+            if (origin != Origin.REPLAYED) {
+                history.record(user, Operation.Type.INSERT, id, n, append, now);
+                append = true;
+            }
+
+            last = id + n - 1;
+            i += n;
+        }
+        return last;
+    }
+
+    // Places fresh characters after parentId, growing the parent's span when they continue it
+    private void attach(CharSequence text, long parentId, long id) {
+        journal.inserted(sites.format(id), parentId == NodeIds.NONE ? null : sites.format(parentId), text);
+        int parent = find(parentId);
+        if (parent != NodeStore.NIL) {
+            int offset = (int) (parentId - nodes.id(parent));
+            if (offset < nodes.length(parent) - 1) {
+                split(parent, offset + 1); // children hang off a span's last character
+            }
+
+            if (parent != rootHandle
+                    && nodes.id(parent) + nodes.length(parent) == id
+                    && !nodes.isDeleted(parent)
+                    && nodes.firstChild(parent) == NodeStore.NIL
+                    && nodes.append(parent, text)) {
+                touch(parent);
+                if (order.contains(parent)) {
+                    order.setWeight(parent, weightOf(parent));
+                    order.setLength(parent, lengthOf(parent));
+                    visibleText = visibleText.insert(order.rank(parent) + offset + 1, text);
+                }
+                return;
+            }
         }
 
-        Operation op = new Operation(Operation.Type.INSERT, id, parentId, value, clock, userId);
-        undoStacks.computeIfAbsent(userId, k -> new Stack<>()).push(op);
-        redoStacks.computeIfAbsent(userId, k -> new Stack<>());
+        int node = register(id, text);
+        if (parent != NodeStore.NIL) {
+            touch(parent);
+            int prev = siblings.link(parent, node);
+            placeInOrder(parent, prev, node);
+            if (order.contains(node)) {
+                visibleText = visibleText.insert(order.rank(node), text);
+            }
+        }
     }
 
     public void delete(String id) {
-        CRDTNode node = nodeMap.get(id);
-        if (node != null && !node.isDeleted()) {
-            node.setDeleted(true);
-            Operation op = new Operation(Operation.Type.DELETE, id, node.getParentId(), node.getValue(), node.getLamportClock(), node.getUserId());
-            undoStacks.computeIfAbsent(node.getUserId(), k -> new Stack<>()).push(op);
-            redoStacks.computeIfAbsent(node.getUserId(), k -> new Stack<>());
-            removeCommentsRelatedToNode(id);
+        long nodeId = sites.parse(id);
+        int node = find(nodeId);
+        if (node != NodeStore.NIL && !nodes.isDeleted(node)) {
+            sequence++;
+            String owner = sites.userId(NodeIds.site(nodeId));
+            long now = history.now();
+            long previous = history.continuable(owner, Operation.Type.DELETE, now);
+            boolean append = previous != NodeIds.NONE && isNextTo(nodeId, previous);
+            setDeleted(nodeId, 1, true);
+            history.record(owner, Operation.Type.DELETE, nodeId, 1, append, now);
+            removeCommentsOverlapping(nodeId, nodeId);
         }
     }
 
-    public void undo(String userId) {
-        Stack<Operation> stack = undoStacks.get(userId);
-        if (stack == null || stack.isEmpty()) return;
-
-        Operation op = stack.pop();
-        redoStacks.get(userId).push(op);
+    // Deletes the visible characters in [startIndex, endIndex] as one change, a visible run
+    // of a span at a time, dropping every comment that overlaps the selection in a single
+    // pass over the comment index
+    public void deleteBetweenIndices(int startIndex, int endIndex) {
+        if (startIndex < 0 || endIndex >= order.visibleCount() || startIndex > endIndex) return;
 
-        if (op.getType() == Operation.Type.INSERT) {
-            nodeMap.get(op.getNodeId()).setDeleted(true);
-        } else {
-            nodeMap.get(op.getNodeId()).setDeleted(false);
+        long first = idAtIndex(startIndex);
+        long last = idAtIndex(endIndex);
+        sequence++;
+        long now = history.now();
+        Set<String> owners = new HashSet<>(); // one group per owner of deleted characters
+        for (int left = endIndex - startIndex + 1; left > 0; ) {
+            int node = order.select(startIndex); // the next run shifts into place
+            int offset = startIndex - order.rank(node);
+            int n = Math.min(left, nodes.length(node) - offset);
+            long id = nodes.id(node) + offset;
+            setDeleted(id, n, true);
+            String owner = sites.userId(NodeIds.site(id));
+            history.record(owner, Operation.Type.DELETE, id, n, !owners.add(owner), now);
+            left -= n;
         }
+        removeCommentsOverlapping(first, last);
+    }
+
+    // Reverts the user's latest group of edits as a whole
+    public void undo(String userId) {
+        EditHistory.Group group = history.undo(userId);
+        if (group == null) return;
+        sequence++;
+
+        boolean deleted = group.getType() == Operation.Type.INSERT;
+        group.forEachRun((low, count) -> setDeleted(low, count, deleted));
     }
 
     public void redo(String userId) {
-        Stack<Operation> stack = redoStacks.get(userId);
-        if (stack == null || stack.isEmpty()) return;
+        EditHistory.Group group = history.redo(userId);
+        if (group == null) return;
+        sequence++;
 
-        Operation op = stack.pop();
-        undoStacks.get(userId).push(op);
+        boolean deleted = group.getType() == Operation.Type.DELETE;
+        group.forEachRun((low, count) -> setDeleted(low, count, deleted));
+    }
 
-        if (op.getType() == Operation.Type.INSERT) {
-            nodeMap.get(op.getNodeId()).setDeleted(false);
-        } else {
-            nodeMap.get(op.getNodeId()).setDeleted(true);
-        }
+    // Whether id is the visible character right before or right after the tombstone previous,
+    // as when backspace or delete is held down
+    private boolean isNextTo(long id, long previous) {
+        int node = find(previous);
+        if (node == NodeStore.NIL || !nodes.isDeleted(node) || !order.contains(node)) return false;
+        int index = visibleIndexOf(id);
+        int gap = order.rank(node);
+        return index == gap || index == gap - 1;
     }
 
     public void updateCursor(String userId, String nodeId) {
-        if (!nodeMap.containsKey(nodeId)) return;
+        updateCursor(userId, sites.parse(nodeId));
+    }
 
-        List<String> ordered = new ArrayList<>();
-        dfsCollectIds(ROOT_ID, ordered, false);
-        int visualIndex = ordered.indexOf(nodeId);
+    private void updateCursor(String userId, long nodeId) {
+        if (find(nodeId) == NodeStore.NIL) return;
 
-        Cursor cursor = new Cursor(userId, nodeId, visualIndex, System.currentTimeMillis());
-        userCursors.put(userId, cursor);
+        userCursors.put(userId, new CursorAnchor(nodeId, System.currentTimeMillis()));
+        cursorsView = null;
     }
 
+    // Cursor with its current visual index, or null when the user has none
     public Cursor getCursor(String userId) {
-        return userCursors.get(userId);
+        CursorAnchor anchor = userCursors.get(userId);
+        return anchor == null ? null : toCursor(userId, anchor);
+    }
+
+    // Every user's cursor in one pass, each index resolved in O(log n)
+    public List<Cursor> getAllCursors() {
+        List<Cursor> cursors = new ArrayList<>(userCursors.size());
+        for (Map.Entry<String, CursorAnchor> entry : userCursors.entrySet()) {
+            cursors.add(toCursor(entry.getKey(), entry.getValue()));
+        }
+        return cursors;
+    }
+
+    private Cursor toCursor(String userId, CursorAnchor anchor) {
+        return new Cursor(userId, sites.format(anchor.nodeId), visibleIndexOf(anchor.nodeId), anchor.updatedAt);
     }
 
     public void insertAtCursor(char value, String userId, long clock) {
-        String parentId = userCursors.containsKey(userId)
-                ? userCursors.get(userId).getNodeId()
-                : ROOT_ID;
+        long parentId = cursorAnchorOf(userId);
 
-        insert(value, parentId, userId, clock);
-        String newId = userId + ":" + clock;
+        long newId = insert(String.valueOf(value), parentId, sites.intern(userId), clock, Origin.TYPED);
         updateCursor(userId, newId);
     }
 
     public int getCursorIndex(String userId) {
-        Cursor c = userCursors.get(userId);
-        return (c != null) ? c.getVisualIndex() : -1;
+        CursorAnchor anchor = userCursors.get(userId);
+        return anchor != null ? visibleIndexOf(anchor.nodeId) : -1;
     }
 
-    public String getDocument() {
-        StringBuilder sb = new StringBuilder();
-        dfs(ROOT_ID, sb);
-        return sb.toString();
+    // Character the user's next insert goes after; the root when they have no cursor
+    private long cursorAnchorOf(String userId) {
+        CursorAnchor anchor = userCursors.get(userId);
+        return anchor != null ? anchor.nodeId : NodeIds.ROOT;
+    }
+
+    // Number of spans stored for this document, tombstones included
+    public int getNodeCount() {
+        return nodes.count();
+    }
+
+    // Immutable view of the current state. The text rope is shared as is; comments and
+    // cursors are copied once per change and shared by every snapshot until the next one.
+    public DocumentSnapshot snapshot() {
+        if (commentsView == null) {
+            List<Comment> copies = new ArrayList<>(commentMap.size());
+            for (Comment c : commentMap.values()) {
+                copies.add(copyOf(c));
+            }
+            commentsView = Collections.unmodifiableList(copies);
+        }
+        if (cursorsView == null || cursorsViewSequence != sequence) {
+            Map<String, Cursor> copies = new HashMap<>();
+            for (Cursor c : getAllCursors()) {
+                copies.put(c.getUserId(), c);
+            }
+            cursorsView = Collections.unmodifiableMap(copies);
+            cursorsViewSequence = sequence;
+        }
+        return new DocumentSnapshot(sequence, visibleText, commentsView, cursorsView);
+    }
+
+    private static Comment copyOf(Comment c) {
+        Comment copy = new Comment(c.getId(), c.getUserId(), c.getContent(), c.getStartNodeId(), c.getEndNodeId(),
+                c.getTimestamp(), c.getStartIndex(), c.getEndIndex(), c.getSelectedText());
+        copy.setResolved(c.isResolved());
+        return copy;
+    }
+
+    // Sequence number of the last change applied to this document
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Approximate heap footprint of this document in bytes: spans, the characters in
+    // the store and in the visible text, comments and undo history
+    public long estimatedBytes() {
+        return (long) nodes.count() * SPAN_BYTES
+                + 2L * order.length()
+                + 2L * visibleText.length()
+                + (long) commentMap.size() * COMMENT_BYTES
+                + (long) history.entries() * HISTORY_ENTRY_BYTES;
+    }
+
+    // Connected clients that have acknowledged a change
+    public int getReplicaCount() {
+        return acks.replicas();
+    }
+
+    // Records that a replica (one connected client) has applied every change up to sequence
+    public void acknowledge(String replicaId, long sequence) {
+        acks.acknowledge(replicaId, sequence);
+    }
+
+    public void removeReplica(String replicaId) {
+        acks.remove(replicaId);
+    }
+
+    // Catch-up for a replica that holds every character up to stateVector's clock for each
+    // user, and every change up to sequence since. Answers with only what it is missing, or
+    // with the whole document when the gap is no longer known or exceeds maxDeltaOps.
+    public SyncResponse sync(Map<String, Long> stateVector, long since, int maxDeltaOps) {
+        if (since > sequence || !changes.reaches(since)) return fullSync();
+
+        // Characters past the replica's clock for each site, as {position, handle, offset}
+        List<long[]> missing = new ArrayList<>();
+        int budget = maxDeltaOps - changes.countSince(since);
+        for (int site = 1; site < sites.size() && budget >= 0; site++) {
+            long seen = stateVector.getOrDefault(sites.userId(site), 0L);
+            if (seen >= NodeIds.MAX_CLOCK) continue;
+
+            long id = NodeIds.pack(site, Math.max(seen, 0) + 1);
+            int node = find(id);
+            if (node == NodeStore.NIL) {
+                id = spans.nextStart(id);
+                node = find(id);
+            }
+            while (node != NodeStore.NIL && budget >= 0) {
+                int offset = (int) (id - nodes.id(node));
+                if (order.contains(node)) {
+                    missing.add(new long[] { order.position(node) + offset, node, offset });
+                    budget--;
+                }
+                id = spans.nextStart(nodes.id(node));
+                node = find(id);
+            }
+        }
+        if (budget < 0) return fullSync();
+
+        // Document order puts every parent before its children
+        missing.sort(Comparator.comparingLong(m -> m[0]));
+        List<SyncResponse.Span> missingSpans = new ArrayList<>(missing.size());
+        for (long[] m : missing) {
+            missingSpans.add(toSpan((int) m[1], (int) m[2]));
+        }
+
+        // Flips of characters the replica already holds, as runs that do not overlap; where
+        // runs do, the later flip wins. Each entry maps a run's first id to {end, deleted}
+        TreeMap<Long, long[]> flips = new TreeMap<>();
+        changes.forEachSince(since, (id, count, deleted) -> {
+            long seen = stateVector.getOrDefault(sites.userId(NodeIds.site(id)), 0L);
+            long held = Math.min(count, seen - NodeIds.clock(id) + 1);
+            if (held > 0) {
+                overlay(flips, id, id + held, deleted);
+            }
+        });
+        List<SyncResponse.Run> deleted = new ArrayList<>();
+        List<SyncResponse.Run> restored = new ArrayList<>();
+        for (Map.Entry<Long, long[]> flip : flips.entrySet()) {
+            long[] run = flip.getValue();
+            (run[1] != 0 ? deleted : restored).add(
+                    new SyncResponse.Run(sites.format(flip.getKey()), (int) (run[0] - flip.getKey())));
+        }
+        return new SyncResponse(false, sequence, missingSpans, deleted, restored);
     }
 
-    private void dfs(String nodeId, StringBuilder sb) {
-        CRDTNode node = nodeMap.get(nodeId);
+    // Puts the run [from, to) over the runs already in flips, cutting back the ones it covers
+    private static void overlay(TreeMap<Long, long[]> flips, long from, long to, boolean deleted) {
+        Map.Entry<Long, long[]> before = flips.lowerEntry(from);
+        if (before != null && before.getValue()[0] > from) {
+            long[] cut = before.getValue();
+            if (cut[0] > to) {
+                flips.put(to, new long[] { cut[0], cut[1] });
+            }
+            cut[0] = from;
+        }
+        for (Iterator<Map.Entry<Long, long[]>> it = flips.subMap(from, true, to, false).entrySet().iterator();
+                it.hasNext(); ) {
+            long[] covered = it.next().getValue();
+            it.remove();
+            if (covered[0] > to) {
+                flips.put(to, covered); // its tail stays; runs are disjoint, so none comes after it
+                break;
+            }
+        }
+        flips.put(from, new long[] { to, deleted ? 1 : 0 });
+    }
 
-        if (!nodeId.equals(ROOT_ID) && !node.isDeleted()) {
-            sb.append(node.getValue());
+    // Applies a sync reply from another copy of this document. Spans already held are
+    // skipped. A snapshot does not carry collected tombstones, so a replica that had the
+    // characters under them, or still sees them, starts over from a fresh copy with it.
+    public void applySync(SyncResponse response) {
+        for (SyncResponse.Span span : response.getSpans()) {
+            applyInsert(span.getId(), span.getParentId(), span.getText());
+            if (span.isDeleted()) {
+                setDeleted(sites.parse(span.getId()), span.getText().length(), true);
+            }
         }
+        for (SyncResponse.Run run : response.getDeleted()) {
+            setDeleted(sites.parse(run.getId()), run.getLength(), true);
+        }
+        for (SyncResponse.Run run : response.getRestored()) {
+            setDeleted(sites.parse(run.getId()), run.getLength(), false);
+        }
+    }
+
+    // Places characters recorded elsewhere (a sync reply, a log being replayed) without
+    // making them undoable here. Characters already present are skipped.
+    public void applyInsert(String id, String parentId, CharSequence text) {
+        int sep = id.lastIndexOf(':');
+        int site = sites.intern(id.substring(0, sep)); // authors may be new to this copy
+        long parent = parentId == null ? NodeIds.NONE : sites.parse(parentId);
+        insert(text, parent, site, Long.parseLong(id.substring(sep + 1)), Origin.REPLAYED);
+    }
+
+    public void applyDeleted(String id, int count, boolean deleted) {
+        setDeleted(sites.parse(id), count, deleted);
+    }
 
-        for (String childId : node.getChildren()) {
-            dfs(childId, sb);
+    // Sends the whole durable state to journal as if it had just been built, then commits it
+    public void exportTo(DocumentJournal journal) {
+        for (int node = nodes.nextInPreorder(rootHandle); node != NodeStore.NIL; node = nodes.nextInPreorder(node)) {
+            SyncResponse.Span span = toSpan(node, 0);
+            journal.inserted(span.getId(), span.getParentId(), span.getText());
+            if (span.isDeleted()) {
+                journal.deletedChanged(span.getId(), span.getText().length(), true);
+            }
+        }
+        for (Comment comment : commentMap.values()) {
+            journal.commentSaved(comment);
         }
+        journal.commit(sequence);
     }
 
+    // Where changes are recorded from now on; replay into a fresh copy before attaching one
+    public void setJournal(DocumentJournal journal) {
+        this.journal = journal;
+    }
 
-    private void dfsCollectIds(String nodeId, List<String> ids, boolean includeDeleted, Set<String> visited) {
-        if (visited.contains(nodeId)) return; // avoid cycles
-        visited.add(nodeId);
+    // Ends the batch of changes since the last call; the future completes once it is durable.
+    // Called once per batch by the actor
+    public CompletableFuture<Void> commitJournal() {
+        return journal.commitAsync(sequence);
+    }
 
-        CRDTNode node = nodeMap.get(nodeId);
-        if (!nodeId.equals(ROOT_ID) && (includeDeleted || !node.isDeleted())) {
-            ids.add(nodeId);
+    // Sequence reached by a replayed log, so clients' acknowledgements keep their meaning.
+    // Replayed flips carry new sequences, so replicas from before the replay get a full copy.
+    public void restoreSequence(long sequence) {
+        this.sequence = Math.max(this.sequence, sequence);
+        changes.forgetThrough(this.sequence);
+    }
+
+    // Every attached span in document order, tombstones included
+    private SyncResponse fullSync() {
+        List<SyncResponse.Span> all = new ArrayList<>();
+        for (int node = nodes.nextInPreorder(rootHandle); node != NodeStore.NIL; node = nodes.nextInPreorder(node)) {
+            all.add(toSpan(node, 0));
         }
+        return new SyncResponse(true, sequence, all, List.of(), List.of());
+    }
 
-        for (String childId : node.getChildren()) {
-            dfsCollectIds(childId, ids, includeDeleted, visited);
+    // The characters of a span from offset on, attached after the character before them
+    private SyncResponse.Span toSpan(int node, int offset) {
+        long id = nodes.id(node) + offset;
+        long parentId;
+        if (offset > 0) {
+            parentId = id - 1;
+        } else {
+            int parent = nodes.parent(node);
+            parentId = parent == rootHandle ? NodeIds.ROOT : nodes.id(parent) + nodes.length(parent) - 1;
         }
+        StringBuilder text = new StringBuilder(nodes.length(node) - offset);
+        nodes.appendTo(node, offset, nodes.length(node), text);
+        return new SyncResponse.Span(sites.format(id), sites.format(parentId), text.toString(), nodes.isDeleted(node));
     }
 
-    private void dfsCollectIds(String nodeId, List<String> ids, boolean includeDeleted) {
-        dfsCollectIds(nodeId, ids, includeDeleted, new HashSet<>());
+    // Total number of spans removed by collectGarbage
+    public long getReclaimedNodeCount() {
+        return reclaimed;
     }
 
-    private void sortChildren(CRDTNode parent) {
-        parent.getChildren().sort((a, b) -> {
-            CRDTNode n1 = nodeMap.get(a);
-            CRDTNode n2 = nodeMap.get(b);
+    // Physically removes tombstones that every replica has seen, along with everything
+    // that last touched them, and returns the number of spans reclaimed. A removed span's
+    // children take its place among its siblings, which is only done while they still
+    // sort there by id: a copy that receives them from sync() attaches them to the new
+    // parent in id order, and has to end up with the same text. Spans whose children would
+    // land out of order stay as tombstones. The order of future inserts is kept because,
+    // with Lamport clocks, anything a replica sends after seeing those children has a
+    // higher clock than all of them and sorts first anyway.
+    // Cursors and comments anchored on removed characters move to visible neighbours,
+    // and undo/redo entries for them are dropped.
+    public int collectGarbage() {
+        long stable = acks.stable(sequence, changes.floor());
 
-            int cmp = Long.compare(n2.getLamportClock(), n1.getLamportClock());
-            return cmp != 0 ? cmp : n1.getUserId().compareTo(n2.getUserId());
-        });
+        // The spans now under each deleted run; it may have been cut up or partly restored since
+        long[] runs = tombstones;
+        int[] runLengths = tombstoneLengths;
+        int runCount = tombstoneCount;
+        tombstones = new long[Math.max(64, runCount)];
+        tombstoneLengths = new int[tombstones.length];
+        tombstoneCount = 0;
+        BitSet doomed = new BitSet();
+        BitSet waiting = new BitSet();
+        for (int i = 0; i < runCount; i++) {
+            long end = runs[i] + runLengths[i];
+            for (long id = runs[i]; id < end && id != NodeIds.NONE; ) {
+                int node = find(id);
+                if (node == NodeStore.NIL) {
+                    id = spans.nextStart(id);
+                    continue;
+                }
+                id = nodes.id(node) + nodes.length(node);
+                if (!nodes.isDeleted(node) || !order.contains(node) || doomed.get(node) || waiting.get(node)) {
+                    continue; // restored since, detached, or already picked
+                }
+                if (touched[node] > stable) {
+                    waiting.set(node); // not seen by everyone yet
+                    addTombstone(nodes.id(node), nodes.length(node));
+                } else {
+                    doomed.set(node);
+                }
+            }
+        }
+        if (doomed.isEmpty()) return 0;
+
+        // Anchors only move to visible neighbours, so it does no harm if a span ends up staying
+        reanchor(doomed);
+
+        // Deepest and last spans first, so a chain of tombstones goes in one collection
+        int[] candidates = doomed.stream().boxed()
+                .sorted(Comparator.comparingLong((Integer node) -> order.position(node)).reversed())
+                .mapToInt(Integer::intValue).toArray();
+        long[][] removed = new long[candidates.length][];
+        int r = 0;
+        for (int node : candidates) {
+            long id = nodes.id(node);
+            int length = nodes.length(node);
+            if (!childrenStaySorted(node)) {
+                addTombstone(id, length); // tried again next time
+                continue;
+            }
+            siblings.forget(nodes.parent(node));
+            siblings.forget(node);
+            order.remove(node);
+            spans.remove(id);
+            nodes.remove(node);
+            removed[r++] = new long[] { id, id + length };
+        }
+        if (r == 0) return 0;
+        Arrays.sort(removed, 0, r, Comparator.comparingLong(range -> range[0]));
+        long[] starts = new long[r];
+        long[] ends = new long[r];
+        for (int i = 0; i < r; i++) {
+            starts[i] = removed[i][0];
+            ends[i] = removed[i][1];
+        }
+        history.prune(starts, ends);
+        reclaimed += r;
+        return r;
     }
 
-    public void paste(String text, String userId, long startingClock) {
-        String parentId = userCursors.containsKey(userId)
-                ? userCursors.get(userId).getNodeId()
-                : ROOT_ID;
+    // Whether node's children, put in its place among its siblings, still sort by id there
+    private boolean childrenStaySorted(int node) {
+        int first = nodes.firstChild(node);
+        if (first == NodeStore.NIL) return true;
+        int last = first;
+        while (nodes.nextSibling(last) != NodeStore.NIL) {
+            last = nodes.nextSibling(last);
+        }
+        int prev = NodeStore.NIL;
+        for (int c = nodes.firstChild(nodes.parent(node)); c != node; c = nodes.nextSibling(c)) {
+            prev = c;
+        }
+        int next = nodes.nextSibling(node);
+        return (prev == NodeStore.NIL || siblings.compare(nodes.id(prev), nodes.id(first)) < 0)
+                && (next == NodeStore.NIL || siblings.compare(nodes.id(last), nodes.id(next)) < 0);
+    }
 
-        for (char c : text.toCharArray()) {
-            insert(c, parentId, userId, startingClock++);
-            parentId = userId + ":" + (startingClock - 1);
+    // Moves cursors and comment ends off spans that are about to be removed
+    private void reanchor(BitSet doomed) {
+        cursorsView = null;
+        commentsView = null;
+        for (CursorAnchor cursor : userCursors.values()) {
+            int node = find(cursor.nodeId);
+            if (node != NodeStore.NIL && doomed.get(node)) {
+                int before = order.rank(node);
+                cursor.nodeId = before == 0 ? NodeIds.ROOT : idAtIndex(before - 1);
+            }
         }
 
-        String newCursorId = userId + ":" + (startingClock - 1);
-        updateCursor(userId, newCursorId);
+        for (Iterator<Comment> it = commentMap.values().iterator(); it.hasNext(); ) {
+            Comment comment = it.next();
+            boolean moved = false;
+            int start = find(sites.parse(comment.getStartNodeId()));
+            if (start != NodeStore.NIL && doomed.get(start)) {
+                long next = idAtIndex(order.rank(start)); // first visible character after it
+                if (next == NodeIds.NONE) {
+                    dropComment(it, comment);
+                    continue;
+                }
+                comment.setStartNodeId(sites.format(next));
+                moved = true;
+            }
+            int end = find(sites.parse(comment.getEndNodeId()));
+            if (end != NodeStore.NIL && doomed.get(end)) {
+                int before = order.rank(end);
+                if (before == 0) {
+                    dropComment(it, comment);
+                    continue;
+                }
+                comment.setEndNodeId(sites.format(idAtIndex(before - 1)));
+                moved = true;
+            }
+            if (moved) {
+                placeComment(comment);
+                journal.commentSaved(comment);
+            }
+        }
     }
 
-    public String copy(String startNodeId, String endNodeId) {
-        List<String> ordered = new ArrayList<>();
-        dfsCollectIds(ROOT_ID, ordered, false);
+    private void dropComment(Iterator<Comment> it, Comment comment) {
+        it.remove();
+        journal.commentRemoved(comment.getId());
+        commentRanges.remove(comment.getId());
+        unplacedComments.remove(comment.getId());
+    }
 
-        int start = ordered.indexOf(startNodeId);
-        int end = ordered.indexOf(endNodeId);
+    // Served from the text mirror; repeated calls between edits return the same string
+    public String getDocument() {
+        return visibleText.toString();
+    }
 
-        if (start == -1 || end == -1 || start > end) return "";
+    // Document order of two characters, tombstones included; both must be attached
+    private int compareIds(long a, long b) {
+        return Integer.compare(positionOf(a), positionOf(b));
+    }
+
+    private int positionOf(long id) {
+        int node = find(id);
+        return order.position(node) + (int) (id - nodes.id(node));
+    }
+
+    private boolean isAttached(long id) {
+        int node = find(id);
+        return node != NodeStore.NIL && node != rootHandle && order.contains(node);
+    }
+
+    private int register(long id, CharSequence text) {
+        int node = nodes.add(id, text);
+        spans.add(id, node);
+        touch(node);
+        return node;
+    }
+
+    private void touch(int node) {
+        if (node >= touched.length) {
+            touched = Arrays.copyOf(touched, Math.max(node + 1, touched.length * 2));
+        }
+        touched[node] = sequence;
+    }
+
+    // Handle of the span containing the character id, or NIL
+    private int find(long id) {
+        if (id == NodeIds.NONE) return NodeStore.NIL;
+        int node = spans.floor(id);
+        if (node == NodeStore.NIL || id - nodes.id(node) >= nodes.length(node)) return NodeStore.NIL;
+        return node;
+    }
+
+    // Cuts a span before offset, keeping the order index in step. Returns the tail.
+    private int split(int node, int offset) {
+        int tail = nodes.split(node, offset);
+        siblings.moveChildren(node, tail);
+        long lastChange = touched[node];
+        touch(tail);
+        touched[tail] = lastChange; // the tail is exactly as old as the span it came from
+        spans.add(nodes.id(tail), tail);
+        if (order.contains(node)) {
+            order.setWeight(node, weightOf(node));
+            order.setLength(node, lengthOf(node));
+            order.insertAfter(node, tail, weightOf(tail), lengthOf(tail));
+        }
+        return tail;
+    }
+
+    // Flips the tombstone state of the characters [id, id + count) that have it the other
+    // way. A span is only cut where the run starts or ends inside it, each span flips whole
+    // with one edit of the visible text, and each stretch of flipped characters is one
+    // record. Ids that are not here, never arrived or already collected, are skipped.
+    private void setDeleted(long id, int count, boolean deleted) {
+        long end = id + count;
+        long flippedFrom = NodeIds.NONE;
+        long at = id;
+        while (at < end) {
+            int node = find(at);
+            if (node == NodeStore.NIL) {
+                recordFlip(flippedFrom, at, deleted);
+                flippedFrom = NodeIds.NONE;
+                at = spans.nextStart(at);
+                if (at == NodeIds.NONE) break;
+                continue;
+            }
+            int offset = (int) (at - nodes.id(node));
+            int n = (int) Math.min(end - at, nodes.length(node) - offset);
+            if (nodes.isDeleted(node) == deleted) {
+                recordFlip(flippedFrom, at, deleted);
+                flippedFrom = NodeIds.NONE;
+            } else {
+                if (offset > 0) {
+                    node = split(node, offset);
+                }
+                if (nodes.length(node) > n) {
+                    split(node, n);
+                }
+                flip(node, deleted);
+                if (flippedFrom == NodeIds.NONE) flippedFrom = at;
+            }
+            at += n;
+        }
+        recordFlip(flippedFrom, Math.min(at, end), deleted);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (int i = start; i <= end; i++) {
-            CRDTNode node = nodeMap.get(ordered.get(i));
-            if (node != null && !node.isDeleted()) {
-                sb.append(node.getValue());
+    private void flip(int node, boolean deleted) {
+        nodes.setDeleted(node, deleted);
+        touch(node);
+        if (order.contains(node)) {
+            order.setWeight(node, weightOf(node));
+            int index = order.rank(node);
+            if (deleted) {
+                visibleText = visibleText.delete(index, index + nodes.length(node));
+            } else {
+                StringBuilder text = new StringBuilder(nodes.length(node));
+                nodes.appendTo(node, 0, nodes.length(node), text);
+                visibleText = visibleText.insert(index, text);
             }
         }
-        return sb.toString();
+    }
+
+    // Records the characters [from, to) as flipped, when from is an id
+    private void recordFlip(long from, long to, boolean deleted) {
+        if (from == NodeIds.NONE) return;
+        int count = (int) (to - from);
+        changes.record(sequence, from, count, deleted);
+        journal.deletedChanged(sites.format(from), count, deleted);
+        if (deleted) {
+            addTombstone(from, count);
+        }
+    }
+
+    private void addTombstone(long id, int length) {
+        if (tombstoneCount == tombstones.length) {
+            tombstones = Arrays.copyOf(tombstones, tombstoneCount * 2);
+            tombstoneLengths = Arrays.copyOf(tombstoneLengths, tombstoneCount * 2);
+        }
+        tombstones[tombstoneCount] = id;
+        tombstoneLengths[tombstoneCount++] = length;
+    }
+
+    private int weightOf(int node) {
+        return node == rootHandle || nodes.isDeleted(node) ? 0 : nodes.length(node);
+    }
+
+    // Characters of a span, tombstones included; the root holds none
+    private int lengthOf(int node) {
+        return node == rootHandle ? 0 : nodes.length(node);
+    }
+
+    // Links a freshly attached child into the order index. Its preorder position is
+    // right before its next sibling, or right after the previous sibling's subtree.
+    private void placeInOrder(int parent, int prev, int node) {
+        if (!order.contains(parent)) return; // parent is detached itself
+
+        int next = nodes.nextSibling(node);
+        if (next != NodeStore.NIL) {
+            order.insertBefore(next, node, weightOf(node), lengthOf(node));
+        } else {
+            order.insertAfter(prev == NodeStore.NIL ? parent : lastDescendant(prev), node, weightOf(node), lengthOf(node));
+        }
+    }
+
+    private int lastDescendant(int node) {
+        for (int c = nodes.firstChild(node); c != NodeStore.NIL; c = nodes.firstChild(node)) {
+            node = c;
+            while (nodes.nextSibling(node) != NodeStore.NIL) {
+                node = nodes.nextSibling(node);
+            }
+        }
+        return node;
+    }
+
+    // Visible index of the character, or -1 for the root, tombstones and detached nodes
+    private int visibleIndexOf(long id) {
+        int node = find(id);
+        if (node == NodeStore.NIL || !order.contains(node) || order.weight(node) == 0) return -1;
+        return order.rank(node) + (int) (id - nodes.id(node));
+    }
+
+    // Id of the character at a visible index, or NONE when out of range
+    private long idAtIndex(int index) {
+        int node = order.select(index);
+        if (node == OrderIndex.NIL) return NodeIds.NONE;
+        return nodes.id(node) + (index - order.rank(node));
+    }
+
+    private String collectVisible(int startIndex, int count) {
+        return visibleText.substring(startIndex, startIndex + count);
+    }
+
+    public void paste(String text, String userId, long startingClock) {
+        long parentId = cursorAnchorOf(userId);
+
+        if (text.isEmpty()) return;
+        long lastId = insert(text, parentId, sites.intern(userId), startingClock, Origin.PASTED);
+
+        updateCursor(userId, lastId);
+    }
+
+    public String copy(String startNodeId, String endNodeId) {
+        int start = visibleIndexOf(sites.parse(startNodeId));
+        int end = visibleIndexOf(sites.parse(endNodeId));
+
+        if (start == -1 || end == -1 || start > end) return "";
+        return collectVisible(start, end - start + 1);
     }
 
     public void updateCursorByIndex(String userId, int index) {
-        List<String> ordered = new ArrayList<>();
-        dfsCollectIds(ROOT_ID, ordered, false); // only visible nodes
+        long nodeId = idAtIndex(index); // only visible nodes
 
-        if (index < 0 || index >= ordered.size()) {
-            updateCursor(userId, ROOT_ID); // fallback
+        if (nodeId == NodeIds.NONE) {
+            updateCursor(userId, NodeIds.ROOT); // fallback
             return;
         }
 
-        String nodeId = ordered.get(index);
         updateCursor(userId, nodeId);
     }
 
     public String getNodeIdByIndex(int index) {
-        List<String> ordered = new ArrayList<>();
-        dfsCollectIds(ROOT_ID, ordered, false);
-
-        if (index < 0 || index >= ordered.size()) return null;
-        return ordered.get(index);
+        long nodeId = idAtIndex(index);
+        return nodeId == NodeIds.NONE ? null : sites.format(nodeId);
     }
 
     public String getTextBetweenIndices(int startIndex, int endIndex) {
-        List<String> ordered = new ArrayList<>();
-        dfsCollectIds(ROOT_ID, ordered, false);
+        if (startIndex < 0 || endIndex >= order.visibleCount() || startIndex > endIndex) return "";
+        return collectVisible(startIndex, endIndex - startIndex + 1);
+    }
 
-        if (startIndex < 0 || endIndex >= ordered.size() || startIndex > endIndex) return "";
+    private enum Origin { TYPED, PASTED, REPLAYED }
 
-        StringBuilder sb = new StringBuilder();
-        for (int i = startIndex; i <= endIndex; i++) {
-            CRDTNode node = nodeMap.get(ordered.get(i));
-            if (node != null && !node.isDeleted()) {
-                sb.append(node.getValue());
-            }
+    private static final class CursorAnchor {
+        long nodeId;
+        final long updatedAt;
+
+        CursorAnchor(long nodeId, long updatedAt) {
+            this.nodeId = nodeId;
+            this.updatedAt = updatedAt;
         }
-        return sb.toString();
     }
 }
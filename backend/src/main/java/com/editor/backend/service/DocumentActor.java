@@ -0,0 +1,298 @@
+package com.editor.backend.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.editor.backend.model.DocumentSnapshot;
+
+/**
+ * Single writer for one document.
+ * Every read or change of the document's CRDTService is queued in this actor's
+ * mailbox and applied in arrival order by one drain task at a time, so the
+ * CRDT itself needs no locks. Drain tasks run on an executor shared by all
+ * documents; a document with an empty mailbox holds no thread, and separate
+ * documents drain in parallel without contending on anything.
+ *
+ * Once a batch is applied it is committed to the document's journal, so a
+ * whole batch costs one durable write however many operations it holds. The
+ * write happens off this actor's thread, and the actor goes on to its next
+ * batch meanwhile. Each batch is finished, in order, once it is durable:
+ * broadcasts published while it was applied are sent together, then a fresh
+ * immutable snapshot is published for readers, and only after that do the
+ * batch's futures complete, so a caller that waited on a change also sees it
+ * in snapshot() and on disk. A batch whose commit fails is not broadcast: its
+ * callers get the error, and the journal-failure handler, queued as work on
+ * this actor, decides what happens to the copy in memory.
+ *
+ * An actor is closed once its document leaves memory. Work queued on it after
+ * that, by callers that looked the document up just before, is passed on to the
+ * actor of the copy loaded in its place, broadcasts included.
+ */
+public class DocumentActor {
+
+    // Tasks applied per drain before yielding the thread to other documents
+    private static final int BATCH_LIMIT = 256;
+
+    /** Where broadcasts go, typically the STOMP broker. */
+    @FunctionalInterface
+    public interface Outbox {
+        void send(String destination, Object payload);
+    }
+
+    private final String documentId;
+    private final CRDTService crdt;
+    private final Executor executor;
+    private final Outbox outbox;
+
+    private final Queue<Task<?>> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // Set once the document has left memory; finds the actor that serves it now
+    private volatile Supplier<DocumentActor> successor;
+    private volatile DocumentActor forwardedTo;
+
+    // Runs as work on this actor, once, after a batch could not be committed
+    private volatile Runnable journalFailureHandler = () -> { };
+    private final AtomicBoolean journalFailed = new AtomicBoolean();
+
+    // Broadcasts of the batch being applied; only touched by the drain task
+    private final List<String> pendingDestinations = new ArrayList<>();
+    private final List<Object> pendingPayloads = new ArrayList<>();
+    private final List<Completion> pendingCompletions = new ArrayList<>();
+
+    // Completes once the last batch handed to the journal is finished; only replaced by the drain task
+    private CompletableFuture<Void> finished = CompletableFuture.completedFuture(null);
+
+    // Latest published state, read without touching the mailbox
+    private final AtomicReference<DocumentSnapshot> snapshot;
+
+    public DocumentActor(String documentId, CRDTService crdt, Executor executor, Outbox outbox) {
+        this.documentId = documentId;
+        this.crdt = crdt;
+        this.executor = executor;
+        this.outbox = outbox;
+        this.snapshot = new AtomicReference<>(crdt.snapshot());
+    }
+
+    /** State as of the last applied batch; never blocks and never sees a batch half applied. */
+    public DocumentSnapshot snapshot() {
+        return snapshot.get();
+    }
+
+    /** Queues work that reads or changes the document and completes with its result. */
+    public <T> CompletableFuture<T> call(Function<CRDTService, T> work) {
+        Task<T> task = new Task<>(work);
+        mailbox.add(task);
+        schedule();
+        return task.result;
+    }
+
+    /** Queues work that changes the document. */
+    public CompletableFuture<Void> run(Consumer<CRDTService> work) {
+        return call(crdt -> {
+            work.accept(crdt);
+            return null;
+        });
+    }
+
+    /**
+     * Broadcasts payload once the current batch has been applied.
+     * Only call this from inside work queued on this actor.
+     */
+    public void publish(String destination, Object payload) {
+        DocumentActor target = forwardedTo;
+        if (target != null) { // work queued here is running on the successor
+            target.publish(destination, payload);
+            return;
+        }
+        pendingDestinations.add(destination);
+        pendingPayloads.add(payload);
+    }
+
+    /**
+     * Stops applying work here; what is still queued, and anything queued later,
+     * goes to the actor successor returns, looked up on first need. Only call this
+     * from inside work queued on this actor, or from the journal-failure handler.
+     */
+    public void close(Supplier<DocumentActor> successor) {
+        this.successor = successor;
+    }
+
+    public boolean isClosed() {
+        return successor != null;
+    }
+
+    /**
+     * Queued as work on this actor, before the batch's futures fail, when a batch
+     * could not be committed. Runs once, however many batches fail after it.
+     */
+    public void onJournalFailure(Runnable handler) {
+        this.journalFailureHandler = handler;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            if (successor != null) {
+                forward();
+                return;
+            }
+            Task<?> task;
+            for (int i = 0; i < BATCH_LIMIT && successor == null && (task = mailbox.poll()) != null; i++) {
+                task.apply(this);
+            }
+            CompletableFuture<Void> durable;
+            try {
+                durable = crdt.commitJournal();
+            } catch (RuntimeException e) {
+                durable = CompletableFuture.failedFuture(e);
+            }
+            Batch batch = new Batch(pendingDestinations, pendingPayloads, pendingCompletions, crdt.snapshot());
+            pendingDestinations.clear();
+            pendingPayloads.clear();
+            pendingCompletions.clear();
+            CompletableFuture<Void> written = durable;
+            finished = finished.thenCompose(previous -> written.handle((ignored, e) -> {
+                finish(batch, e);
+                return null;
+            }));
+        } finally {
+            scheduled.set(false);
+            // Work queued after the last poll, or left over past the batch limit
+            if (!mailbox.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    // Hands the queued work to the actor now serving the document, or fails it if there is none
+    private void forward() {
+        DocumentActor target = forwardedTo;
+        RuntimeException error = null;
+        if (target == null) {
+            try {
+                target = successor.get();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            if (target == this) target = null;
+            if (target == null && error == null) {
+                error = new IllegalStateException("Document " + documentId + " is no longer served here");
+            }
+            forwardedTo = target;
+        }
+        Task<?> task;
+        while ((task = mailbox.poll()) != null) {
+            if (target != null) {
+                target.mailbox.add(task);
+            } else {
+                task.result.completeExceptionally(error);
+            }
+        }
+        if (target != null) target.schedule();
+    }
+
+    // Runs once the batch is durable, or could not be made so, and after the batch before it
+    private void finish(Batch batch, Throwable failure) {
+        // The batch stays applied in memory either way; its callers learn it is not durable,
+        // and nobody else hears of it
+        RuntimeException journalError = null;
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure;
+            journalError = cause instanceof RuntimeException e ? e : new IllegalStateException(cause);
+            System.out.println("[Server] : Journal write failed on document " + documentId + " - " + journalError);
+            if (journalFailed.compareAndSet(false, true)) {
+                run(crdt -> journalFailureHandler.run());
+            }
+        } else {
+            for (int i = 0; i < batch.destinations.length; i++) {
+                try {
+                    outbox.send(batch.destinations[i], batch.payloads[i]);
+                } catch (RuntimeException e) {
+                    System.out.println("[Server] : Broadcast failed on document " + documentId + " - " + e);
+                }
+            }
+            snapshot.set(batch.snapshot);
+        }
+        for (Completion completion : batch.completions) {
+            completion.complete(journalError);
+        }
+    }
+
+    // What an applied batch still owes its callers and subscribers
+    private static final class Batch {
+        private final String[] destinations;
+        private final Object[] payloads;
+        private final Completion[] completions;
+        private final DocumentSnapshot snapshot;
+
+        Batch(List<String> destinations, List<Object> payloads, List<Completion> completions,
+              DocumentSnapshot snapshot) {
+            this.destinations = destinations.toArray(new String[0]);
+            this.payloads = payloads.toArray();
+            this.completions = completions.toArray(new Completion[0]);
+            this.snapshot = snapshot;
+        }
+    }
+
+    // Work queued by call(); a closed actor hands it on to be applied to its successor's CRDT
+    private static final class Task<T> {
+        private final Function<CRDTService, T> work;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Function<CRDTService, T> work) {
+            this.work = work;
+        }
+
+        // Runs on the drain thread of whichever actor applies it
+        void apply(DocumentActor actor) {
+            try {
+                T value = work.apply(actor.crdt);
+                actor.pendingCompletions.add(new Completion(result, value, null));
+            } catch (RuntimeException e) {
+                System.out.println("[Server] : Operation failed on document " + actor.documentId + " - " + e);
+                actor.pendingCompletions.add(new Completion(result, null, e));
+            }
+        }
+    }
+
+    // Outcome of one task, handed to its caller once the batch is done
+    private static final class Completion {
+        private final CompletableFuture<Object> future;
+        private final Object value;
+        private final RuntimeException error;
+
+        @SuppressWarnings("unchecked")
+        Completion(CompletableFuture<?> future, Object value, RuntimeException error) {
+            this.future = (CompletableFuture<Object>) future;
+            this.value = value;
+            this.error = error;
+        }
+
+        void complete(RuntimeException batchError) {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else if (batchError != null) {
+                future.completeExceptionally(batchError);
+            } else {
+                future.complete(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.editor.backend.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.editor.backend.model.Comment;
+
+/**
+ * The whole state of a document laid out as columns, for saving it and for
+ * building a copy in one pass. Spans are listed in document (preorder) order,
+ * one array slot per span, so a parent always comes before its children and
+ * siblings come in their final order. Sites are indexes into siteIds; site 0
+ * is the system site that owns the root.
+ *
+ * Undo history is not part of an image: a loaded document starts without one.
+ */
+public final class DocumentImage {
+
+    public long sequence;
+
+    // User id of each site, in site order
+    public String[] siteIds;
+
+    public int spanCount;
+    public int[] site;
+    public long[] clock;      // clock of the span's first character
+    public int[] length;
+    public int[] parent;      // slot of the parent span, -1 for the root
+    public boolean[] deleted;
+
+    // Characters of every span, one after the other
+    public char[] text;
+
+    public List<Comment> comments = new ArrayList<>();
+
+    public int cursorCount;
+    public String[] cursorUsers;
+    public long[] cursorAnchors; // packed id of the character each cursor sits after
+    public long[] cursorUpdatedAt;
+
+    public DocumentImage(int spanCount, int textLength, int cursorCount) {
+        this.spanCount = spanCount;
+        this.site = new int[spanCount];
+        this.clock = new long[spanCount];
+        this.length = new int[spanCount];
+        this.parent = new int[spanCount];
+        this.deleted = new boolean[spanCount];
+        this.text = new char[textLength];
+        this.cursorCount = cursorCount;
+        this.cursorUsers = new String[cursorCount];
+        this.cursorAnchors = new long[cursorCount];
+        this.cursorUpdatedAt = new long[cursorCount];
+    }
+}
@@ -0,0 +1,54 @@
+package com.editor.backend.service;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.editor.backend.model.Comment;
+
+/**
+ * Receives every change to a document's durable state, in the order it was
+ * applied. The records describe effects rather than requests: a span of
+ * characters placed after a parent, a tombstone flip, a comment saved or
+ * removed. Applying them again on a copy that already has them changes
+ * nothing, so a replay may overlap a snapshot without harm.
+ */
+public interface DocumentJournal {
+
+    DocumentJournal NONE = new DocumentJournal() {
+        @Override public void inserted(String id, String parentId, CharSequence text) { }
+        @Override public void deletedChanged(String id, int count, boolean deleted) { }
+        @Override public void commentSaved(Comment comment) { }
+        @Override public void commentRemoved(String commentId) { }
+        @Override public void commit(long sequence) { }
+    };
+
+    /** Characters with consecutive clocks from id on, the first one placed after parentId. */
+    void inserted(String id, String parentId, CharSequence text);
+
+    /** The count characters from id on were deleted, or restored. */
+    void deletedChanged(String id, int count, boolean deleted);
+
+    /** A new comment, or a new state of an existing one. */
+    void commentSaved(Comment comment);
+
+    void commentRemoved(String commentId);
+
+    /**
+     * Ends a batch of changes that leaves the document at sequence. Returns once
+     * the batch is durable; throws UncheckedIOException when it could not be made so.
+     */
+    void commit(long sequence);
+
+    /**
+     * Ends a batch like commit, but may return before it is durable. The future
+     * completes once it is, or fails as commit would have; batches become durable
+     * in the order they were committed.
+     */
+    default CompletableFuture<Void> commitAsync(long sequence) {
+        try {
+            commit(sequence);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
@@ -1,35 +1,280 @@
 package com.editor.backend.service;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import com.editor.backend.cluster.ClusterService;
+import com.editor.backend.cluster.DocumentMovedException;
+import com.editor.backend.cluster.DocumentRegistry;
+import com.editor.backend.config.Threads;
+import com.editor.backend.crdt.NodeStore;
+import com.editor.backend.crdt.SiblingIndex;
+import com.editor.backend.model.Cursor;
 import com.editor.backend.model.DocumentSession;
+import com.editor.backend.model.SyncRequest;
+import com.editor.backend.model.SyncResponse;
+import com.editor.backend.storage.DocumentStore;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class DocumentSessionService {
     private final Map<String, DocumentSession> documentSessions = new ConcurrentHashMap<>();
 
+    // Documents being read back from disk; whoever comes second waits for the first load
+    private final Map<String, CompletableFuture<DocumentSession>> loading = new ConcurrentHashMap<>();
+
+    // Editor and viewer codes of this node's documents, resident or stored, so a join is one
+    // lookup however many documents there are. Codes of other nodes' documents are in the registry
+    private final Map<String, JoinCode> joinCodes = new ConcurrentHashMap<>();
+
+    // Documents each client counts as a replica of, so a disconnect only visits those
+    private final Map<String, Set<String>> replicaDocuments = new ConcurrentHashMap<>();
+
+    // Shared by the document actors; each document occupies at most one thread at a time
+    private final Executor documentExecutor;
+    private final BroadcastBatcher broadcaster;
+    private final DocumentStore store;
+    private final ClusterService cluster;
+
+    // Node storage layout for new documents (HEAP, COLUMNAR or OFF_HEAP)
+    @Value("${editor.crdt.store:HEAP}")
+    private NodeStore.Kind storeKind = NodeStore.Kind.HEAP;
+
+    // Sibling count past which a parent's children are placed by binary search
+    @Value("${editor.crdt.sibling-index-threshold:16}")
+    private int siblingIndexThreshold = SiblingIndex.DEFAULT_THRESHOLD;
+
+    // Undo history caps: groups kept per user and runs of characters kept per document
+    @Value("${editor.history.max-groups-per-user:100}")
+    private int historyGroupsPerUser = EditHistory.DEFAULT_MAX_GROUPS_PER_USER;
+
+    @Value("${editor.history.max-entries-per-document:100000}")
+    private int historyEntriesPerDocument = EditHistory.DEFAULT_MAX_ENTRIES_PER_DOCUMENT;
+
+    // Longest pause between keystrokes that still undo together
+    @Value("${editor.history.group-window-ms:1000}")
+    private long historyGroupWindowMs = EditHistory.DEFAULT_GROUP_WINDOW_MS;
+
+    // Largest catch-up sent as a delta; bigger gaps get a snapshot of the document
+    @Value("${editor.sync.max-delta-ops:5000}")
+    private int syncMaxDeltaOps = 5000;
+
+    // The eviction sweep in progress, if any
+    private volatile CompletableFuture<Void> eviction = CompletableFuture.completedFuture(null);
+
+    // Documents untouched for this long are written to disk and dropped from memory (0 = never)
+    @Value("${editor.eviction.idle-ms:600000}")
+    private long evictionIdleMs = 600_000;
+
+    // Estimated memory the resident documents may use before the least recently used are dropped (0 = no limit)
+    @Value("${editor.eviction.memory-budget-mb:512}")
+    private long evictionBudgetMb = 512;
+
+    @Autowired
+    public DocumentSessionService(BroadcastBatcher broadcaster, DocumentStore store, ClusterService cluster,
+                                  @Value("${editor.documents.threads:PLATFORM}") Threads threads) {
+        this.broadcaster = broadcaster;
+        this.store = store;
+        this.cluster = cluster;
+        this.documentExecutor = documentExecutor(threads);
+    }
+
+    public DocumentSessionService(BroadcastBatcher broadcaster, DocumentStore store, ClusterService cluster) {
+        this(broadcaster, store, cluster, Threads.PLATFORM);
+    }
+
+    // A virtual thread per mailbox drain where the runtime has them, else a work-stealing pool
+    private static Executor documentExecutor(Threads threads) {
+        SimpleAsyncTaskExecutor executor = threads.executor("document-", SimpleAsyncTaskExecutor.UNBOUNDED_CONCURRENCY,
+                "document actors");
+        if (executor == null) return Executors.newWorkStealingPool();
+        executor.setTaskTerminationTimeout(10_000);
+        return executor;
+    }
+
+    // Makes the documents on this node's disk findable by id and join code from every node
+    @PostConstruct
+    public void registerStoredDocuments() {
+        for (DocumentStore.StoredDocument stored : store.documents()) {
+            indexCodes(stored.documentId, stored.editorCode, stored.viewerCode);
+            if (cluster.find(stored.documentId) == null) {
+                cluster.register(stored.documentId, stored.editorCode, stored.viewerCode);
+            }
+        }
+    }
+
+    // Creates a document backed by the configured node store and registers it
+    public DocumentSession createDocumentSession() {
+        DocumentSession session = new DocumentSession(newCRDT(null), documentExecutor, broadcaster);
+        watchJournal(session);
+        store.create(session);
+        cluster.register(session.getDocId(), session.getEditorCode(), session.getViewerCode());
+        cluster.acquire(session.getDocId());
+        addDocumentSession(session.getDocId(), session);
+        return session;
+    }
+
+    // An empty document, or one loaded from a snapshot image
+    private CRDTService newCRDT(DocumentImage image) {
+        EditHistory history = new EditHistory(historyGroupsPerUser, historyEntriesPerDocument, historyGroupWindowMs);
+        return image == null
+                ? new CRDTService(NodeStore.create(storeKind), siblingIndexThreshold, history)
+                : new CRDTService(NodeStore.create(storeKind), siblingIndexThreshold, history, image);
+    }
+
+    // Resident documents are returned as they are; stored ones are loaded back on first use.
+    // Throws DocumentMovedException when another node serves the document
     public DocumentSession getDocumentSession(String documentId) {
-        return documentSessions.get(documentId);
+        DocumentSession session = documentSessions.get(documentId);
+        if (session == null && (store.find(documentId) != null || cluster.find(documentId) != null)) {
+            cluster.checkLocal(documentId);
+            session = load(documentId);
+        }
+        if (session != null) {
+            session.markAccessed();
+        }
+        return session;
+    }
+
+    // Reads the document back outside the session map, so lookups of other documents never wait
+    // on the disk, and publishes it only if nobody has put a session there meanwhile
+    private DocumentSession load(String documentId) {
+        CompletableFuture<DocumentSession> mine = new CompletableFuture<>();
+        CompletableFuture<DocumentSession> pending = loading.putIfAbsent(documentId, mine);
+        if (pending != null) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        try {
+            DocumentSession session = documentSessions.get(documentId);
+            if (session == null) {
+                DocumentSession loaded = rehydrate(documentId);
+                if (loaded != null) {
+                    session = documentSessions.putIfAbsent(documentId, loaded);
+                    if (session == null) session = loaded;
+                }
+            }
+            mine.complete(session);
+            return session;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(documentId, mine);
+        }
+    }
+
+    private DocumentSession rehydrate(String documentId) {
+        DocumentStore.StoredDocument stored = store.find(documentId);
+        if (stored == null) return null;
+        if (!cluster.acquire(documentId)) {
+            throw new IllegalStateException("Document " + documentId + " was just taken by another node");
+        }
+        CRDTService crdt = store.load(documentId, this::newCRDT);
+        if (crdt == null) {
+            cluster.release(documentId);
+            return null;
+        }
+        indexCodes(documentId, stored.editorCode, stored.viewerCode);
+        System.out.println("[Server] : Loaded document " + documentId + " from disk");
+        DocumentSession session = new DocumentSession(documentId, stored.editorCode, stored.viewerCode, crdt,
+                documentExecutor, broadcaster);
+        watchJournal(session);
+        return session;
+    }
+
+    // A batch that could not be written is not kept: this copy is dropped without a snapshot
+    // and the document read back from its log, which ends at the last batch that was written
+    private void watchJournal(DocumentSession session) {
+        String documentId = session.getDocId();
+        session.getActor().onJournalFailure(() -> {
+            store.drop(documentId, session.getDocCRDT());
+            retire(session);
+            System.out.println("[Server] : Reloading document " + documentId + " from its log");
+        });
+    }
+
+    // Takes a session out of service from inside its actor. Work that still reaches it, from
+    // callers that looked it up just before, is passed on to whatever serves the document now:
+    // a copy loaded back from disk, another node (DocumentMovedException), or nothing
+    private void retire(DocumentSession session) {
+        String documentId = session.getDocId();
+        documentSessions.remove(documentId, session);
+        session.getActor().close(() -> {
+            DocumentSession next = getDocumentSession(documentId);
+            return next == null ? null : next.getActor();
+        });
     }
 
     public void addDocumentSession(String documentId, DocumentSession documentSession) {
+        indexCodes(documentId, documentSession.getEditorCode(), documentSession.getViewerCode());
         documentSessions.put(documentId, documentSession);
     }
 
+    // Where a join code leads
+    private static final class JoinCode {
+        final String documentId;
+        final String role;
+
+        JoinCode(String documentId, String role) {
+            this.documentId = documentId;
+            this.role = role;
+        }
+    }
+
+    private void indexCodes(String documentId, String editorCode, String viewerCode) {
+        joinCodes.put(editorCode, new JoinCode(documentId, "editor"));
+        joinCodes.put(viewerCode, new JoinCode(documentId, "viewer"));
+    }
+
+    private void unindexCodes(String editorCode, String viewerCode) {
+        joinCodes.remove(editorCode);
+        joinCodes.remove(viewerCode);
+    }
+
     public Map<String, String> getSessionCode(String code) {
         Map<String, String> result = new HashMap<>();
-        for (DocumentSession session : documentSessions.values()) {
-            if (session.getEditorCode().equals(code)) {
-                result.put("documentId", session.getDocId());
-                result.put("role", "editor");
-                return result;
-            } else if (session.getViewerCode().equals(code)) {
-                result.put("documentId", session.getDocId());
-                result.put("role", "viewer");
+        JoinCode joinCode = joinCodes.get(code);
+        if (joinCode == null) {
+            DocumentRegistry.Entry entry = cluster.findByCode(code);
+            if (entry != null) {
+                joinCode = new JoinCode(entry.documentId, entry.editorCode.equals(code) ? "editor" : "viewer");
+            }
+        }
+        // Warm the document here, or tell the client which node serves it
+        if (joinCode != null) {
+            try {
+                if (getDocumentSession(joinCode.documentId) != null) {
+                    result.put("documentId", joinCode.documentId);
+                    result.put("role", joinCode.role);
+                    return result;
+                }
+            } catch (DocumentMovedException e) {
+                result.put("documentId", joinCode.documentId);
+                result.put("role", joinCode.role);
+                result.put("server", e.getOwnerAddress());
                 return result;
             }
         }
@@ -39,10 +284,248 @@ public class DocumentSessionService {
     }
 
     public void removeDocumentSession(String documentId) {
-        documentSessions.remove(documentId);
+        cluster.remove(documentId);
+        DocumentSession session = documentSessions.remove(documentId);
+        if (session != null) {
+            unindexCodes(session.getEditorCode(), session.getViewerCode());
+            // Queued behind the document's pending work, so nothing writes to the log after it is gone
+            session.getActor().run(crdt -> {
+                store.delete(documentId);
+                retire(session);
+            });
+        } else {
+            DocumentStore.StoredDocument stored = store.find(documentId);
+            if (stored != null) unindexCodes(stored.editorCode, stored.viewerCode);
+            store.delete(documentId);
+        }
+    }
+
+    // Marks a client as disconnected from the documents it was a replica of; it holds back
+    // tombstone collection only while a delta sync could still bring it up to date
+    public void removeReplica(String replicaId) {
+        Set<String> documents = replicaDocuments.remove(replicaId);
+        if (documents == null) return;
+        for (String documentId : documents) {
+            DocumentSession session = documentSessions.get(documentId);
+            if (session != null) session.getActor().run(crdt -> crdt.removeReplica(replicaId));
+        }
+    }
+
+    // Counts a client as a replica holding everything up to sequence
+    public void acknowledge(String documentId, String replicaId, long sequence) {
+        DocumentSession session = getDocumentSession(documentId);
+        if (session == null) return;
+        trackReplica(replicaId, documentId);
+        session.getActor().run(crdt -> crdt.acknowledge(replicaId, sequence));
+    }
+
+    private void trackReplica(String replicaId, String documentId) {
+        replicaDocuments.computeIfAbsent(replicaId, k -> ConcurrentHashMap.newKeySet()).add(documentId);
+    }
+
+    // Brings a reconnecting client up to date and counts it as a replica from there on. An
+    // unknown document, or one served by another node, fails the future instead of throwing
+    public CompletableFuture<SyncResponse> sync(String documentId, String replicaId, SyncRequest request) {
+        DocumentSession session;
+        try {
+            session = getDocumentSession(documentId);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (session == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid documentId"));
+        }
+        trackReplica(replicaId, documentId);
+        return session.getActor().call(crdt -> {
+            Map<String, Long> stateVector = request.getStateVector() == null ? Map.of() : request.getStateVector();
+            SyncResponse response = crdt.sync(stateVector, request.getSequence(), syncMaxDeltaOps);
+            crdt.acknowledge(replicaId, response.getSequence());
+            return response;
+        });
+    }
+
+    // Background compaction: removes tombstones every connected client has already seen
+    @Scheduled(fixedDelayString = "${editor.gc.interval-ms:60000}")
+    public void collectGarbage() {
+        for (DocumentSession session : documentSessions.values()) {
+            session.getActor().run(crdt -> {
+                int reclaimed = crdt.collectGarbage();
+                if (reclaimed > 0) {
+                    System.out.println("[Server] : Reclaimed " + reclaimed + " tombstones in document " + session.getDocId());
+                }
+            });
+        }
+    }
+
+    // Cursor tick: applies each document's latest cursor moves in one actor task and broadcasts
+    // the cursors that moved as one frame, so moves overtaken within a tick are never resolved
+    @Scheduled(fixedRateString = "${editor.cursors.tick-ms:50}")
+    public void flushCursors() {
+        for (DocumentSession session : documentSessions.values()) {
+            Map<String, String> moves = session.takeCursorMoves();
+            if (moves.isEmpty()) continue;
+            DocumentActor actor = session.getActor();
+            actor.run(crdt -> {
+                List<Cursor> moved = new ArrayList<>(moves.size());
+                for (Map.Entry<String, String> move : moves.entrySet()) {
+                    try {
+                        crdt.updateCursor(move.getKey(), move.getValue());
+                    } catch (RuntimeException e) {
+                        System.out.println("[Server] : Ignored cursor of " + move.getKey() + " on document "
+                                + session.getDocId() + " - " + e);
+                        continue;
+                    }
+                    Cursor cursor = crdt.getCursor(move.getKey());
+                    if (cursor != null) moved.add(cursor);
+                }
+                if (!moved.isEmpty()) {
+                    actor.publish("/topic/Document/" + session.getDocId() + "/cursors", moved);
+                }
+            });
+        }
+    }
+
+    // Background checkpoint: snapshots documents whose log has grown past the threshold, so
+    // recovery replays a bounded tail. Only copying the state out runs on the actor; the
+    // snapshot is written on the store's I/O threads.
+    @Scheduled(fixedDelayString = "${editor.storage.snapshot-interval-ms:30000}")
+    public void checkpoint() {
+        for (DocumentSession session : documentSessions.values()) {
+            if (!store.needsCheckpoint(session.getDocId())) continue;
+            session.getActor()
+                    .call(crdt -> store.beginCheckpoint(session.getDocId(), crdt))
+                    .thenAcceptAsync(store::finishCheckpoint, store.ioExecutor())
+                    .exceptionally(e -> {
+                        System.out.println("[Server] : Checkpoint failed on document " + session.getDocId() + " - " + e);
+                        return null;
+                    });
+        }
+    }
+
+    // Background eviction: writes documents nobody has touched for a while back to disk and
+    // drops them from memory, then keeps dropping the least recently used ones while the
+    // resident documents are estimated to exceed the memory budget. Documents with
+    // connected clients go last. Needs the disk store; without it nothing is evicted.
+    // The sweep chains on the actors instead of waiting for them, so the scheduler thread
+    // (which also ticks the cursors) is never held up; a sweep still running is not restarted.
+    @Scheduled(fixedDelayString = "${editor.eviction.interval-ms:30000}")
+    public void scheduleEviction() {
+        evictColdDocuments();
+    }
+
+    public CompletableFuture<Void> evictColdDocuments() {
+        if (!store.isEnabled() || (evictionIdleMs <= 0 && evictionBudgetMb <= 0)) return CompletableFuture.completedFuture(null);
+        if (!eviction.isDone()) return eviction;
+
+        List<CompletableFuture<Resident>> measured = new ArrayList<>();
+        for (DocumentSession session : documentSessions.values()) {
+            Resident resident = new Resident(session);
+            measured.add(session.getActor().call(crdt -> {
+                resident.bytes = crdt.estimatedBytes();
+                resident.connected = crdt.getReplicaCount() > 0;
+                return resident;
+            }).exceptionally(e -> null));
+        }
+        eviction = CompletableFuture.allOf(measured.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> evictColdest(measured));
+        return eviction;
+    }
+
+    private CompletableFuture<Void> evictColdest(List<CompletableFuture<Resident>> measured) {
+        List<Resident> residents = new ArrayList<>();
+        for (CompletableFuture<Resident> resident : measured) {
+            if (resident.join() != null) residents.add(resident.join());
+        }
+        residents.sort(Comparator.comparing((Resident r) -> r.connected)
+                .thenComparingLong(r -> r.session.getLastAccessed()));
+
+        long total = 0;
+        for (Resident resident : residents) {
+            total += resident.bytes;
+        }
+        long budget = evictionBudgetMb * 1024 * 1024;
+        long now = System.currentTimeMillis();
+        // One document at a time, each step knowing what the ones before it freed
+        CompletableFuture<Long> left = CompletableFuture.completedFuture(total);
+        for (Resident resident : residents) {
+            left = left.thenCompose(bytes -> {
+                boolean idle = evictionIdleMs > 0 && now - resident.session.getLastAccessed() >= evictionIdleMs;
+                boolean overBudget = evictionBudgetMb > 0 && bytes > budget;
+                if (!idle && !overBudget) return CompletableFuture.completedFuture(bytes);
+                return evict(resident.session).thenApply(evicted -> evicted ? bytes - resident.bytes : bytes);
+            });
+        }
+        return left.thenAccept(bytes -> { });
+    }
+
+    private static final class Resident {
+        final DocumentSession session;
+        long bytes;
+        boolean connected;
+
+        Resident(DocumentSession session) {
+            this.session = session;
+        }
+    }
+
+    // The session leaves the map only once its snapshot is on disk, so a lookup racing
+    // the eviction never loads an older copy, and work that reaches it afterwards is
+    // applied to the copy loaded back in its place
+    private CompletableFuture<Boolean> evict(DocumentSession session) {
+        String documentId = session.getDocId();
+        // Released before anything can load it back, which takes the lease again
+        return session.getActor().call(crdt -> {
+            store.unload(documentId, crdt);
+            cluster.release(documentId);
+            retire(session);
+            return null;
+        }).handle((ignored, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                System.out.println("[Server] : Could not unload document " + documentId + " - " + cause);
+                return false;
+            }
+            System.out.println("[Server] : Unloaded document " + documentId + " to disk");
+            return true;
+        });
+    }
+
+    // Keeps this node announced and the leases of its documents alive. A document whose
+    // lease went to another node (after a pause longer than the lease) is dropped here
+    // without a snapshot, since the new owner may already be writing to it. The drops are
+    // queued on the actors, not waited for.
+    @Scheduled(fixedDelayString = "${editor.cluster.heartbeat-ms:5000}")
+    public void scheduleHeartbeat() {
+        renewLeases();
+    }
+
+    public CompletableFuture<Void> renewLeases() {
+        List<CompletableFuture<Void>> dropped = new ArrayList<>();
+        for (String documentId : cluster.heartbeat(documentSessions.keySet())) {
+            DocumentSession session = documentSessions.get(documentId);
+            if (session == null) continue;
+            dropped.add(session.getActor().run(crdt -> {
+                store.drop(documentId, crdt);
+                retire(session);
+            }).thenRun(() -> System.out.println("[Server] : Lost document " + documentId + " to another node")));
+        }
+        return CompletableFuture.allOf(dropped.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Lets queued batches reach the log before it is closed
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (documentExecutor instanceof SimpleAsyncTaskExecutor virtual) {
+            virtual.close();
+        } else if (documentExecutor instanceof ExecutorService pool) {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        store.close();
     }
 
     public boolean documentSessionExists(String documentId) {
-        return documentSessions.containsKey(documentId);
+        return documentSessions.containsKey(documentId) || store.find(documentId) != null
+                || cluster.find(documentId) != null;
     }
 }
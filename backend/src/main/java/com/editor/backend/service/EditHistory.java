@@ -0,0 +1,383 @@
+package com.editor.backend.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import com.editor.backend.crdt.NodeIds;
+import com.editor.backend.model.Operation;
+
+/**
+ * Undo and redo history of one document.
+ * Every user has a bounded ring of undo groups and another of redo groups. A
+ * group is one transaction: a paste, a selection delete, or a burst of typing or
+ * deleting at one spot. It moves between the rings as a unit. Characters are stored
+ * as runs of consecutive ids, and undoing a group flips each run as one range, so
+ * the work follows its runs rather than its characters. The document caps the
+ * total number of runs kept; past either cap the oldest groups are forgotten first.
+ */
+public class EditHistory {
+
+    public static final int DEFAULT_MAX_GROUPS_PER_USER = 100;
+    public static final int DEFAULT_MAX_ENTRIES_PER_DOCUMENT = 100_000;
+    public static final long DEFAULT_GROUP_WINDOW_MS = 1000;
+
+    private final int maxGroupsPerUser;
+    private final int maxEntries;
+    private final long groupWindowMs;
+    private final LongSupplier clock;
+
+    private final Map<String, Ring> undo = new HashMap<>();
+    private final Map<String, Ring> redo = new HashMap<>();
+
+    // Runs held by every group of every user
+    private int entries;
+    private long nextSerial;
+
+    public EditHistory() {
+        this(DEFAULT_MAX_GROUPS_PER_USER, DEFAULT_MAX_ENTRIES_PER_DOCUMENT, DEFAULT_GROUP_WINDOW_MS);
+    }
+
+    // groupWindowMs: longest pause inside one burst of typing; negative turns bursts off
+    public EditHistory(int maxGroupsPerUser, int maxEntriesPerDocument, long groupWindowMs) {
+        this(maxGroupsPerUser, maxEntriesPerDocument, groupWindowMs, System::currentTimeMillis);
+    }
+
+    // clock: milliseconds the group window is measured against
+    public EditHistory(int maxGroupsPerUser, int maxEntriesPerDocument, long groupWindowMs, LongSupplier clock) {
+        if (maxGroupsPerUser < 1 || maxEntriesPerDocument < 1) {
+            throw new IllegalArgumentException("History caps must be positive");
+        }
+        this.maxGroupsPerUser = maxGroupsPerUser;
+        this.maxEntries = maxEntriesPerDocument;
+        this.groupWindowMs = groupWindowMs;
+        this.clock = clock;
+    }
+
+    /** The time an edit happens at, as continuable and record take it. */
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Last character of the user's latest undo group when an edit of this type at
+     * time now may still join it, or NONE when the edit starts a new group.
+     */
+    public long continuable(String user, Operation.Type type, long now) {
+        Ring ring = undo.get(user);
+        Group latest = ring == null ? null : ring.peek();
+        if (latest == null || latest.type != type || now - latest.lastTime > groupWindowMs) return NodeIds.NONE;
+        return latest.lastId;
+    }
+
+    /** Records count characters from id on, either as a new group or appended to the user's latest one. */
+    public void record(String user, Operation.Type type, long id, int count, boolean append, long now) {
+        Ring ring = undo.computeIfAbsent(user, k -> new Ring());
+        Group group = append ? ring.peek() : null;
+        if (group == null || group.type != type) {
+            group = new Group(type, id, nextSerial++);
+            Group evicted = ring.push(group, maxGroupsPerUser);
+            if (evicted != null) {
+                entries -= evicted.runs.size();
+            }
+        }
+        Edit last = group.runs.peekLast();
+        if (last == null || !last.extend(type, id, count)) {
+            group.runs.addLast(new Edit(type, id, count));
+            entries++;
+        }
+        group.size += count;
+        group.lastId = id + count - 1;
+        group.lastTime = now;
+        enforceCap(group);
+    }
+
+    /** Takes the user's latest undo group over to their redo ring; null when there is none. */
+    public Group undo(String user) {
+        return move(undo, redo, user);
+    }
+
+    /** Takes the user's latest redo group back to their undo ring; null when there is none. */
+    public Group redo(String user) {
+        return move(redo, undo, user);
+    }
+
+    private Group move(Map<String, Ring> from, Map<String, Ring> to, String user) {
+        Ring ring = from.get(user);
+        Group group = ring == null ? null : ring.pop();
+        if (group == null) return null;
+        group.lastTime = Long.MIN_VALUE / 2; // an undone or redone group never takes more edits
+        Group evicted = to.computeIfAbsent(user, k -> new Ring()).push(group, maxGroupsPerUser);
+        if (evicted != null) {
+            entries -= evicted.runs.size();
+        }
+        return group;
+    }
+
+    /**
+     * Drops removed characters from every group, and groups left with nothing. The
+     * characters are given as disjoint ranges [starts[i], ends[i]), sorted by start.
+     */
+    public void prune(long[] starts, long[] ends) {
+        prune(undo, starts, ends);
+        prune(redo, starts, ends);
+    }
+
+    private void prune(Map<String, Ring> rings, long[] starts, long[] ends) {
+        for (Ring ring : rings.values()) {
+            ring.removeIf(group -> {
+                if (!group.overlaps(starts, ends)) return false;
+                ArrayDeque<Edit> kept = new ArrayDeque<>();
+                for (Edit edit : group.runs) {
+                    if (!edit.overlaps(starts, ends)) {
+                        kept.addLast(edit);
+                        continue;
+                    }
+                    int before = kept.size();
+                    int left = 0;
+                    for (long[] piece : edit.without(starts, ends)) {
+                        kept.addLast(new Edit(edit.type, piece[0], (int) piece[1], edit.step));
+                        left += (int) piece[1];
+                    }
+                    group.size -= edit.count - left;
+                    if (edit.step < 0) { // pieces came lowest first; the run goes the other way
+                        reverseTail(kept, kept.size() - before);
+                    }
+                }
+                entries += kept.size() - group.runs.size();
+                group.runs.clear();
+                group.runs.addAll(kept);
+                return group.size == 0;
+            });
+        }
+    }
+
+    private static void reverseTail(ArrayDeque<Edit> edits, int n) {
+        ArrayDeque<Edit> tail = new ArrayDeque<>(n);
+        for (int i = 0; i < n; i++) {
+            tail.addLast(edits.pollLast());
+        }
+        edits.addAll(tail);
+    }
+
+    // Runs currently held by the whole document
+    public int entries() {
+        return entries;
+    }
+
+    public int undoDepth(String user) {
+        Ring ring = undo.get(user);
+        return ring == null ? 0 : ring.size;
+    }
+
+    public int redoDepth(String user) {
+        Ring ring = redo.get(user);
+        return ring == null ? 0 : ring.size;
+    }
+
+    // Forgets the document's oldest groups until it is back under the entry cap. The group
+    // being written is never dropped whole; when it is the only one left its oldest runs go.
+    private void enforceCap(Group current) {
+        while (entries > maxEntries) {
+            Ring oldestRing = null;
+            for (Ring ring : undo.values()) {
+                oldestRing = older(oldestRing, ring, current);
+            }
+            for (Ring ring : redo.values()) {
+                oldestRing = older(oldestRing, ring, current);
+            }
+            if (oldestRing != null) {
+                entries -= oldestRing.removeOldest().runs.size();
+            } else {
+                current.size -= current.runs.pollFirst().count;
+                entries--;
+            }
+        }
+    }
+
+    // current sits on top of its ring, so a ring whose oldest group is current holds nothing else
+    private static Ring older(Ring best, Ring ring, Group current) {
+        if (ring.size == 0 || ring.oldest() == current) return best;
+        if (best == null || ring.oldest().serial < best.oldest().serial) return ring;
+        return best;
+    }
+
+    /** One undoable transaction: its type, its characters, and the span they cover. */
+    public static final class Group {
+        final Operation.Type type;
+        final ArrayDeque<Edit> runs = new ArrayDeque<>();
+        final long serial;
+        final long firstId;
+        long lastId;
+        long lastTime;
+        int size;
+
+        Group(Operation.Type type, long firstId, long serial) {
+            this.type = type;
+            this.firstId = firstId;
+            this.serial = serial;
+        }
+
+        public Operation.Type getType() { return type; }
+
+        // First and last character recorded, in the order they were edited
+        public long getFirstId() { return firstId; }
+        public long getLastId() { return lastId; }
+
+        public int size() { return size; }
+
+        // Runs of consecutive ids, most recent first
+        public void forEachRun(RunVisitor visitor) {
+            for (Iterator<Edit> edits = runs.descendingIterator(); edits.hasNext(); ) {
+                Edit edit = edits.next();
+                visitor.visit(edit.low(), edit.count);
+            }
+        }
+
+        boolean overlaps(long[] starts, long[] ends) {
+            for (Edit edit : runs) {
+                if (edit.overlaps(starts, ends)) return true;
+            }
+            return false;
+        }
+    }
+
+    /** Receives one run of count characters with ids low, low + 1, ... */
+    public interface RunVisitor {
+        void visit(long low, int count);
+    }
+
+    // A run of count characters with ids first, first + step, ...
+    static final class Edit {
+        final Operation.Type type;
+        final long first;
+        int count;
+        int step = 1;
+
+        Edit(Operation.Type type, long first, int count) {
+            this(type, first, count, 1);
+        }
+
+        Edit(Operation.Type type, long first, int count, int step) {
+            this.type = type;
+            this.first = first;
+            this.count = count;
+            this.step = count > 1 ? step : 1;
+        }
+
+        // Lowest id of the run and one past the highest
+        long low() {
+            return step > 0 ? first : first - count + 1;
+        }
+
+        long high() {
+            return low() + count;
+        }
+
+        // Whether any of the sorted, disjoint ranges reaches into this run
+        boolean overlaps(long[] starts, long[] ends) {
+            int i = firstEndingAfter(ends, low());
+            return i < starts.length && starts[i] < high();
+        }
+
+        // What is left of the run outside the ranges, as {first id, count} pieces lowest
+        // first; a piece of a backward run starts at its highest id
+        List<long[]> without(long[] starts, long[] ends) {
+            List<long[]> pieces = new ArrayList<>();
+            long at = low();
+            for (int i = firstEndingAfter(ends, at); i < starts.length && starts[i] < high(); i++) {
+                if (starts[i] > at) pieces.add(piece(at, starts[i]));
+                at = Math.max(at, ends[i]);
+            }
+            if (at < high()) pieces.add(piece(at, high()));
+            return pieces;
+        }
+
+        private long[] piece(long from, long to) {
+            return new long[] { step > 0 ? from : to - 1, to - from };
+        }
+
+        // Index of the first range ending after id; ends are sorted along with the starts
+        private static int firstEndingAfter(long[] ends, long id) {
+            int i = Arrays.binarySearch(ends, id);
+            return i < 0 ? -i - 1 : i + 1;
+        }
+
+        boolean extend(Operation.Type type, long id, int n) {
+            if (type != this.type || NodeIds.site(id) != NodeIds.site(first)) return false;
+            if (count == 1 && n == 1 && id == first - 1) {
+                step = -1;
+            }
+            if (id != first + (long) count * step || (step < 0 && n > 1)) return false;
+            count += n;
+            return true;
+        }
+    }
+
+    // Fixed-capacity stack of groups that overwrites its oldest entry when full
+    private static final class Ring {
+        private Group[] slots = new Group[8];
+        private int head; // index of the oldest group
+        private int size;
+
+        // Pushes group and returns the group it pushed out, if any
+        Group push(Group group, int capacity) {
+            Group evicted = null;
+            if (size == capacity) {
+                evicted = removeOldest();
+            } else if (size == slots.length) {
+                Group[] grown = new Group[Math.min(capacity, slots.length * 2)];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = slots[(head + i) % slots.length];
+                }
+                slots = grown;
+                head = 0;
+            }
+            slots[(head + size++) % slots.length] = group;
+            return evicted;
+        }
+
+        Group peek() {
+            return size == 0 ? null : slots[(head + size - 1) % slots.length];
+        }
+
+        Group pop() {
+            if (size == 0) return null;
+            int i = (head + --size) % slots.length;
+            Group group = slots[i];
+            slots[i] = null;
+            return group;
+        }
+
+        Group oldest() {
+            return size == 0 ? null : slots[head];
+        }
+
+        Group removeOldest() {
+            Group group = slots[head];
+            slots[head] = null;
+            head = (head + 1) % slots.length;
+            size--;
+            return group;
+        }
+
+        void removeIf(java.util.function.Predicate<Group> drop) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                Group group = slots[(head + i) % slots.length];
+                if (!drop.test(group)) {
+                    slots[(head + kept++) % slots.length] = group;
+                }
+            }
+            for (int i = kept; i < size; i++) {
+                slots[(head + i) % slots.length] = null;
+            }
+            size = kept;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.editor.backend.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+
+import com.editor.backend.model.Comment;
+import com.editor.backend.model.DocumentSession;
+import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentJournal;
+import com.editor.backend.service.DocumentImage;
+
+/**
+ * Durable storage of documents on the local disk, one directory per document:
+ *
+ *   document.properties    id and join codes
+ *   0000000000000003.snap  state as of the start of segment 3
+ *   0000000000000003.wal   changes since, appended batch by batch
+ *
+ * A checkpoint starts a new log segment and writes a snapshot of the state at
+ * that cut (see SnapshotCodec), after which older segments and snapshots are
+ * deleted. Recovery
+ * loads the newest snapshot and replays only the segments from there on, so
+ * its cost is bounded by the checkpoint threshold rather than the history.
+ * Documents are only read back when asked for, and a loaded one can be
+ * unloaded again to free memory. With no directory configured the store is
+ * disabled and keeps nothing.
+ */
+@Service
+public class DocumentStore {
+
+    private static final String META = "document.properties";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    // Ids are UUIDs; anything else never names a directory
+    private static final Pattern DOCUMENT_ID = Pattern.compile("[A-Za-z0-9-]+");
+
+    // Root directory of the store; empty keeps documents in memory only
+    @Value("${editor.storage.dir:}")
+    private String directory = "";
+
+    // Log bytes after which a document is checkpointed
+    @Value("${editor.storage.snapshot-after-bytes:8388608}")
+    private long snapshotAfterBytes = 8L << 20;
+
+    // Threads that write and fsync logs and snapshots, so document actors never wait on the disk
+    @Value("${editor.storage.io-threads:4}")
+    private int ioThreads = 4;
+
+    private ExecutorService io;
+
+    private final Map<String, WriteAheadLog> logs = new ConcurrentHashMap<>();
+
+    // Every stored document, loaded or not
+    private final Map<String, StoredDocument> catalog = new ConcurrentHashMap<>();
+
+    public DocumentStore() {
+    }
+
+    public DocumentStore(String directory, long snapshotAfterBytes) {
+        this.directory = directory;
+        this.snapshotAfterBytes = snapshotAfterBytes;
+        open();
+    }
+
+    /** Id and join codes of a document on disk. */
+    public static final class StoredDocument {
+        public final String documentId;
+        public final String editorCode;
+        public final String viewerCode;
+
+        StoredDocument(String documentId, String editorCode, String viewerCode) {
+            this.documentId = documentId;
+            this.editorCode = editorCode;
+            this.viewerCode = viewerCode;
+        }
+    }
+
+    public boolean isEnabled() {
+        return !directory.isBlank();
+    }
+
+    /** Lists the documents kept by an earlier run; their contents stay on disk until loaded. */
+    @PostConstruct
+    public void open() {
+        if (!isEnabled()) return;
+        Path root = Paths.get(directory);
+        if (!Files.isDirectory(root)) return;
+        try (Stream<Path> dirs = Files.list(root)) {
+            for (Path dir : (Iterable<Path>) dirs::iterator) {
+                StoredDocument stored = readMeta(dir);
+                if (stored != null) catalog.put(stored.documentId, stored);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!catalog.isEmpty()) {
+            System.out.println("[Server] : Found " + catalog.size() + " stored documents");
+        }
+    }
+
+    /** Gives a new document its directory and log; its CRDT journals to disk from then on. */
+    public void create(DocumentSession session) {
+        if (!isEnabled()) return;
+        Path dir = documentDirectory(session.getDocId());
+        try {
+            Files.createDirectories(dir);
+            Properties meta = new Properties();
+            meta.setProperty("documentId", session.getDocId());
+            meta.setProperty("editorCode", session.getEditorCode());
+            meta.setProperty("viewerCode", session.getViewerCode());
+            Path tmp = dir.resolve(META + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                meta.store(out, null);
+            }
+            Files.move(tmp, dir.resolve(META), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        catalog.put(session.getDocId(),
+                new StoredDocument(session.getDocId(), session.getEditorCode(), session.getViewerCode()));
+        attach(session.getDocId(), session.getDocCRDT(), 1);
+    }
+
+    /**
+     * The stored document, or null. Documents another node created in a shared
+     * directory since this one started are picked up from disk.
+     */
+    public StoredDocument find(String documentId) {
+        StoredDocument stored = catalog.get(documentId);
+        if (stored != null || !isEnabled() || !DOCUMENT_ID.matcher(documentId).matches()) return stored;
+        try {
+            stored = readMeta(documentDirectory(documentId));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (stored != null) catalog.putIfAbsent(documentId, stored);
+        return stored;
+    }
+
+    private static StoredDocument readMeta(Path dir) throws IOException {
+        if (!Files.isRegularFile(dir.resolve(META))) return null;
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(META))) {
+            meta.load(in);
+        }
+        return new StoredDocument(meta.getProperty("documentId"),
+                meta.getProperty("editorCode"), meta.getProperty("viewerCode"));
+    }
+
+    public Collection<StoredDocument> documents() {
+        return catalog.values();
+    }
+
+    public int size() {
+        return catalog.size();
+    }
+
+    /**
+     * Reads a stored document back, with its log open for further changes, or returns
+     * null when there is no such document. crdtFactory builds a document from its
+     * snapshot, or an empty one when given null, for the log to be replayed into.
+     */
+    public CRDTService load(String documentId, Function<DocumentImage, CRDTService> crdtFactory) {
+        if (!catalog.containsKey(documentId)) return null;
+        Path dir = documentDirectory(documentId);
+        try {
+            // Newest snapshot, then every segment from its cut on
+            long start = 0;
+            DocumentImage image = null;
+            List<Long> snapshots = numbered(dir, SNAPSHOT_SUFFIX);
+            if (!snapshots.isEmpty()) {
+                start = snapshots.get(snapshots.size() - 1);
+                image = SnapshotCodec.decode(Files.readAllBytes(dir.resolve(snapshotName(start))));
+            }
+            CRDTService crdt = crdtFactory.apply(image);
+            long last = start;
+            for (long segment : numbered(dir, SEGMENT_SUFFIX)) {
+                if (segment < start) continue;
+                JournalReader.Result result = JournalReader.replay(dir.resolve(WriteAheadLog.segmentName(segment)), crdt);
+                if (!result.complete) {
+                    System.out.println("[Server] : Dropped a torn batch at the end of "
+                            + WriteAheadLog.segmentName(segment) + " for document " + documentId);
+                }
+                last = segment;
+            }
+
+            // Appends go to a fresh segment, never after a possibly torn tail
+            attach(documentId, crdt, last + 1);
+            return crdt;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a full snapshot of a loaded document and closes its log, so the copy in
+     * memory can be dropped. Must run on the document's actor. Changes made to that
+     * copy afterwards are not kept: their batch fails to commit.
+     */
+    public void unload(String documentId, CRDTService crdt) {
+        WriteAheadLog log = logs.remove(documentId);
+        if (log == null) return;
+        Checkpoint checkpoint = new Checkpoint(documentId, log.rotate(crdt.getSequence()), crdt.toImage());
+        log.close();
+        crdt.setJournal(new Unloaded(documentId));
+        finishCheckpoint(checkpoint);
+    }
+
+    /**
+     * Closes a loaded document's log without a snapshot, for a copy that is being
+     * dropped because another node took the document over. Everything committed is
+     * already in the log. Must run on the document's actor.
+     */
+    public void drop(String documentId, CRDTService crdt) {
+        WriteAheadLog log = logs.remove(documentId);
+        if (log != null) log.close();
+        crdt.setJournal(new Unloaded(documentId));
+    }
+
+    /**
+     * Whether the document has logged enough since its last checkpoint to need one.
+     * Called from the background checkpoint task.
+     */
+    public boolean needsCheckpoint(String documentId) {
+        WriteAheadLog log = logs.get(documentId);
+        return log != null && log.bytesSinceRotation() >= snapshotAfterBytes;
+    }
+
+    /**
+     * Starts a new log segment and copies out the document's state at that cut.
+     * Must run on the document's actor; encoding and writing it out do not.
+     * Returns null when the document was unloaded or deleted in the meantime.
+     */
+    public Checkpoint beginCheckpoint(String documentId, CRDTService crdt) {
+        WriteAheadLog log = logs.get(documentId);
+        if (log == null) return null;
+        long segment = log.rotate(crdt.getSequence());
+        return new Checkpoint(documentId, segment, crdt.toImage());
+    }
+
+    /** State of a document as of the start of one log segment, not yet on disk. */
+    public static final class Checkpoint {
+        final String documentId;
+        final long segment;
+        final DocumentImage image;
+
+        Checkpoint(String documentId, long segment, DocumentImage image) {
+            this.documentId = documentId;
+            this.segment = segment;
+            this.image = image;
+        }
+    }
+
+    /** Encodes and writes the snapshot durably, then deletes what it replaces. */
+    public void finishCheckpoint(Checkpoint checkpoint) {
+        if (checkpoint == null) return;
+        Path dir = documentDirectory(checkpoint.documentId);
+        Path tmp = dir.resolve(snapshotName(checkpoint.segment) + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(SnapshotCodec.encode(checkpoint.image));
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                out.force(true);
+            }
+            Files.move(tmp, dir.resolve(snapshotName(checkpoint.segment)), StandardCopyOption.ATOMIC_MOVE);
+            // The rename is durable only once the directory is; until then a crash could bring
+            // back the old files after the segments below are gone
+            syncDirectory(dir);
+
+            for (long old : numbered(dir, SNAPSHOT_SUFFIX)) {
+                if (old < checkpoint.segment) Files.deleteIfExists(dir.resolve(snapshotName(old)));
+            }
+            for (long old : numbered(dir, SEGMENT_SUFFIX)) {
+                if (old < checkpoint.segment) Files.deleteIfExists(dir.resolve(WriteAheadLog.segmentName(old)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Flushes a directory's entries. Windows cannot open a directory as a channel, and
+    // makes renames as durable as it can without it
+    private static void syncDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /** Forgets a document for good, files included. */
+    public void delete(String documentId) {
+        WriteAheadLog log = logs.remove(documentId);
+        if (log != null) log.close();
+        if (catalog.remove(documentId) == null) return;
+        try (Stream<Path> files = Files.walk(documentDirectory(documentId))) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Closes every log, after its pending writes; call once no actor will write again. */
+    public void close() {
+        for (WriteAheadLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+        synchronized (this) {
+            if (io != null) io.shutdown();
+            io = null;
+        }
+    }
+
+    /** Where durable writes run; finishCheckpoint belongs here rather than on an actor's thread. */
+    public synchronized Executor ioExecutor() {
+        if (io == null) {
+            io = Executors.newFixedThreadPool(ioThreads, runnable -> {
+                Thread thread = new Thread(runnable, "storage-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return io;
+    }
+
+    // Journal of a document whose copy in memory was dropped; refuses further changes
+    private static final class Unloaded implements DocumentJournal {
+        private final String documentId;
+        private boolean changed;
+
+        Unloaded(String documentId) {
+            this.documentId = documentId;
+        }
+
+        @Override public void inserted(String id, String parentId, CharSequence text) { changed = true; }
+        @Override public void deletedChanged(String id, int count, boolean deleted) { changed = true; }
+        @Override public void commentSaved(Comment comment) { changed = true; }
+        @Override public void commentRemoved(String commentId) { changed = true; }
+
+        @Override
+        public void commit(long sequence) {
+            if (!changed) return;
+            changed = false;
+            throw new UncheckedIOException(new IOException("Document " + documentId + " was unloaded"));
+        }
+    }
+
+    private void attach(String documentId, CRDTService crdt, long segment) {
+        WriteAheadLog log = new WriteAheadLog(documentDirectory(documentId), segment, ioExecutor());
+        logs.put(documentId, log);
+        crdt.setJournal(log);
+    }
+
+    private Path documentDirectory(String documentId) {
+        return Paths.get(directory, documentId);
+    }
+
+    private static String snapshotName(long segment) {
+        return String.format("%016d%s", segment, SNAPSHOT_SUFFIX);
+    }
+
+    // Numbers of the files in dir with the given suffix, ascending
+    private static List<Long> numbered(Path dir, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(suffix)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+                    } catch (NumberFormatException ignored) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
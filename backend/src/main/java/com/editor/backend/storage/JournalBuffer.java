@@ -0,0 +1,164 @@
+package com.editor.backend.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.editor.backend.model.Comment;
+import com.editor.backend.service.DocumentJournal;
+
+/**
+ * Journal records encoded into memory, ready to be written out in one go.
+ * Each record is framed as [length][crc32][type][fields...], so a reader can
+ * tell a complete record from one cut short by a crash. Strings are written as
+ * a length and UTF-8 bytes, with -1 for null. A commit only appends a COMMIT
+ * record; writing the buffer anywhere is up to the owner.
+ */
+public class JournalBuffer implements DocumentJournal {
+
+    static final byte INSERT = 1;
+    static final byte DELETED = 2; // one character, as logs written before runs hold
+    static final byte COMMENT_SAVED = 3;
+    static final byte COMMENT_REMOVED = 4;
+    static final byte COMMIT = 5;
+    static final byte DELETED_RUN = 6;
+
+    // Bytes of frame before the payload: length and checksum
+    static final int HEADER = 8;
+
+    private byte[] bytes = new byte[4096];
+    private int size;
+    private int recordStart;
+    private final CRC32 crc = new CRC32();
+
+    @Override
+    public void inserted(String id, String parentId, CharSequence text) {
+        begin(INSERT);
+        writeString(id);
+        writeString(parentId);
+        writeString(text);
+        end();
+    }
+
+    @Override
+    public void deletedChanged(String id, int count, boolean deleted) {
+        begin(DELETED_RUN);
+        writeString(id);
+        writeInt(count);
+        writeByte(deleted ? 1 : 0);
+        end();
+    }
+
+    @Override
+    public void commentSaved(Comment c) {
+        begin(COMMENT_SAVED);
+        writeString(c.getId());
+        writeString(c.getUserId());
+        writeString(c.getContent());
+        writeString(c.getStartNodeId());
+        writeString(c.getEndNodeId());
+        writeLong(c.getTimestamp());
+        writeInt(c.getStartIndex());
+        writeInt(c.getEndIndex());
+        writeString(c.getSelectedText());
+        writeByte(c.isResolved() ? 1 : 0);
+        end();
+    }
+
+    @Override
+    public void commentRemoved(String commentId) {
+        begin(COMMENT_REMOVED);
+        writeString(commentId);
+        end();
+    }
+
+    @Override
+    public void commit(long sequence) {
+        begin(COMMIT);
+        writeLong(sequence);
+        end();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(WritableByteChannel channel) {
+        ByteBuffer out = ByteBuffer.wrap(bytes, 0, size);
+        try {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private void begin(byte type) {
+        ensure(HEADER);
+        recordStart = size;
+        size += HEADER; // filled in by end()
+        writeByte(type);
+    }
+
+    private void end() {
+        int length = size - recordStart - HEADER;
+        crc.reset();
+        crc.update(bytes, recordStart + HEADER, length);
+        putInt(recordStart, length);
+        putInt(recordStart + 4, (int) crc.getValue());
+    }
+
+    private void writeString(CharSequence s) {
+        if (s == null) {
+            writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.toString().getBytes(StandardCharsets.UTF_8);
+        writeInt(utf8.length);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, bytes, size, utf8.length);
+        size += utf8.length;
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        bytes[size++] = (byte) b;
+    }
+
+    private void writeInt(int v) {
+        ensure(4);
+        putInt(size, v);
+        size += 4;
+    }
+
+    private void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    private void putInt(int at, int v) {
+        bytes[at] = (byte) (v >>> 24);
+        bytes[at + 1] = (byte) (v >>> 16);
+        bytes[at + 2] = (byte) (v >>> 8);
+        bytes[at + 3] = (byte) v;
+    }
+
+    private void ensure(int n) {
+        if (size + n > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(size + n, bytes.length * 2));
+        }
+    }
+}
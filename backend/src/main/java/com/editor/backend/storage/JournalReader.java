@@ -0,0 +1,120 @@
+package com.editor.backend.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import com.editor.backend.model.Comment;
+import com.editor.backend.service.CRDTService;
+
+/**
+ * Replays records written by JournalBuffer into a document.
+ * Records are applied a committed batch at a time: a batch whose COMMIT record
+ * is missing, or that contains a damaged record, was cut short by a crash and
+ * is dropped together with everything after it.
+ */
+public final class JournalReader {
+
+    private JournalReader() {
+    }
+
+    /** Outcome of one replay. */
+    public static final class Result {
+        public final int batches;
+        public final long sequence;
+        public final boolean complete; // false when the data ended in a torn or damaged batch
+
+        Result(int batches, long sequence, boolean complete) {
+            this.batches = batches;
+            this.sequence = sequence;
+            this.complete = complete;
+        }
+    }
+
+    public static Result replay(Path file, CRDTService crdt) throws IOException {
+        return replay(ByteBuffer.wrap(Files.readAllBytes(file)), crdt);
+    }
+
+    public static Result replay(ByteBuffer in, CRDTService crdt) {
+        List<Consumer<CRDTService>> batch = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        int batches = 0;
+        long sequence = 0;
+        while (in.remaining() >= JournalBuffer.HEADER) {
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length <= 0 || length > in.remaining()) break;
+
+            crc.reset();
+            crc.update(in.array(), in.arrayOffset() + in.position(), length);
+            if ((int) crc.getValue() != checksum) break;
+
+            ByteBuffer record = in.slice();
+            record.limit(length);
+            in.position(in.position() + length);
+
+            byte type = record.get();
+            if (type == JournalBuffer.COMMIT) {
+                sequence = record.getLong();
+                for (Consumer<CRDTService> change : batch) {
+                    change.accept(crdt);
+                }
+                crdt.restoreSequence(sequence);
+                batch.clear();
+                batches++;
+            } else {
+                batch.add(decode(type, record));
+            }
+        }
+        boolean complete = !in.hasRemaining() && batch.isEmpty();
+        return new Result(batches, sequence, complete);
+    }
+
+    private static Consumer<CRDTService> decode(byte type, ByteBuffer r) {
+        switch (type) {
+            case JournalBuffer.INSERT: {
+                String id = readString(r);
+                String parentId = readString(r);
+                String text = readString(r);
+                return crdt -> crdt.applyInsert(id, parentId, text);
+            }
+            case JournalBuffer.DELETED: {
+                String id = readString(r);
+                boolean deleted = r.get() != 0;
+                return crdt -> crdt.applyDeleted(id, 1, deleted);
+            }
+            case JournalBuffer.DELETED_RUN: {
+                String id = readString(r);
+                int count = r.getInt();
+                boolean deleted = r.get() != 0;
+                return crdt -> crdt.applyDeleted(id, count, deleted);
+            }
+            case JournalBuffer.COMMENT_SAVED: {
+                Comment comment = new Comment(readString(r), readString(r), readString(r), readString(r),
+                        readString(r), r.getLong(), r.getInt(), r.getInt(), readString(r));
+                comment.setResolved(r.get() != 0);
+                return crdt -> crdt.addComment(comment);
+            }
+            case JournalBuffer.COMMENT_REMOVED: {
+                String id = readString(r);
+                return crdt -> crdt.deleteComment(id);
+            }
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer r) {
+        int length = r.getInt();
+        if (length < 0) return null;
+        String s = new String(r.array(), r.arrayOffset() + r.position(), length, StandardCharsets.UTF_8);
+        r.position(r.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,325 @@
+package com.editor.backend.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.editor.backend.crdt.SiteDictionary;
+import com.editor.backend.model.Comment;
+import com.editor.backend.service.DocumentImage;
+
+/**
+ * Compact binary form of a DocumentImage, for snapshots on disk and initial sync.
+ *
+ *   magic, sequence
+ *   site dictionary: count, then each user id once
+ *   span columns, each run-length encoded:
+ *     site, clock (distance from the end of the previous span), length,
+ *     parent (distance back to the parent's slot), deleted
+ *   text: every span's characters, one varint each
+ *   comments, cursors
+ *   crc32 of everything before it
+ *
+ * Numbers are LEB128 varints, signed ones zigzag encoded first, so characters
+ * below 128 take a byte each. A column is a series of groups, each headed by a
+ * count: n > 0 repeats the one value after it n times, n < 0 is followed by -n
+ * values that differ from their neighbours. Spans are in document order, where
+ * a run of typing is a chain of spans one slot apart whose clocks carry on from
+ * each other, so most columns collapse into a few groups.
+ */
+public final class SnapshotCodec {
+
+    private static final int MAGIC = 0x45445331; // "EDS1"
+
+    private SnapshotCodec() {
+    }
+
+    public static byte[] encode(DocumentImage image) {
+        Writer out = new Writer(64 + image.spanCount * 2 + image.text.length);
+        out.fixedInt(MAGIC);
+        out.varlong(image.sequence);
+
+        out.varint(image.siteIds.length);
+        for (int s = 1; s < image.siteIds.length; s++) { // site 0 is always the system site
+            out.string(image.siteIds[s]);
+        }
+
+        int n = image.spanCount;
+        out.varint(n);
+        long[] column = new long[n];
+        for (int i = 0; i < n; i++) column[i] = image.site[i];
+        out.runs(column, n);
+        long nextClock = 0;
+        for (int i = 0; i < n; i++) {
+            column[i] = image.clock[i] - nextClock;
+            nextClock = image.clock[i] + image.length[i];
+        }
+        out.runs(column, n);
+        for (int i = 0; i < n; i++) column[i] = image.length[i];
+        out.runs(column, n);
+        for (int i = 0; i < n; i++) column[i] = i - image.parent[i];
+        out.runs(column, n);
+        for (int i = 0; i < n; i++) column[i] = image.deleted[i] ? 1 : 0;
+        out.runs(column, n);
+
+        out.varint(image.text.length);
+        for (char c : image.text) {
+            out.varint(c);
+        }
+
+        out.varint(image.comments.size());
+        for (Comment c : image.comments) {
+            out.string(c.getId());
+            out.string(c.getUserId());
+            out.string(c.getContent());
+            out.string(c.getStartNodeId());
+            out.string(c.getEndNodeId());
+            out.varlong(c.getTimestamp());
+            out.varlong(c.getStartIndex());
+            out.varlong(c.getEndIndex());
+            out.string(c.getSelectedText());
+            out.varint(c.isResolved() ? 1 : 0);
+        }
+
+        out.varint(image.cursorCount);
+        for (int c = 0; c < image.cursorCount; c++) {
+            out.string(image.cursorUsers[c]);
+            out.varlong(image.cursorAnchors[c]);
+            out.varlong(image.cursorUpdatedAt[c]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out.bytes, 0, out.size);
+        out.fixedInt((int) crc.getValue());
+        return out.toByteArray();
+    }
+
+    /** Throws IllegalArgumentException when the bytes are not an intact snapshot. */
+    public static DocumentImage decode(byte[] bytes) {
+        if (bytes.length < 8) throw new IllegalArgumentException("Snapshot is truncated");
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        Reader in = new Reader(bytes, bytes.length - 4);
+        if (in.fixedInt() != MAGIC) throw new IllegalArgumentException("Not a document snapshot");
+        Reader trailer = new Reader(bytes, bytes.length);
+        trailer.position = bytes.length - 4;
+        if (trailer.fixedInt() != (int) crc.getValue()) throw new IllegalArgumentException("Snapshot is damaged");
+
+        long sequence = in.varlong();
+        String[] siteIds = new String[Math.max(1, in.count())];
+        siteIds[0] = SiteDictionary.SYSTEM_SITE;
+        for (int s = 1; s < siteIds.length; s++) {
+            siteIds[s] = in.string();
+        }
+
+        int n = in.count();
+        long[] sites = in.runs(n);
+        long[] clockDeltas = in.runs(n);
+        long[] lengths = in.runs(n);
+        long[] parentDistances = in.runs(n);
+        long[] deleted = in.runs(n);
+        int textLength = in.count();
+
+        long spanChars = 0;
+        for (long length : lengths) spanChars += length;
+        if (spanChars != textLength) throw new IllegalArgumentException("Span lengths do not match the text");
+
+        char[] text = new char[textLength];
+        for (int i = 0; i < textLength; i++) {
+            text[i] = (char) in.varint();
+        }
+
+        int commentCount = in.count();
+        Comment[] comments = new Comment[commentCount];
+        for (int c = 0; c < commentCount; c++) {
+            Comment comment = new Comment(in.string(), in.string(), in.string(), in.string(), in.string(),
+                    in.varlong(), (int) in.varlong(), (int) in.varlong(), in.string());
+            comment.setResolved(in.varint() != 0);
+            comments[c] = comment;
+        }
+
+        int cursorCount = in.count();
+        DocumentImage image = new DocumentImage(n, 0, cursorCount);
+        for (int c = 0; c < cursorCount; c++) {
+            image.cursorUsers[c] = in.string();
+            image.cursorAnchors[c] = in.varlong();
+            image.cursorUpdatedAt[c] = in.varlong();
+        }
+        if (!in.atEnd()) throw new IllegalArgumentException("Trailing bytes in snapshot");
+
+        image.sequence = sequence;
+        image.siteIds = siteIds;
+        image.text = text;
+        image.comments.addAll(Arrays.asList(comments));
+        long nextClock = 0;
+        for (int i = 0; i < n; i++) {
+            image.site[i] = (int) sites[i];
+            image.clock[i] = nextClock + clockDeltas[i];
+            image.length[i] = (int) lengths[i];
+            nextClock = image.clock[i] + image.length[i];
+            image.parent[i] = (int) (i - parentDistances[i]);
+            image.deleted[i] = deleted[i] != 0;
+        }
+        return image;
+    }
+
+    private static final class Writer {
+        byte[] bytes;
+        int size;
+
+        Writer(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void fixedInt(int v) {
+            ensure(4);
+            bytes[size++] = (byte) (v >>> 24);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        // Unsigned: sizes, characters, flags
+        void varint(int v) {
+            unsigned(v & 0xFFFFFFFFL);
+        }
+
+        // Zigzag first, so small negative values stay short
+        void varlong(long v) {
+            unsigned((v << 1) ^ (v >> 63));
+        }
+
+        private void unsigned(long u) {
+            ensure(10);
+            while ((u & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((u & 0x7F) | 0x80);
+                u >>>= 7;
+            }
+            bytes[size++] = (byte) u;
+        }
+
+        // Length + 1, with 0 for null, then UTF-8
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length + 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        void runs(long[] values, int count) {
+            int i = 0;
+            while (i < count) {
+                int end = i + 1;
+                while (end < count && values[end] == values[i]) end++;
+                if (end - i > 1) {
+                    varlong(end - i);
+                    varlong(values[i]);
+                } else {
+                    // Take values up to where the next repeat starts
+                    while (end < count && (end == count - 1 || values[end] != values[end + 1])) end++;
+                    varlong(-(end - i));
+                    for (int k = i; k < end; k++) {
+                        varlong(values[k]);
+                    }
+                }
+                i = end;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + n, bytes.length * 2));
+            }
+        }
+    }
+
+    private static final class Reader {
+        final byte[] bytes;
+        final int limit;
+        int position;
+
+        Reader(byte[] bytes, int limit) {
+            this.bytes = bytes;
+            this.limit = limit;
+        }
+
+        boolean atEnd() {
+            return position == limit;
+        }
+
+        int fixedInt() {
+            need(4);
+            int v = (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16
+                    | (bytes[position + 2] & 0xFF) << 8 | (bytes[position + 3] & 0xFF);
+            position += 4;
+            return v;
+        }
+
+        int varint() {
+            return (int) unsigned();
+        }
+
+        int count() {
+            long v = unsigned();
+            if (v < 0 || v > Integer.MAX_VALUE) throw new IllegalArgumentException("Bad count in snapshot");
+            return (int) v;
+        }
+
+        long varlong() {
+            long u = unsigned();
+            return (u >>> 1) ^ -(u & 1);
+        }
+
+        private long unsigned() {
+            long u = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                need(1);
+                byte b = bytes[position++];
+                u |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return u;
+            }
+            throw new IllegalArgumentException("Bad varint in snapshot");
+        }
+
+        String string() {
+            int length = count() - 1;
+            if (length < 0) return null;
+            need(length);
+            String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        long[] runs(int count) {
+            long[] values = new long[count];
+            int i = 0;
+            while (i < count) {
+                long header = varlong();
+                long run = Math.abs(header);
+                if (header == 0 || run > count - i) throw new IllegalArgumentException("Bad run in snapshot");
+                if (header > 0) {
+                    Arrays.fill(values, i, i + (int) run, varlong());
+                    i += (int) run;
+                } else {
+                    for (long k = 0; k < run; k++) {
+                        values[i++] = varlong();
+                    }
+                }
+            }
+            return values;
+        }
+
+        private void need(int n) {
+            if (position + n > limit) throw new IllegalArgumentException("Snapshot is truncated");
+        }
+    }
+}
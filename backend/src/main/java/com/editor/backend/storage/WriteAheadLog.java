@@ -0,0 +1,190 @@
+package com.editor.backend.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.editor.backend.model.Comment;
+import com.editor.backend.service.DocumentJournal;
+
+/**
+ * Append-only log of one document, split into numbered segment files.
+ * Records of a batch collect in memory and reach the disk together at commit:
+ * one write and one fsync for the whole batch, however many operations it
+ * holds (group commit). Only the document's actor calls into the log, so it
+ * needs no locking; bytesSinceRotation is the one value read from elsewhere.
+ *
+ * The write and fsync run on the store's I/O threads, one batch after another,
+ * so the actor can apply its next batch while the last one reaches the disk. A
+ * batch whose write fails is cut off the segment again, back to the end of the
+ * last whole batch, and the log takes no more batches after it: they would build
+ * on changes that never reached the disk. The document is reloaded from the log.
+ */
+public class WriteAheadLog implements DocumentJournal {
+
+    private final Path directory;
+    private final Executor io;
+    private final Function<Path, FileChannel> opener;
+    private JournalBuffer buffer = new JournalBuffer();
+    private FileChannel channel;
+    private long segment;
+    private volatile long bytesSinceRotation;
+    private boolean dirty;
+
+    // End of the last batch fully written to the segment; only touched by writes
+    private long goodSize;
+    // The last write handed to io; each one starts after the one before it has finished
+    private CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+
+    public WriteAheadLog(Path directory, long segment) {
+        this(directory, segment, Runnable::run);
+    }
+
+    public WriteAheadLog(Path directory, long segment, Executor io) {
+        this(directory, segment, io, WriteAheadLog::openSegment);
+    }
+
+    // Tests pass channels that fail on cue
+    WriteAheadLog(Path directory, long segment, Executor io, Function<Path, FileChannel> opener) {
+        this.directory = directory;
+        this.io = io;
+        this.opener = opener;
+        this.segment = segment;
+        this.channel = open(segment);
+        this.goodSize = size(channel);
+    }
+
+    public static String segmentName(long segment) {
+        return String.format("%016d.wal", segment);
+    }
+
+    @Override
+    public void inserted(String id, String parentId, CharSequence text) {
+        buffer.inserted(id, parentId, text);
+        dirty = true;
+    }
+
+    @Override
+    public void deletedChanged(String id, int count, boolean deleted) {
+        buffer.deletedChanged(id, count, deleted);
+        dirty = true;
+    }
+
+    @Override
+    public void commentSaved(Comment comment) {
+        buffer.commentSaved(comment);
+        dirty = true;
+    }
+
+    @Override
+    public void commentRemoved(String commentId) {
+        buffer.commentRemoved(commentId);
+        dirty = true;
+    }
+
+    @Override
+    public void commit(long sequence) {
+        try {
+            commitAsync(sequence).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    // A batch that changed nothing durable costs no write and no fsync; it is durable once those before it are
+    @Override
+    public CompletableFuture<Void> commitAsync(long sequence) {
+        if (!dirty) return written;
+        buffer.commit(sequence);
+        JournalBuffer batch = buffer;
+        buffer = new JournalBuffer();
+        dirty = false;
+        written = written.thenRunAsync(() -> write(batch), io);
+        return written;
+    }
+
+    // On an I/O thread, one batch at a time
+    private void write(JournalBuffer batch) {
+        try {
+            batch.writeTo(channel);
+            channel.force(false);
+        } catch (UncheckedIOException e) {
+            cutTornBatch();
+            throw e;
+        } catch (IOException e) {
+            cutTornBatch();
+            throw new UncheckedIOException(e);
+        }
+        goodSize += batch.size();
+        bytesSinceRotation += batch.size();
+    }
+
+    // Leaves the segment ending on a whole batch, as if the failed one had never been written
+    private void cutTornBatch() {
+        try {
+            channel.truncate(goodSize);
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("[Server] : Could not cut a failed batch off " + directory.resolve(segmentName(segment))
+                    + " - " + e);
+        }
+    }
+
+    /**
+     * Commits what is pending and starts a new segment. Returns the new segment's
+     * number: everything before it is in older segments.
+     */
+    public long rotate(long sequence) {
+        commit(sequence);
+        close();
+        channel = open(++segment);
+        goodSize = 0;
+        bytesSinceRotation = 0;
+        return segment;
+    }
+
+    public long segment() {
+        return segment;
+    }
+
+    // Bytes committed to the current segment, used to decide when to checkpoint
+    public long bytesSinceRotation() {
+        return bytesSinceRotation;
+    }
+
+    // Waits for the writes already handed over, whether or not they succeed
+    public void close() {
+        written.handle((ignored, e) -> null).join();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long size(FileChannel channel) {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private FileChannel open(long number) {
+        return opener.apply(directory.resolve(segmentName(number)));
+    }
+
+    private static FileChannel openSegment(Path file) {
+        try {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
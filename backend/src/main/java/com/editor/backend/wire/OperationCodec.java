@@ -0,0 +1,298 @@
+package com.editor.backend.wire;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.editor.backend.model.Operation;
+
+/**
+ * Binary form of Operation frames, the alternative to JSON for clients that ask
+ * for it (see WireFormat).
+ *
+ *   version, op count, then per op:
+ *   tag        type in the low 3 bits, then flags for the fields present
+ *   userId     site reference
+ *   clock      varint
+ *   sequence   varint
+ *   value      varint, when not 0
+ *   nodeId     id reference, when present
+ *   parentId   id reference, when present
+ *
+ * User ids are not repeated: a site reference is an index into a table of user
+ * ids, and the index one past the end introduces a new id, spelled out once.
+ * Both ends add it to their table. A table can last one frame or, for a
+ * connection's own frames, as long as the connection. An id reference is 0
+ * followed by a string for ids that are not "user:clock" (such as "root"), or a
+ * site reference + 1 followed by the clock as a zigzag distance from the
+ * operation's clock, which is small for the ids a keystroke refers to.
+ */
+public final class OperationCodec {
+
+    // An octet-stream, so the STOMP handler sends it as a binary WebSocket message
+    public static final String CONTENT_TYPE = "application/octet-stream;format=editor-ops";
+
+    private static final int VERSION = 1;
+
+    private static final int TYPE_MASK = 0x07;
+    private static final int NO_TYPE = 0x07;
+    private static final int HAS_USER = 0x08;
+    private static final int HAS_VALUE = 0x10;
+    private static final int HAS_NODE = 0x20;
+    private static final int HAS_PARENT = 0x40;
+
+    private static final Operation.Type[] TYPES = Operation.Type.values();
+
+    private OperationCodec() {
+    }
+
+    /** User ids already sent in one direction, in the order they were introduced. */
+    public static final class SiteTable {
+        // More distinct users than any document has; bounds what one peer can make the other keep
+        private static final int MAX_SITES = 1 << 16;
+
+        private final List<String> users = new ArrayList<>();
+        private final Map<String, Integer> indices = new HashMap<>();
+
+        int size() {
+            return users.size();
+        }
+
+        Integer indexOf(String userId) {
+            return indices.get(userId);
+        }
+
+        String get(int index) {
+            return users.get(index);
+        }
+
+        void add(String userId) {
+            if (users.size() == MAX_SITES) throw new IllegalArgumentException("Too many sites in one table");
+            indices.put(userId, users.size());
+            users.add(userId);
+        }
+    }
+
+    /** Encodes ops against a table of their own, for a frame every receiver decodes alone. */
+    public static byte[] encode(List<Operation> ops) {
+        return encode(ops, new SiteTable());
+    }
+
+    public static byte[] encode(List<Operation> ops, SiteTable table) {
+        Writer out = new Writer(8 + ops.size() * 12);
+        out.varint(VERSION);
+        out.varint(ops.size());
+        for (Operation op : ops) {
+            int tag = op.getType() == null ? NO_TYPE : op.getType().ordinal();
+            if (op.getUserId() != null) tag |= HAS_USER;
+            if (op.getValue() != 0) tag |= HAS_VALUE;
+            if (op.getNodeId() != null) tag |= HAS_NODE;
+            if (op.getParentId() != null) tag |= HAS_PARENT;
+            out.octet(tag);
+
+            if (op.getUserId() != null) site(out, op.getUserId(), table, 0);
+            out.varlong(op.getClock());
+            out.varlong(op.getSequence());
+            if (op.getValue() != 0) out.varint(op.getValue());
+            if (op.getNodeId() != null) id(out, op.getNodeId(), op.getClock(), table);
+            if (op.getParentId() != null) id(out, op.getParentId(), op.getClock(), table);
+        }
+        return out.toByteArray();
+    }
+
+    /** Binary form of a broadcast payload made of operations, or null for any other payload. */
+    @SuppressWarnings("unchecked")
+    public static byte[] encodePayload(Object payload) {
+        if (payload instanceof Operation op) return encode(List.of(op));
+        if (payload instanceof List<?> list && !list.isEmpty() && list.stream().allMatch(Operation.class::isInstance)) {
+            return encode((List<Operation>) list);
+        }
+        return null;
+    }
+
+    /** Throws IllegalArgumentException when the bytes are not a frame this codec wrote. */
+    public static List<Operation> decode(byte[] bytes) {
+        return decode(bytes, new SiteTable());
+    }
+
+    public static List<Operation> decode(byte[] bytes, SiteTable table) {
+        Reader in = new Reader(bytes);
+        if (in.varint() != VERSION) throw new IllegalArgumentException("Unknown operation frame version");
+        int count = in.varint();
+        if (count > bytes.length) throw new IllegalArgumentException("Bad operation count");
+        List<Operation> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int tag = in.octet();
+            int type = tag & TYPE_MASK;
+            if (type != NO_TYPE && type >= TYPES.length) throw new IllegalArgumentException("Unknown operation type");
+
+            String userId = (tag & HAS_USER) != 0 ? site(in, table, 0) : null;
+            long clock = in.varlong();
+            long sequence = in.varlong();
+            char value = (tag & HAS_VALUE) != 0 ? (char) in.varint() : 0;
+            String nodeId = (tag & HAS_NODE) != 0 ? id(in, clock, table) : null;
+            String parentId = (tag & HAS_PARENT) != 0 ? id(in, clock, table) : null;
+
+            Operation op = new Operation(type == NO_TYPE ? null : TYPES[type], nodeId, parentId, value, clock, userId);
+            op.setSequence(sequence);
+            ops.add(op);
+        }
+        if (!in.atEnd()) throw new IllegalArgumentException("Trailing bytes in operation frame");
+        return ops;
+    }
+
+    // Site reference, offset by base; new user ids follow their index
+    private static void site(Writer out, String userId, SiteTable table, int base) {
+        Integer index = table.indexOf(userId);
+        if (index != null) {
+            out.varint(index + base);
+        } else {
+            out.varint(table.size() + base);
+            out.string(userId);
+            table.add(userId);
+        }
+    }
+
+    private static String site(Reader in, SiteTable table, int base) {
+        int index = in.varint() - base;
+        if (index < 0 || index > table.size()) throw new IllegalArgumentException("Bad site reference");
+        if (index < table.size()) return table.get(index);
+        String userId = in.string();
+        table.add(userId);
+        return userId;
+    }
+
+    private static void id(Writer out, String id, long opClock, SiteTable table) {
+        int sep = id.lastIndexOf(':');
+        long clock = 0;
+        boolean packed = sep > 0;
+        if (packed) {
+            try {
+                clock = Long.parseLong(id.substring(sep + 1));
+                // Only ids that print back exactly as they came in, so decoding gives the same string
+                packed = Long.toString(clock).equals(id.substring(sep + 1));
+            } catch (NumberFormatException e) {
+                packed = false;
+            }
+        }
+        if (!packed) {
+            out.varint(0);
+            out.string(id);
+            return;
+        }
+        site(out, id.substring(0, sep), table, 1);
+        long delta = clock - opClock;
+        out.varlong((delta << 1) ^ (delta >> 63));
+    }
+
+    private static String id(Reader in, long opClock, SiteTable table) {
+        if (in.peek() == 0) {
+            in.octet();
+            return in.string();
+        }
+        String userId = site(in, table, 1);
+        long zigzag = in.varlong();
+        long delta = (zigzag >>> 1) ^ -(zigzag & 1);
+        return userId + ":" + (opClock + delta);
+    }
+
+    private static final class Writer {
+        byte[] bytes;
+        int size;
+
+        Writer(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        void octet(int v) {
+            ensure(1);
+            bytes[size++] = (byte) v;
+        }
+
+        void varint(int v) {
+            varlong(v & 0xFFFFFFFFL);
+        }
+
+        // Unsigned LEB128
+        void varlong(long u) {
+            ensure(11);
+            while ((u & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((u & 0x7F) | 0x80);
+                u >>>= 7;
+            }
+            bytes[size++] = (byte) u;
+        }
+
+        void string(String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + n, bytes.length * 2));
+            }
+        }
+    }
+
+    private static final class Reader {
+        final byte[] bytes;
+        int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean atEnd() {
+            return position == bytes.length;
+        }
+
+        int peek() {
+            need(1);
+            return bytes[position] & 0xFF;
+        }
+
+        int octet() {
+            need(1);
+            return bytes[position++] & 0xFF;
+        }
+
+        int varint() {
+            long v = varlong();
+            if (v > Integer.MAX_VALUE || v < 0) throw new IllegalArgumentException("Bad varint in operation frame");
+            return (int) v;
+        }
+
+        long varlong() {
+            long u = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = (byte) octet();
+                u |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return u;
+            }
+            throw new IllegalArgumentException("Bad varint in operation frame");
+        }
+
+        String string() {
+            int length = varint();
+            need(length);
+            String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        private void need(int n) {
+            if (position + n > bytes.length) throw new IllegalArgumentException("Operation frame is truncated");
+        }
+    }
+}
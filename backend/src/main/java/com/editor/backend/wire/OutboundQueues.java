@@ -0,0 +1,314 @@
+package com.editor.backend.wire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Bounds what a WebSocket session holds waiting to be written to its connection.
+ * Spring writes to a session on the thread that sends to it, and buffers frames
+ * behind a write in progress, closing the session once that buffer is full; so one
+ * client on a bad connection either ties up outbound threads or gets cut off.
+ *
+ * Here every session gets its own queue, written out by a sender thread of its
+ * own, so sending to a session never blocks. A session may have max-messages
+ * frames, or max-bytes of them, waiting. One that goes past either falls behind:
+ * its waiting broadcasts on /topic are dropped, and so are new ones, until its
+ * queue has drained. It then gets one notice on /user/queue/resync naming the
+ * documents it missed, and catches up through /app/sync/{documentId} as after a
+ * reconnect. Frames meant for the session alone, such as sync replies, are never
+ * dropped. A session whose connection takes longer than send-time-limit-ms for
+ * one frame is closed.
+ */
+@Component
+public class OutboundQueues implements WebSocketHandlerDecoratorFactory {
+
+    public static final String RESYNC_DESTINATION = "/queue/resync";
+
+    private static final String TOPIC = "/topic/";
+    private static final String DOCUMENT_TOPIC = "/topic/Document/";
+    private static final String MESSAGE_COMMAND = "MESSAGE\n";
+    private static final String DESTINATION_HEADER = "\ndestination:";
+    // Enough of a frame to hold its command and destination header
+    private static final int HEAD_BYTES = 512;
+
+    private final Supplier<SimpMessageSendingOperations> messaging;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long sendTimeLimitMs;
+
+    // One thread per session that is writing; a session with nothing queued holds none
+    private final ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "websocket-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, BoundedSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+
+    // The messaging template is built after the WebSocket handler, so it is looked up on first use
+    @Autowired
+    public OutboundQueues(ObjectProvider<SimpMessageSendingOperations> messaging,
+                          @Value("${editor.outbound.max-messages:1000}") int maxMessages,
+                          @Value("${editor.outbound.max-bytes:4194304}") long maxBytes,
+                          @Value("${editor.outbound.send-time-limit-ms:10000}") long sendTimeLimitMs) {
+        this(messaging::getObject, maxMessages, maxBytes, sendTimeLimitMs);
+    }
+
+    OutboundQueues(Supplier<SimpMessageSendingOperations> messaging, int maxMessages, long maxBytes,
+                   long sendTimeLimitMs) {
+        this.messaging = messaging;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.sendTimeLimitMs = sendTimeLimitMs;
+    }
+
+    @Override
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                BoundedSession bounded = new BoundedSession(session);
+                sessions.put(session.getId(), bounded);
+                super.afterConnectionEstablished(bounded);
+            }
+
+            @Override
+            public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+                BoundedSession bounded = sessions.get(session.getId());
+                super.handleMessage(bounded != null ? bounded : session, message);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                BoundedSession bounded = sessions.remove(session.getId());
+                if (bounded != null) bounded.discard();
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    @PreDestroy
+    public void close() {
+        senders.shutdownNow();
+    }
+
+    /** Queue depths and drops across this node's sessions. */
+    public Map<String, Object> stats() {
+        long queuedMessages = 0;
+        long queuedBytes = 0;
+        int deepest = 0;
+        int behind = 0;
+        for (BoundedSession session : sessions.values()) {
+            synchronized (session) {
+                queuedMessages += session.queue.size();
+                queuedBytes += session.bytes;
+                deepest = Math.max(deepest, session.queue.size());
+                if (session.behind) behind++;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessions.size());
+        stats.put("queuedMessages", queuedMessages);
+        stats.put("queuedBytes", queuedBytes);
+        stats.put("deepestQueue", deepest);
+        stats.put("sessionsBehind", behind);
+        stats.put("droppedMessages", dropped.get());
+        stats.put("resyncNotices", resyncs.get());
+        stats.put("maxMessages", maxMessages);
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    // A session whose frames are queued and written by a sender thread
+    private final class BoundedSession extends WebSocketSessionDecorator {
+        // Guarded by this
+        private final Deque<WebSocketMessage<?>> queue = new ArrayDeque<>();
+        private long bytes;
+        private boolean writing;
+        private boolean behind;
+        private long droppedSinceResync;
+        private final Set<String> missedDocuments = new TreeSet<>();
+
+        // When the frame being written was handed to the connection, 0 while idle
+        private volatile long writeStarted;
+
+        BoundedSession(WebSocketSession session) {
+            super(session);
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            long started = writeStarted;
+            if (started != 0 && System.currentTimeMillis() - started > sendTimeLimitMs) {
+                System.out.println("[Server] : Session " + getId() + " took over " + sendTimeLimitMs + " ms to take a frame; closing it");
+                discard();
+                getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+                return;
+            }
+            String destination = broadcastDestination(message);
+            synchronized (this) {
+                if (destination != null) {
+                    if (!behind && (queue.size() >= maxMessages || bytes + message.getPayloadLength() > maxBytes)) {
+                        behind = true;
+                        dropQueuedBroadcasts();
+                        System.out.println("[Server] : Session " + getId() + " fell behind; dropping its broadcasts until it resyncs");
+                    }
+                    if (behind) {
+                        drop(destination);
+                        return;
+                    }
+                }
+                queue.add(message);
+                bytes += message.getPayloadLength();
+                if (writing) return;
+                writing = true;
+            }
+            senders.execute(this::write);
+        }
+
+        // Writes the queue out one frame at a time; once it is empty a session that fell behind is told to resync
+        private void write() {
+            while (true) {
+                WebSocketMessage<?> message;
+                Map<String, Object> notice = null;
+                synchronized (this) {
+                    message = queue.poll();
+                    if (message == null) {
+                        writing = false;
+                        if (behind) notice = resyncNotice();
+                    } else {
+                        bytes -= message.getPayloadLength();
+                    }
+                }
+                if (message == null) {
+                    if (notice != null) sendResync(getId(), notice);
+                    return;
+                }
+                writeStarted = System.currentTimeMillis();
+                try {
+                    getDelegate().sendMessage(message);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("[Server] : Write failed on session " + getId() + " - " + e);
+                    discard();
+                    return;
+                } finally {
+                    writeStarted = 0;
+                }
+            }
+        }
+
+        // Nothing more is written once the connection is gone
+        synchronized void discard() {
+            queue.clear();
+            bytes = 0;
+            writing = false;
+            behind = false;
+        }
+
+        // Called holding the lock
+        private void dropQueuedBroadcasts() {
+            for (Iterator<WebSocketMessage<?>> it = queue.iterator(); it.hasNext(); ) {
+                WebSocketMessage<?> queued = it.next();
+                String destination = broadcastDestination(queued);
+                if (destination != null) {
+                    it.remove();
+                    bytes -= queued.getPayloadLength();
+                    drop(destination);
+                }
+            }
+        }
+
+        // Called holding the lock
+        private void drop(String destination) {
+            dropped.incrementAndGet();
+            droppedSinceResync++;
+            if (destination.startsWith(DOCUMENT_TOPIC)) {
+                int end = destination.indexOf('/', DOCUMENT_TOPIC.length());
+                missedDocuments.add(destination.substring(DOCUMENT_TOPIC.length(), end < 0 ? destination.length() : end));
+            }
+        }
+
+        // Called holding the lock, once the queue has drained
+        private Map<String, Object> resyncNotice() {
+            Map<String, Object> notice = new LinkedHashMap<>();
+            notice.put("type", "resync");
+            notice.put("documentIds", new ArrayList<>(missedDocuments));
+            notice.put("dropped", droppedSinceResync);
+            behind = false;
+            droppedSinceResync = 0;
+            missedDocuments.clear();
+            return notice;
+        }
+    }
+
+    // Destination of a STOMP MESSAGE frame sent to a topic, read from its header lines; null for anything else
+    static String broadcastDestination(WebSocketMessage<?> message) {
+        String head;
+        if (message instanceof TextMessage text) {
+            String payload = text.getPayload();
+            head = payload.substring(0, Math.min(payload.length(), HEAD_BYTES));
+        } else if (message instanceof BinaryMessage binary) {
+            ByteBuffer payload = binary.getPayload().duplicate();
+            byte[] bytes = new byte[Math.min(payload.remaining(), HEAD_BYTES)];
+            payload.get(bytes);
+            head = new String(bytes, StandardCharsets.ISO_8859_1);
+        } else {
+            return null;
+        }
+        if (!head.startsWith(MESSAGE_COMMAND)) return null;
+        int headersEnd = head.indexOf("\n\n");
+        int at = head.indexOf(DESTINATION_HEADER);
+        if (at < 0 || (headersEnd >= 0 && at > headersEnd)) return null;
+        int start = at + DESTINATION_HEADER.length();
+        int end = head.indexOf('\n', start);
+        if (end < 0) return null;
+        String destination = head.substring(start, end).strip();
+        return destination.startsWith(TOPIC) ? destination : null;
+    }
+
+    // Addressed by session id, which the user destination resolver accepts for sessions without a login
+    private void sendResync(String sessionId, Map<String, Object> notice) {
+        resyncs.incrementAndGet();
+        System.out.println("[Server] : Asked session " + sessionId + " to resync after dropping "
+                + notice.get("dropped") + " broadcasts");
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(sessionId);
+        headers.setLeaveMutable(true);
+        messaging.get().convertAndSendToUser(sessionId, RESYNC_DESTINATION, notice, headers.getMessageHeaders());
+    }
+}
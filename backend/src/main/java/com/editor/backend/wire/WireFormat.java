@@ -0,0 +1,122 @@
+package com.editor.backend.wire;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+
+import com.editor.backend.model.Operation;
+
+/**
+ * Negotiates the binary operation format per connection. A client asks for it with
+ * the header {@code editor-wire: binary} on CONNECT, over the plain WebSocket
+ * endpoint (SockJS frames are text only). From then on:
+ *
+ *   - operations it sends with content-type {@link OperationCodec#CONTENT_TYPE} are
+ *     decoded before they reach the controllers, against the connection's site table;
+ *   - broadcasts it receives carry the binary frame the broadcaster encoded once for
+ *     every subscriber, in place of the JSON.
+ *
+ * Everything else, and every other connection, stays JSON.
+ */
+@Component
+public class WireFormat {
+
+    public static final String FORMAT_HEADER = "editor-wire";
+    public static final String BINARY = "binary";
+
+    /**
+     * STOMP header, {@code editor-batch: true}, on a document topic frame holding an
+     * array of operations rather than a single one, as sent while broadcasts are batched.
+     */
+    public static final String BATCH_HEADER = "editor-batch";
+
+    /** Message header the broadcaster stashes a payload's binary encoding under. */
+    public static final String ENCODED_HEADER = "editorEncodedOps";
+
+    private static final MimeType CONTENT_TYPE = MimeType.valueOf(OperationCodec.CONTENT_TYPE);
+
+    // Binary connections, each with the table of user ids it has introduced
+    private final Map<String, OperationCodec.SiteTable> binarySessions = new ConcurrentHashMap<>();
+
+    private final ChannelInterceptor inbound = new ChannelInterceptor() {
+        @Override
+        public Message<?> preSend(Message<?> message, MessageChannel channel) {
+            SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+            String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+            if (type == null || sessionId == null) return message;
+            switch (type) {
+                case CONNECT:
+                    if (BINARY.equals(StompHeaderAccessor.wrap(message).getFirstNativeHeader(FORMAT_HEADER))) {
+                        binarySessions.put(sessionId, new OperationCodec.SiteTable());
+                    }
+                    return message;
+                case DISCONNECT:
+                    binarySessions.remove(sessionId);
+                    return message;
+                case MESSAGE:
+                    return isBinary(message.getHeaders().get(MessageHeaders.CONTENT_TYPE, MimeType.class))
+                            ? decode(message, sessionId) : message;
+                default:
+                    return message;
+            }
+        }
+    };
+
+    private final ChannelInterceptor outbound = new ChannelInterceptor() {
+        @Override
+        public Message<?> preSend(Message<?> message, MessageChannel channel) {
+            Object encoded = message.getHeaders().get(ENCODED_HEADER);
+            String sessionId = SimpMessageHeaderAccessor.getSessionId(message.getHeaders());
+            if (!(encoded instanceof byte[]) || sessionId == null || !binarySessions.containsKey(sessionId)) {
+                return message;
+            }
+            SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.wrap(message);
+            headers.setContentType(CONTENT_TYPE);
+            headers.removeHeader(ENCODED_HEADER);
+            return MessageBuilder.createMessage((byte[]) encoded, headers.getMessageHeaders());
+        }
+    };
+
+    /** Whether any connection asked for binary frames, and so needs broadcasts encoded. */
+    public boolean hasBinarySessions() {
+        return !binarySessions.isEmpty();
+    }
+
+    public ChannelInterceptor inbound() {
+        return inbound;
+    }
+
+    public ChannelInterceptor outbound() {
+        return outbound;
+    }
+
+    // One operation per frame, handed on as the Operation the controllers take
+    private Message<?> decode(Message<?> message, String sessionId) {
+        OperationCodec.SiteTable table = binarySessions.get(sessionId);
+        if (table == null) throw new IllegalArgumentException("Binary operations need " + FORMAT_HEADER + ": " + BINARY);
+        if (!(message.getPayload() instanceof byte[] bytes)) return message;
+        // Frames of one connection arrive in order; the lock only guards against a misbehaving transport
+        synchronized (table) {
+            List<Operation> ops = OperationCodec.decode(bytes, table);
+            if (ops.size() != 1) throw new IllegalArgumentException("Expected one operation per frame");
+            return MessageBuilder.createMessage(ops.get(0), message.getHeaders());
+        }
+    }
+
+    // Parameters are compared too: only the octet-stream carrying operations is ours
+    private static boolean isBinary(MimeType contentType) {
+        return contentType != null && contentType.equalsTypeAndSubtype(CONTENT_TYPE)
+                && CONTENT_TYPE.getParameters().equals(contentType.getParameters());
+    }
+}
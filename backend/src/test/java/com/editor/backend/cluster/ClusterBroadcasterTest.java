@@ -0,0 +1,206 @@
+package com.editor.backend.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.editor.backend.model.Operation;
+import com.editor.backend.wire.OperationCodec;
+import com.editor.backend.wire.WireFormat;
+
+class ClusterBroadcasterTest {
+
+    private final LocalDocumentRegistry registry = new LocalDocumentRegistry();
+    private final LocalBroadcastRelay relay = new LocalBroadcastRelay();
+
+    @Test
+    void testBroadcastReachesEveryNodeOnce() {
+        List<String> onA = new ArrayList<>();
+        List<String> onB = new ArrayList<>();
+        ClusterBroadcaster a = broadcaster("a", onA);
+        ClusterBroadcaster b = broadcaster("b", onB);
+        b.subscribed("s1", "sub-0", "/topic/Document/d1");
+
+        a.send("/topic/Document/d1", "op1");
+        a.send("/topic/Document/d1", "op2");
+
+        assertEquals(List.of("/topic/Document/d1 op1", "/topic/Document/d1 op2"), onA);
+        assertEquals(onA, onB);
+    }
+
+    @Test
+    void testRepeatedMessageIsDeliveredOnce() {
+        List<String> onB = new ArrayList<>();
+        broadcaster("b", onB).subscribed("s1", "sub-0", "/topic/Document/d1");
+
+        BroadcastRelay.Message message = new BroadcastRelay.Message("a", "a:1", "d1", "/topic/Document/d1", "op1");
+        relay.publish(message);
+        relay.publish(message); // e.g. resent after a reconnect
+        relay.publish(new BroadcastRelay.Message("a", "a:2", "d1", "/topic/Document/d1", "op2"));
+
+        assertEquals(List.of("/topic/Document/d1 op1", "/topic/Document/d1 op2"), onB);
+    }
+
+    @Test
+    void testOperationIsDeliveredOnceWhateverMessageCarriesIt() {
+        List<String> onB = new ArrayList<>();
+        broadcaster("b", onB).subscribed("s1", "sub-0", "/topic/Document/d1");
+        Operation first = insert('x', 1);
+        Operation second = insert('y', 2);
+
+        relay.publish(operations("a:1", first));
+        // The same operation again, e.g. from a node that took the document over, batched with a new one
+        relay.publish(operations("c:7", first, second));
+
+        assertEquals(List.of("/topic/Document/d1 " + first, "/topic/Document/d1 " + List.of(second)), onB);
+    }
+
+    @Test
+    void testNodeOnlyHearsTheDocumentsItsClientsFollow() {
+        List<String> onB = new ArrayList<>();
+        ClusterBroadcaster a = broadcaster("a", new ArrayList<>());
+        ClusterBroadcaster b = broadcaster("b", onB);
+        b.subscribed("s1", "sub-0", "/topic/Document/d1");
+        b.subscribed("s1", "sub-1", "/topic/Document/d1/cursors");
+        b.subscribed("s2", "sub-0", "/topic/Document/d1");
+
+        a.send("/topic/Document/d2", "elsewhere");
+        a.send("/topic/Document/d1", "op1");
+        b.unsubscribed("s1", "sub-0");
+        b.disconnected("s1");
+        a.send("/topic/Document/d1", "op2");
+        b.disconnected("s2");
+        a.send("/topic/Document/d1", "op3");
+
+        assertEquals(List.of("/topic/Document/d1 op1", "/topic/Document/d1 op2"), onB);
+    }
+
+    @Test
+    void testFramesHoldingSeveralOperationsAreMarkedAsBatches() {
+        List<String> batches = new ArrayList<>();
+        ClusterBroadcaster a = broadcaster(new ClusterService(registry, "a", "http://a", 1000), new ArrayList<>(), batches);
+        List<String> batchesOnB = new ArrayList<>();
+        broadcaster(new ClusterService(registry, "b", "http://b", 1000), new ArrayList<>(), batchesOnB)
+                .subscribed("s1", "sub-0", "/topic/Document/d1");
+        Operation first = insert('x', 1);
+        List<Operation> batch = List.of(insert('y', 2), insert('z', 3));
+        Operation later = insert('w', 4);
+
+        a.send("/topic/Document/d1", first);
+        a.send("/topic/Document/d1", batch);
+        a.send("/topic/Document/d1", List.of("not", "operations"));
+        relay.publish(operations("c:1", first, later));
+
+        assertEquals(List.of("/topic/Document/d1 " + batch), batches);
+        // Only the unseen operation of the relayed batch is delivered, still as an array
+        assertEquals(List.of("/topic/Document/d1 " + batch, "/topic/Document/d1 " + List.of(later)), batchesOnB);
+    }
+
+    @Test
+    void testSingleNodeWithJsonClientsNeitherEncodesNorRelays() {
+        List<Object> headers = new ArrayList<>();
+        SimpMessageSendingOperations messaging = (SimpMessageSendingOperations) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { SimpMessageSendingOperations.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("convertAndSend") && args.length == 3) headers.add(args[2]);
+                    return null;
+                });
+        List<BroadcastRelay.Message> published = new ArrayList<>();
+        BroadcastRelay recording = new LocalBroadcastRelay() {
+            @Override
+            public void publish(BroadcastRelay.Message message) {
+                published.add(message);
+                super.publish(message);
+            }
+        };
+        ClusterBroadcaster a = new ClusterBroadcaster(messaging, recording,
+                new ClusterService(registry, "a", "http://a", 1000), new WireFormat());
+        a.subscribed("s1", "sub-0", "/topic/Document/d1");
+
+        a.send("/topic/Document/d1", insert('x', 1));
+        assertEquals(1, headers.size());
+        assertNull(headers.get(0));
+        assertTrue(published.isEmpty());
+
+        // Once another node follows the document, broadcasts are encoded and relayed again
+        recording.subscribe("b", message -> { }).listen("d1");
+        a.send("/topic/Document/d1", insert('y', 2));
+        assertEquals(1, published.size());
+        assertNotNull(published.get(0).encoded);
+    }
+
+    @Test
+    void testOperationSentToAnotherNodeIsAppliedByTheOwner() {
+        ClusterService ownerCluster = new ClusterService(registry, "a", "http://a", 1000);
+        ownerCluster.join();
+        ownerCluster.acquire("d1");
+        List<String> applied = new ArrayList<>();
+        broadcaster(ownerCluster, new ArrayList<>())
+                .onForwardedOperation((documentId, operation) -> applied.add(documentId + " " + operation.getValue()));
+        ClusterBroadcaster b = broadcaster("b", new ArrayList<>());
+        b.onForwardedOperation((documentId, operation) -> applied.add("wrong node"));
+
+        b.forward("d1", insert('x', 1));
+        b.forward("d1", insert('y', 2));
+
+        assertEquals(List.of("d1 x", "d1 y"), applied);
+        assertTrue(ownerCluster.isLocal("d1"));
+    }
+
+    private static Operation insert(char value, long clock) {
+        return new Operation(Operation.Type.INSERT, null, "root", value, clock, "u1");
+    }
+
+    // A broadcast of operations as another node would relay it
+    private static BroadcastRelay.Message operations(String id, Operation... ops) {
+        Object payload = ops.length == 1 ? ops[0] : List.of(ops);
+        BroadcastRelay.Message message = new BroadcastRelay.Message(id.substring(0, 1), id, "d1", "/topic/Document/d1",
+                payload);
+        message.encoded = OperationCodec.encodePayload(payload);
+        message.operationIds = new ArrayList<>();
+        for (Operation op : ops) {
+            message.operationIds.add(ClusterBroadcaster.operationId(op));
+        }
+        return message;
+    }
+
+    // A node whose local subscribers are recorded as "destination payload"
+    private ClusterBroadcaster broadcaster(String nodeId, List<String> delivered) {
+        return broadcaster(new ClusterService(registry, nodeId, "http://" + nodeId, 1000), delivered);
+    }
+
+    private ClusterBroadcaster broadcaster(ClusterService cluster, List<String> delivered) {
+        return broadcaster(cluster, delivered, new ArrayList<>());
+    }
+
+    // The frames marked as batches are recorded in batches too
+    private ClusterBroadcaster broadcaster(ClusterService cluster, List<String> delivered, List<String> batches) {
+        SimpMessageSendingOperations messaging = (SimpMessageSendingOperations) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { SimpMessageSendingOperations.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("convertAndSend") && args.length >= 2) {
+                        delivered.add(args[0] + " " + args[1]);
+                        if (args.length == 3 && isBatch(args[2])) batches.add(args[0] + " " + args[1]);
+                    }
+                    return null;
+                });
+        return new ClusterBroadcaster(messaging, relay, cluster);
+    }
+
+    private static boolean isBatch(Object headers) {
+        if (!(headers instanceof MessageHeaders messageHeaders)) return false;
+        SimpMessageHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(messageHeaders,
+                SimpMessageHeaderAccessor.class);
+        return accessor != null && "true".equals(accessor.getFirstNativeHeader(WireFormat.BATCH_HEADER));
+    }
+}
@@ -0,0 +1,51 @@
+package com.editor.backend.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+class HashRingTest {
+
+    private static final int KEYS = 20_000;
+
+    @Test
+    void testKeysSpreadEvenlyOverNodes() {
+        HashRing ring = new HashRing(List.of("a", "b", "c", "d"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.nodeFor(UUID.nameUUIDFromBytes(("doc" + i).getBytes()).toString()), 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > KEYS / 4 * 0.8 && count < KEYS / 4 * 1.2, "node got " + count + " keys");
+        }
+    }
+
+    @Test
+    void testAddingANodeMovesOnlyItsShare() {
+        HashRing before = new HashRing(List.of("a", "b", "c", "d"));
+        HashRing after = new HashRing(List.of("a", "b", "c", "d", "e"));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "document-" + i;
+            String from = before.nodeFor(key);
+            String to = after.nodeFor(key);
+            if (!from.equals(to)) {
+                moved++;
+                assertEquals("e", to); // keys only ever move to the new node
+            }
+        }
+        assertTrue(moved > KEYS / 5 * 0.8 && moved < KEYS / 5 * 1.2, moved + " keys moved");
+    }
+
+    @Test
+    void testEmptyRingHasNoNode() {
+        assertNull(new HashRing(List.of()).nodeFor("anything"));
+    }
+}
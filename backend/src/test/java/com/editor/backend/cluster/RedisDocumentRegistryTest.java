@@ -0,0 +1,102 @@
+package com.editor.backend.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The lease scripts against a real Redis, which is not part of the build. Start one,
+ * e.g. {@code docker run -p 6379:6379 redis:7}, and run {@code mvn test -Predis}
+ * (localhost:6379), or point it elsewhere with -Deditor.redis.host and
+ * -Deditor.redis.port. Skipped otherwise.
+ */
+@EnabledIfSystemProperty(named = "editor.redis.host", matches = ".+")
+class RedisDocumentRegistryTest {
+
+    private LettuceConnectionFactory connections;
+    private StringRedisTemplate redis;
+    private RedisDocumentRegistry registry;
+    private final List<String> documents = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        connections = new LettuceConnectionFactory(new RedisStandaloneConfiguration(
+                System.getProperty("editor.redis.host"), Integer.getInteger("editor.redis.port", 6379)));
+        connections.afterPropertiesSet();
+        redis = new StringRedisTemplate(connections);
+        registry = new RedisDocumentRegistry(redis);
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (String documentId : documents) {
+            registry.remove(documentId);
+        }
+        connections.destroy();
+    }
+
+    @Test
+    void testOnlyTheHolderRenewsOrReleasesALease() {
+        String documentId = document();
+
+        assertTrue(registry.acquire(documentId, "a", 10_000));
+        assertTrue(registry.acquire(documentId, "a", 10_000));
+        assertFalse(registry.acquire(documentId, "b", 10_000));
+        registry.release(documentId, "b");
+        assertEquals("a", registry.owner(documentId));
+
+        registry.release(documentId, "a");
+        assertNull(registry.owner(documentId));
+        assertTrue(registry.acquire(documentId, "b", 10_000));
+    }
+
+    @Test
+    void testExpiredLeaseIsTakenOverAndLostByItsFormerHolder() throws InterruptedException {
+        String documentId = document();
+        assertTrue(registry.acquire(documentId, "a", 200));
+
+        Thread.sleep(400);
+        assertNull(registry.owner(documentId));
+        assertTrue(registry.acquire(documentId, "b", 10_000));
+
+        // Node a comes back and finds the lease gone
+        assertEquals(List.of(documentId), registry.renew(List.of(documentId), "a", 10_000));
+        assertEquals("b", registry.owner(documentId));
+    }
+
+    @Test
+    void testRenewalTakesEveryLeaseTheNodeMayHoldInBatches() {
+        List<String> owned = new ArrayList<>();
+        for (int i = 0; i < RedisDocumentRegistry.RENEW_BATCH + 3; i++) {
+            owned.add(document());
+        }
+        String taken = owned.get(RedisDocumentRegistry.RENEW_BATCH + 1);
+        assertTrue(registry.acquire(taken, "b", 10_000));
+
+        assertEquals(List.of(taken), registry.renew(owned, "a", 10_000));
+        for (String documentId : owned) {
+            assertEquals(documentId.equals(taken) ? "b" : "a", registry.owner(documentId));
+        }
+        Long ttl = redis.getExpire("editor:lease:" + owned.get(0));
+        assertTrue(ttl != null && ttl > 0, "renewed lease has no expiry");
+    }
+
+    // A document id of this test's own, removed afterwards
+    private String document() {
+        String documentId = "test-" + UUID.randomUUID();
+        documents.add(documentId);
+        return documentId;
+    }
+}
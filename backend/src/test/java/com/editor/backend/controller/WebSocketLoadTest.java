@@ -0,0 +1,181 @@
+package com.editor.backend.controller;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Load profile against a running backend: many STOMP clients spread over a few
+ * documents, each typing at a steady rate. Reports how many clients connected,
+ * operations sent and delivered per second, and how long a client waits for its own
+ * keystroke to come back. Compare editor.websocket.threads=PLATFORM with VIRTUAL by
+ * starting the server once with each, on Java 21 for VIRTUAL to take effect, and running
+ * {@code mvn test -Dtest=WebSocketLoadTest -Deditor.benchmarks=true}, optionally with
+ * -Deditor.load.url, .clients, .documents, .rate (keystrokes per client per second)
+ * and .seconds. Skipped in normal builds.
+ */
+@EnabledIfSystemProperty(named = "editor.benchmarks", matches = "true")
+class WebSocketLoadTest {
+
+    private final String url = System.getProperty("editor.load.url", "http://localhost:8081");
+    private final int clients = Integer.getInteger("editor.load.clients", 500);
+    private final int documents = Integer.getInteger("editor.load.documents", 20);
+    private final int rate = Integer.getInteger("editor.load.rate", 5);
+    private final int seconds = Integer.getInteger("editor.load.seconds", 30);
+
+    private final ObjectMapper json = new ObjectMapper();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final List<Long> echoMicros = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    void profileTypingLoad() throws Exception {
+        List<String> documentIds = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            documentIds.add(createDocument());
+        }
+
+        WebSocketStompClient stomp = new WebSocketStompClient(new StandardWebSocketClient());
+        stomp.setMessageConverter(new MappingJackson2MessageConverter());
+        List<StompSession> sessions = new ArrayList<>();
+        List<String> sessionDocuments = new ArrayList<>();
+        Map<String, Long> sentAt = new ConcurrentHashMap<>();
+        long connectStart = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            String documentId = documentIds.get(c % documents);
+            try {
+                StompSession session = stomp.connectAsync(url.replaceFirst("^http", "ws") + "/ws-native",
+                        new StompSessionHandlerAdapter() { }).get(10, TimeUnit.SECONDS);
+                session.subscribe("/topic/Document/" + documentId, new Receiver("load" + sessions.size(), sentAt));
+                sessions.add(session);
+                sessionDocuments.add(documentId);
+            } catch (Exception e) {
+                System.out.println("[Load] client " + c + " did not connect - " + e);
+            }
+        }
+        long connectMs = (System.nanoTime() - connectStart) / 1_000_000;
+
+        // Every client types its own run of text, each character placed after the one before it as a
+        // real client sends it, and takes back one in every eight; each keystroke is stamped for the echo
+        ScheduledExecutorService typists = Executors.newScheduledThreadPool(8);
+        long[] clocks = new long[sessions.size()];
+        List<Deque<String>> typed = new ArrayList<>();
+        for (int c = 0; c < sessions.size(); c++) {
+            typed.add(new ArrayDeque<>());
+        }
+        for (int c = 0; c < sessions.size(); c++) {
+            int client = c;
+            typists.scheduleAtFixedRate(() -> {
+                long clock = ++clocks[client];
+                String userId = "load" + client;
+                Deque<String> text = typed.get(client);
+                Map<String, Object> op = new HashMap<>();
+                op.put("clock", clock);
+                op.put("userId", userId);
+                if (clock % 8 == 0 && !text.isEmpty()) {
+                    op.put("type", "DELETE");
+                    op.put("nodeId", text.pop());
+                } else {
+                    String nodeId = userId + ":" + clock;
+                    op.put("type", "INSERT");
+                    op.put("value", String.valueOf((char) ('a' + clock % 26)));
+                    op.put("nodeId", nodeId);
+                    op.put("parentId", text.isEmpty() ? "root" : text.peek());
+                    text.push(nodeId);
+                }
+                sentAt.put(userId + ":" + clock, System.nanoTime());
+                sessions.get(client).send("/app/updateDocument/" + sessionDocuments.get(client), op);
+                sent.incrementAndGet();
+            }, client % 1000, 1000 / rate, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(seconds * 1000L);
+        typists.shutdownNow();
+        Thread.sleep(1000); // let the last broadcasts arrive
+
+        List<Long> echoes = new ArrayList<>(echoMicros);
+        Collections.sort(echoes);
+        System.out.printf("[Load] %d/%d clients connected in %d ms on %d documents: sent %d ops/s, "
+                        + "delivered %d ops/s, own keystroke back p50 %.1f ms p99 %.1f ms%n",
+                sessions.size(), clients, connectMs, documents, sent.get() / seconds, delivered.get() / seconds,
+                percentile(echoes, 0.50) / 1000.0, percentile(echoes, 0.99) / 1000.0);
+        for (StompSession session : sessions) {
+            session.disconnect();
+        }
+        assertTrue(sessions.size() > 0, "no client connected to " + url);
+    }
+
+    // Counts the operations in each broadcast frame, one or a batch of them, and times its own keystrokes
+    private final class Receiver implements StompFrameHandler {
+        private final String userId;
+        private final Map<String, Long> sentAt;
+
+        Receiver(String userId, Map<String, Long> sentAt) {
+            this.userId = userId;
+            this.sentAt = sentAt;
+        }
+
+        // Read as JSON here: the converter hands a frame meant for Object over as its raw bytes
+        @Override
+        public Type getPayloadType(StompHeaders headers) {
+            return byte[].class;
+        }
+
+        @Override
+        public void handleFrame(StompHeaders headers, Object body) {
+            Object payload;
+            try {
+                payload = json.readValue((byte[]) body, Object.class);
+            } catch (IOException e) {
+                return;
+            }
+            List<?> ops = payload instanceof List<?> list ? list : List.of(payload);
+            long now = System.nanoTime();
+            for (Object op : ops) {
+                delivered.incrementAndGet();
+                if (!(op instanceof Map<?, ?> fields) || !userId.equals(fields.get("userId"))) continue;
+                Long start = sentAt.remove(fields.get("userId") + ":" + fields.get("clock"));
+                if (start != null) echoMicros.add((now - start) / 1000);
+            }
+        }
+    }
+
+    private String createDocument() throws Exception {
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create(url + "/api/documents")).POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+        return (String) json.readValue(response.body(), Map.class).get("documentId");
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p)));
+    }
+}
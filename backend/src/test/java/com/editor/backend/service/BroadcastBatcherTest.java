@@ -0,0 +1,95 @@
+package com.editor.backend.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.editor.backend.model.Operation;
+
+class BroadcastBatcherTest {
+
+    private static final String TOPIC = "/topic/Document/d1";
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    private final DocumentActor.Outbox recorder = (destination, payload) -> sent.add(destination + " " + describe(payload));
+
+    @Test
+    void testBatchingOffPassesEveryOperationOn() {
+        BroadcastBatcher batcher = new BroadcastBatcher(recorder, 0, 64);
+
+        batcher.send(TOPIC, op(1));
+        batcher.send(TOPIC, op(2));
+
+        assertEquals(List.of(TOPIC + " 1", TOPIC + " 2"), sent);
+    }
+
+    @Test
+    void testOperationsWithinAWindowGoAsOneFrame() throws InterruptedException {
+        BroadcastBatcher batcher = new BroadcastBatcher(recorder, 50, 64);
+
+        long start = System.nanoTime();
+        batcher.send(TOPIC, op(1));
+        batcher.send(TOPIC, op(2));
+        batcher.send(TOPIC, op(3));
+        assertTrue(sent.isEmpty());
+
+        waitForFrames(1);
+        assertTrue(System.nanoTime() - start >= 45_000_000L);
+        assertEquals(List.of(TOPIC + " [1, 2, 3]"), sent);
+
+        // The next operation opens a new window
+        batcher.send(TOPIC, op(4));
+        waitForFrames(2);
+        assertEquals(TOPIC + " [4]", sent.get(1));
+    }
+
+    @Test
+    void testFullWindowIsSentAtOnce() {
+        BroadcastBatcher batcher = new BroadcastBatcher(recorder, 60_000, 2);
+
+        batcher.send(TOPIC, op(1));
+        batcher.send(TOPIC, op(2));
+        batcher.send(TOPIC, op(3));
+
+        assertEquals(List.of(TOPIC + " [1, 2]"), sent);
+        batcher.close();
+        assertEquals(List.of(TOPIC + " [1, 2]", TOPIC + " [3]"), sent);
+    }
+
+    @Test
+    void testOtherBroadcastsKeepTheirPlace() {
+        BroadcastBatcher batcher = new BroadcastBatcher(recorder, 60_000, 64);
+
+        batcher.send(TOPIC, op(1));
+        batcher.send(TOPIC + "/cursors", op(2));   // not batched
+        batcher.send(TOPIC, "renamed");            // goes after the operations before it
+        batcher.send("/topic/Document/d2", op(3));
+        batcher.close();
+
+        assertEquals(List.of(TOPIC + "/cursors 2", TOPIC + " [1]", TOPIC + " renamed", "/topic/Document/d2 [3]"), sent);
+    }
+
+    private void waitForFrames(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && sent.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static Operation op(long clock) {
+        return new Operation(Operation.Type.INSERT, "alice:" + clock, "root", 'x', clock, "alice");
+    }
+
+    private static String describe(Object payload) {
+        if (payload instanceof Operation op) return Long.toString(op.getClock());
+        if (payload instanceof List<?> ops) {
+            List<Long> clocks = new ArrayList<>();
+            for (Object op : ops) clocks.add(((Operation) op).getClock());
+            return clocks.toString();
+        }
+        return String.valueOf(payload);
+    }
+}
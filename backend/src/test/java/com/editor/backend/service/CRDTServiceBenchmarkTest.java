@@ -0,0 +1,58 @@
+package com.editor.backend.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.editor.backend.crdt.HeapNodeStore;
+
+/**
+ * Rough timings for hot paths of CRDTService. Skipped in normal builds; run with
+ * {@code mvn test -Dtest=CRDTServiceBenchmarkTest -Deditor.benchmarks=true}.
+ */
+@EnabledIfSystemProperty(named = "editor.benchmarks", matches = "true")
+class CRDTServiceBenchmarkTest {
+
+    private static final int ROUNDS = 3;
+
+    @Test
+    void benchmarkWideFanOut() {
+        // Many users typing at the same spot: every insert is a new child of one parent,
+        // arriving in random clock order
+        int users = 20_000;
+        List<Integer> arrival = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            arrival.add(i);
+        }
+        Collections.shuffle(arrival, new Random(1));
+
+        String scanned = null;
+        String indexed = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            scanned = fanOut(new CRDTService(new HeapNodeStore(), Integer.MAX_VALUE), arrival);
+            long scanNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            indexed = fanOut(new CRDTService(new HeapNodeStore()), arrival);
+            long indexNanos = System.nanoTime() - start;
+
+            System.out.printf("[Benchmark] %d siblings: linear scan %d ms, binary search %d ms%n",
+                    users, scanNanos / 1_000_000, indexNanos / 1_000_000);
+        }
+        assertEquals(scanned, indexed);
+    }
+
+    private static String fanOut(CRDTService crdt, List<Integer> arrival) {
+        crdt.insert('#', "root", "host", 1);
+        for (int user : arrival) {
+            crdt.insert((char) ('a' + user % 26), "host:1", "user" + user, 2 + user % 5000);
+        }
+        return crdt.getDocument();
+    }
+}
@@ -1,19 +1,33 @@
 package com.editor.backend.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.editor.backend.crdt.HeapNodeStore;
+import com.editor.backend.crdt.NodeStore;
+import com.editor.backend.crdt.SiblingIndex;
 import com.editor.backend.model.Comment;
 import com.editor.backend.model.Cursor;
+import com.editor.backend.model.DocumentSnapshot;
+import com.editor.backend.model.SyncResponse;
 public class CRDTServiceTest {
 
     private CRDTService crdt;
 
+    // The undo history's clock, so bursts of typing end where a test says
+    private final AtomicLong now = new AtomicLong(1);
+
     @BeforeEach
     void setup() {
-        crdt = new CRDTService();
+        crdt = new CRDTService(new HeapNodeStore(), SiblingIndex.DEFAULT_THRESHOLD,
+                new EditHistory(EditHistory.DEFAULT_MAX_GROUPS_PER_USER, EditHistory.DEFAULT_MAX_ENTRIES_PER_DOCUMENT,
+                        EditHistory.DEFAULT_GROUP_WINDOW_MS, now::get));
     }
 
     @Test
@@ -63,15 +77,29 @@ public class CRDTServiceTest {
     @Test
     void testUndoMultipleLevels() {
         crdt.insert('P', "root", "u1", 1);
-        crdt.insert('Q', "u1:1", "u1", 2);
-        crdt.insert('R', "u1:2", "u1", 3);
+        now.addAndGet(EditHistory.DEFAULT_GROUP_WINDOW_MS); // a pause as long as the window
+        crdt.insert('Q', "u1:1", "u1", 2); // continues the burst
+        crdt.insert('R', "root", "u1", 3); // typed elsewhere, a new group
+        assertEquals("RPQ", crdt.getDocument());
         crdt.undo("u1");
+        assertEquals("PQ", crdt.getDocument());
         crdt.undo("u1");
-        assertEquals("P", crdt.getDocument());
+        assertEquals("", crdt.getDocument());
 
         crdt.redo("u1");
         crdt.redo("u1");
-        assertEquals("PQR", crdt.getDocument());
+        assertEquals("RPQ", crdt.getDocument());
+    }
+
+    @Test
+    void testPauseLongerThanTheGroupWindowStartsANewGroup() {
+        crdt.insert('P', "root", "u1", 1);
+        now.addAndGet(EditHistory.DEFAULT_GROUP_WINDOW_MS + 1);
+        crdt.insert('Q', "u1:1", "u1", 2);
+        assertEquals("PQ", crdt.getDocument());
+
+        crdt.undo("u1");
+        assertEquals("P", crdt.getDocument());
     }
 
     @Test
@@ -172,14 +200,15 @@ void testCopyRangePartial() {
 void testPasteAndUndo() {
     crdt.insert('A', "root", "u1", 1);
     crdt.updateCursor("u1", "u1:1");
-    crdt.paste("MN", "u1", 2); // M = u1:2, N = u1:3
+    crdt.paste("MN", "u1", 2); // M = u1:2, N = u1:3, right after the A; a paste is its own group anyway
 
     assertEquals("AMN", crdt.getDocument());
 
-    crdt.undo("u1"); // removes N
-    crdt.undo("u1"); // removes M
-
+    crdt.undo("u1"); // removes the whole paste
     assertEquals("A", crdt.getDocument());
+
+    crdt.undo("u1"); // then the A
+    assertEquals("", crdt.getDocument());
 }
 //@Test
 //void testAddAndRetrieveComment() {
@@ -231,5 +260,775 @@ void testUpdateCursorByIndexAndInsert() {
     assertEquals("ABXC", crdt.getDocument());
 }
 
+    @Test
+    void testIndexLookupsMatchDocumentAfterInterleavedEdits() {
+        java.util.Random random = new java.util.Random(42);
+        java.util.List<String> ids = new java.util.ArrayList<>();
+        ids.add("root");
+        for (int clock = 1; clock <= 500; clock++) {
+            String parent = ids.get(random.nextInt(ids.size()));
+            String user = "u" + random.nextInt(3);
+            crdt.insert((char) ('a' + random.nextInt(26)), parent, user, clock);
+            ids.add(user + ":" + clock);
+            if (random.nextInt(4) == 0) {
+                crdt.delete(ids.get(1 + random.nextInt(ids.size() - 1)));
+            }
+        }
+
+        String doc = crdt.getDocument();
+        for (int i = 0; i < doc.length(); i++) {
+            String nodeId = crdt.getNodeIdByIndex(i);
+            crdt.updateCursor("reader", nodeId);
+            assertEquals(i, crdt.getCursorIndex("reader"));
+            assertEquals(String.valueOf(doc.charAt(i)), crdt.getTextBetweenIndices(i, i));
+        }
+        assertEquals(null, crdt.getNodeIdByIndex(doc.length()));
+        assertEquals(doc, crdt.getTextBetweenIndices(0, doc.length() - 1));
+        assertEquals(doc.substring(3, 40), crdt.copy(crdt.getNodeIdByIndex(3), crdt.getNodeIdByIndex(39)));
+    }
+
+    @Test
+    void testAllNodeStoresProduceTheSameDocument() {
+        java.util.List<String> results = new java.util.ArrayList<>();
+        for (NodeStore.Kind kind : NodeStore.Kind.values()) {
+            CRDTService doc = new CRDTService(NodeStore.create(kind));
+            java.util.Random random = new java.util.Random(7);
+            java.util.List<String> ids = new java.util.ArrayList<>();
+            ids.add("root");
+            for (int clock = 1; clock <= 3000; clock++) {
+                String user = "u" + random.nextInt(4);
+                doc.insert((char) ('a' + random.nextInt(26)), ids.get(random.nextInt(ids.size())), user, clock);
+                ids.add(user + ":" + clock);
+                if (random.nextInt(5) == 0) {
+                    doc.delete(ids.get(1 + random.nextInt(ids.size() - 1)));
+                }
+                if (random.nextInt(50) == 0) {
+                    doc.undo(user);
+                }
+            }
+            results.add(doc.getDocument() + "|" + doc.getNodeIdByIndex(100) + "|" + doc.getTextBetweenIndices(10, 90));
+        }
+        assertEquals(results.get(0), results.get(1));
+        assertEquals(results.get(0), results.get(2));
+    }
+
+    @Test
+    void testSiblingIndexKeepsScanOrder() {
+        java.util.List<String> results = new java.util.ArrayList<>();
+        for (int threshold : new int[]{Integer.MAX_VALUE, 1}) {
+            CRDTService doc = new CRDTService(NodeStore.create(NodeStore.Kind.HEAP), threshold);
+            java.util.Random random = new java.util.Random(3);
+            java.util.List<String> ids = new java.util.ArrayList<>();
+            ids.add("root");
+            java.util.Map<String, Long> next = new java.util.HashMap<>();
+            for (int step = 0; step < 3000; step++) {
+                String user = "u" + random.nextInt(20);
+                long clock = next.merge(user, 1L + random.nextInt(3), Long::sum); // frequent clock ties
+                int length = 1 + random.nextInt(4);
+                doc.updateCursor(user, ids.get(random.nextInt(ids.size())));
+                doc.paste("abcd".substring(0, length), user, clock);
+                for (int i = 0; i < length; i++) {
+                    ids.add(user + ":" + (clock + i)); // later inserts land mid-span and split it
+                }
+                next.merge(user, (long) length, Long::sum);
+            }
+            results.add(doc.getDocument());
+        }
+        assertEquals(results.get(0), results.get(1));
+    }
+
+    @Test
+    void testGarbageCollectionKeepsDocumentAndOrder() {
+        for (NodeStore.Kind kind : NodeStore.Kind.values()) {
+            crdt = new CRDTService();
+            collectAlongside(new CRDTService(NodeStore.create(kind)));
+        }
+    }
+
+    private void collectAlongside(CRDTService collected) {
+        java.util.Random random = new java.util.Random(17);
+        long clock = 1; // Lamport clock shared by all users
+        for (int step = 0; step < 3000; step++) {
+            String user = "u" + random.nextInt(4);
+            int length = crdt.getDocument().length();
+            if (length > 0 && random.nextInt(3) == 0) {
+                String id = crdt.getNodeIdByIndex(random.nextInt(length));
+                crdt.delete(id);
+                collected.delete(id);
+            } else {
+                int index = length == 0 ? -1 : random.nextInt(length + 1) - 1;
+                String parent = index < 0 ? "root" : crdt.getNodeIdByIndex(index);
+                String text = "xyz".substring(random.nextInt(3));
+                crdt.insert(text.charAt(0), parent, user, clock);
+                collected.insert(text.charAt(0), parent, user, clock);
+                clock++;
+            }
+            if (step % 50 == 0) {
+                collected.collectGarbage();
+                assertEquals(crdt.getDocument(), collected.getDocument());
+                // A fresh copy built from what is left reads the same
+                CRDTService copy = new CRDTService();
+                copy.applySync(collected.sync(java.util.Map.of(), 0, Integer.MAX_VALUE));
+                assertEquals(collected.getDocument(), copy.getDocument());
+            }
+        }
+        assertEquals(crdt.getDocument(), collected.getDocument());
+        assertTrue(collected.getReclaimedNodeCount() > 0);
+        assertTrue(collected.getNodeCount() < crdt.getNodeCount());
+    }
+
+    @Test
+    void testGarbageCollectionWaitsForEveryReplica() {
+        crdt.paste("abcdef", "u1", 1);
+        crdt.acknowledge("replica-1", crdt.getSequence());
+        crdt.acknowledge("replica-2", crdt.getSequence());
+        crdt.delete("u1:3");
+        crdt.delete("u1:4");
+
+        crdt.acknowledge("replica-1", crdt.getSequence());
+        assertEquals(0, crdt.collectGarbage()); // replica-2 has not seen the deletes
+
+        crdt.acknowledge("replica-2", crdt.getSequence());
+        int before = crdt.getNodeCount();
+        assertEquals(2, crdt.collectGarbage());
+        assertEquals(before - 2, crdt.getNodeCount());
+        assertEquals("abef", crdt.getDocument());
+
+        crdt.insert('!', "u1:2", "u2", 10);
+        assertEquals("ab!ef", crdt.getDocument());
+    }
+
+    @Test
+    void testGarbageCollectionKeepsChildrenInIdOrderForSync() {
+        crdt.insert('T', "root", "u1", 10);
+        crdt.insert('B', "root", "u2", 50);
+        crdt.insert('C', "u1:10", "u3", 100);
+        crdt.delete("u1:10");
+        assertEquals("BC", crdt.getDocument());
+
+        // C would sort ahead of B at the root, so the tombstone it hangs off stays
+        assertEquals(0, crdt.collectGarbage());
+        CRDTService copy = new CRDTService();
+        copy.applySync(crdt.sync(java.util.Map.of(), 0, 100));
+        assertEquals("BC", copy.getDocument());
+
+        // Here C sorts after B, so it can take the tombstone's place
+        CRDTService other = new CRDTService();
+        other.insert('T', "root", "u1", 10);
+        other.insert('B', "root", "u2", 150);
+        other.insert('C', "u1:10", "u3", 100);
+        other.delete("u1:10");
+        assertEquals(1, other.collectGarbage());
+        CRDTService otherCopy = new CRDTService();
+        otherCopy.applySync(other.sync(java.util.Map.of(), 0, 100));
+        assertEquals("BC", other.getDocument());
+        assertEquals("BC", otherCopy.getDocument());
+
+        // Both copies place a later insert at the root the same way
+        other.insert('D', "root", "u2", 120);
+        otherCopy.insert('D', "root", "u2", 120);
+        assertEquals(other.getDocument(), otherCopy.getDocument());
+    }
+
+    @Test
+    void testGarbageCollectionWaitsForDisconnectedReplica() {
+        crdt.insert('T', "root", "u1", 10);
+        crdt.insert('B', "root", "u2", 150);
+        CRDTService gone = new CRDTService();
+        gone.applySync(crdt.sync(java.util.Map.of(), 0, 100));
+        long seen = crdt.getSequence();
+        crdt.acknowledge("replica-1", seen);
+        crdt.removeReplica("replica-1");
+
+        crdt.insert('C', "u1:10", "u3", 100);
+        crdt.delete("u1:10");
+        assertEquals(0, crdt.collectGarbage()); // replica-1 left before C and may come back for a delta
+        SyncResponse delta = crdt.sync(java.util.Map.of("u1", 10L, "u2", 150L), seen, 100);
+        assertFalse(delta.isSnapshot());
+        CRDTService back = new CRDTService();
+        back.applySync(gone.sync(java.util.Map.of(), 0, 100));
+        back.applySync(delta);
+        assertEquals(crdt.getDocument(), back.getDocument());
 
+        // Once the change log no longer reaches it, it would get a full copy, so it stops counting
+        for (int i = 0; i < 10_001; i++) {
+            crdt.insert('x', "u2:150", "u4", 200 + i);
+            crdt.delete("u4:" + (200 + i));
+        }
+        assertTrue(crdt.collectGarbage() > 0);
+        SyncResponse full = crdt.sync(java.util.Map.of("u1", 10L, "u2", 150L), seen, Integer.MAX_VALUE);
+        assertTrue(full.isSnapshot());
+        CRDTService fresh = new CRDTService(); // a snapshot replaces the replica's copy
+        fresh.applySync(full);
+        assertEquals("BC", crdt.getDocument());
+        assertEquals(crdt.getDocument(), fresh.getDocument());
+    }
+
+    @Test
+    void testGarbageCollectionPrunesHistoryAndMovesAnchors() {
+        crdt.paste("ab", "u1", 1);
+        crdt.paste("c", "u1", 3);
+        crdt.paste("def", "u1", 4);
+        crdt.updateCursor("u2", "u1:4");
+        crdt.addCommentFromIndexRange("u3", "note", 3, 5); // "def"
+        crdt.undo("u1"); // "def"
+
+        assertEquals(1, crdt.collectGarbage()); // the undo tombstoned "def" as one span
+        assertEquals("abc", crdt.getDocument());
+        assertEquals("u1:3", crdt.getCursor("u2").getNodeId());
+        assertEquals(2, crdt.getCursorIndex("u2"));
+        assertTrue(crdt.getAllComments().isEmpty()); // nothing visible left to anchor on
+
+        crdt.redo("u1"); // its characters are gone, so redo has nothing to restore
+        assertEquals("abc", crdt.getDocument());
+        crdt.undo("u1"); // "c"
+        assertEquals("ab", crdt.getDocument());
+    }
+
+    @Test
+    void testSnapshotIsIsolatedFromLaterChanges() {
+        crdt.paste("hello", "u1", 1);
+        crdt.addCommentFromIndexRange("u2", "note", 0, 1);
+        crdt.updateCursor("u2", "u1:2");
+        com.editor.backend.model.DocumentSnapshot before = crdt.snapshot();
+
+        crdt.insert('!', "u1:5", "u1", 6);
+        crdt.updateCursor("u2", "u1:5");
+        com.editor.backend.model.DocumentSnapshot after = crdt.snapshot();
+
+        assertEquals("hello", before.getDocument());
+        assertEquals("u1:2", before.getCursor("u2").getNodeId());
+        assertEquals("hello!", after.getDocument());
+        assertEquals("u1:5", after.getCursor("u2").getNodeId());
+        assertTrue(after.getSequence() > before.getSequence());
+        assertSame(before.getAllComments(), after.getAllComments()); // unchanged, shared
+
+        crdt.resolveComment(crdt.getAllComments().get(0).getId());
+        assertFalse(before.getAllComments().get(0).isResolved());
+        assertTrue(crdt.snapshot().getAllComments().get(0).isResolved());
+    }
+
+    @Test
+    void testPasteIsStoredAsOneSpan() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        crdt.paste(text.toString(), "u1", 1);
+        assertEquals(2, crdt.getNodeCount()); // root + one span
+
+        crdt.insert('!', "u1:50000", "u2", 100_001);
+        crdt.delete("u1:10");
+        text.insert(50000, '!').deleteCharAt(9);
+        assertEquals(text.toString(), crdt.getDocument());
+        assertEquals("u1:50001", crdt.getNodeIdByIndex(50000));
+        assertTrue(crdt.getNodeCount() < 10);
+    }
+
+    @Test
+    void testSelectionDeleteFlipsRunsNotCharacters() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        crdt.paste(text.toString(), "u1", 1);
+        crdt.acknowledge("replica-1", crdt.getSequence());
+        long seen = crdt.getSequence();
+        CRDTService replica = new CRDTService();
+        replica.applySync(crdt.sync(java.util.Map.of(), 0, Integer.MAX_VALUE));
+
+        crdt.deleteBetweenIndices(10, 89_999);
+        String expected = text.substring(0, 10) + text.substring(90_000);
+        assertEquals(expected, crdt.getDocument());
+        assertEquals(4, crdt.getNodeCount()); // root, the head, the deleted run and the tail
+
+        // One flip in the change log, so the replica still gets a delta
+        SyncResponse delta = crdt.sync(java.util.Map.of("u1", 100_000L), seen, 100);
+        assertFalse(delta.isSnapshot());
+        assertEquals(1, delta.getDeleted().size());
+        assertEquals("u1:11", delta.getDeleted().get(0).getId());
+        assertEquals(89_990, delta.getDeleted().get(0).getLength());
+        replica.applySync(delta);
+        assertEquals(expected, replica.getDocument());
+
+        crdt.acknowledge("replica-1", crdt.getSequence());
+        assertEquals(1, crdt.collectGarbage());
+        assertEquals(3, crdt.getNodeCount());
+        assertEquals(expected, crdt.getDocument());
+        crdt.insert('!', "u1:10", "u2", 100_001);
+        assertEquals(expected.substring(0, 10) + "!" + expected.substring(10), crdt.getDocument());
+    }
+
+    @Test
+    void testUndoOfLargePasteKeepsOneSpan() {
+        String text = "0123456789".repeat(10_000);
+        crdt.paste(text, "u1", 1);
+        long seen = crdt.getSequence();
+        assertEquals(2, crdt.getNodeCount());
+
+        crdt.undo("u1");
+        assertEquals("", crdt.getDocument());
+        assertEquals(2, crdt.getNodeCount());
+        crdt.redo("u1");
+        assertEquals(text, crdt.getDocument());
+        assertEquals(2, crdt.getNodeCount());
+
+        // Each of them is one flip, so a replica that saw the paste still gets a delta
+        SyncResponse delta = crdt.sync(java.util.Map.of("u1", 100_000L), seen, 10);
+        assertFalse(delta.isSnapshot());
+        assertEquals(1, delta.getRestored().size());
+        assertEquals(100_000, delta.getRestored().get(0).getLength());
+    }
+
+    @Test
+    void testDeltaSyncResolvesOverlappingFlips() {
+        java.util.Random random = new java.util.Random(5);
+        java.util.Map<String, Long> clocks = new java.util.HashMap<>();
+        CRDTService replica = new CRDTService();
+        java.util.Map<String, Long> replicaClocks = new java.util.HashMap<>();
+        long replicaSequence = 0;
+        for (int step = 0; step < 400; step++) {
+            String user = "u" + random.nextInt(3);
+            int length = crdt.getDocument().length();
+            int action = random.nextInt(10);
+            if (length == 0 || action < 4) {
+                String text = "abcdefgh".substring(random.nextInt(8));
+                crdt.updateCursorByIndex(user, length == 0 ? 0 : random.nextInt(length));
+                long clock = clocks.getOrDefault(user, 0L) + 1;
+                crdt.paste(text, user, clock);
+                clocks.put(user, clock + text.length() - 1);
+            } else if (action < 7) {
+                int start = random.nextInt(length);
+                crdt.deleteBetweenIndices(start, Math.min(length - 1, start + random.nextInt(6)));
+            } else if (action < 9) {
+                crdt.undo(user);
+            } else {
+                crdt.redo(user);
+            }
+            if (step % 25 == 24) {
+                SyncResponse delta = crdt.sync(replicaClocks, replicaSequence, Integer.MAX_VALUE);
+                assertFalse(delta.isSnapshot());
+                replica.applySync(delta);
+                assertEquals(crdt.getDocument(), replica.getDocument());
+                replicaClocks = new java.util.HashMap<>(clocks);
+                replicaSequence = crdt.getSequence();
+            }
+        }
+    }
+
+    @Test
+    void testTypingExtendsTheSameSpan() {
+        for (int clock = 1; clock <= 1000; clock++) {
+            crdt.insertAtCursor('x', "u1", clock);
+        }
+        assertEquals(2, crdt.getNodeCount());
+        assertEquals(999, crdt.getCursorIndex("u1"));
+    }
+
+    @Test
+    void testSpansMatchCharacterLevelReference() {
+        // Keystroke bursts depend on timing, so only pastes group here, as in the reference
+        crdt = new CRDTService(new HeapNodeStore(), 16, new EditHistory(100, 100_000, -1));
+        java.util.Random random = new java.util.Random(11);
+        ReferenceRga reference = new ReferenceRga();
+        java.util.Map<String, Long> clocks = new java.util.HashMap<>();
+        for (int step = 0; step < 2000; step++) {
+            String user = "u" + random.nextInt(3);
+            int action = random.nextInt(10);
+            if (action < 6) {
+                String parent = reference.randomId(random);
+                int length = 1 + random.nextInt(random.nextBoolean() ? 1 : 12);
+                long clock = clocks.merge(user, (long) length, Long::sum) - length + 1;
+                StringBuilder text = new StringBuilder();
+                for (int i = 0; i < length; i++) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                crdt.updateCursor(user, parent);
+                crdt.paste(text.toString(), user, clock);
+                reference.paste(text.toString(), parent, user, clock);
+            } else if (action < 8) {
+                String id = reference.randomId(random);
+                crdt.delete(id);
+                reference.delete(id);
+            } else if (action < 9) {
+                crdt.undo(user);
+                reference.undo(user);
+            } else {
+                crdt.redo(user);
+                reference.redo(user);
+            }
+            if (step % 100 == 0) {
+                assertEquals(reference.document(), crdt.getDocument());
+            }
+        }
+        String doc = reference.document();
+        assertEquals(doc, crdt.getDocument());
+        for (int i = 0; i < doc.length(); i += 7) {
+            assertEquals(doc.substring(i, Math.min(doc.length(), i + 20)),
+                    crdt.getTextBetweenIndices(i, Math.min(doc.length(), i + 20) - 1));
+        }
+    }
+
+    // Straightforward one-node-per-character RGA used as an oracle
+    private static class ReferenceRga {
+        final java.util.Map<String, java.util.List<String>> children = new java.util.HashMap<>();
+        final java.util.Map<String, Character> values = new java.util.HashMap<>();
+        final java.util.Set<String> deleted = new java.util.HashSet<>();
+        final java.util.List<String> ids = new java.util.ArrayList<>(java.util.List.of("root"));
+        // Groups as {type, id, id, ...}
+        final java.util.Map<String, java.util.Deque<String[]>> undo = new java.util.HashMap<>();
+        final java.util.Map<String, java.util.Deque<String[]>> redo = new java.util.HashMap<>();
+
+        String randomId(java.util.Random random) {
+            return ids.get(random.nextInt(ids.size()));
+        }
+
+        void paste(String text, String parent, String user, long clock) {
+            java.util.List<String> group = new java.util.ArrayList<>(java.util.List.of("I"));
+            for (char c : text.toCharArray()) {
+                String id = user + ":" + clock++;
+                values.put(id, c);
+                ids.add(id);
+                java.util.List<String> siblings = children.computeIfAbsent(parent, k -> new java.util.ArrayList<>());
+                siblings.add(id);
+                siblings.sort((a, b) -> {
+                    int cmp = Long.compare(clockOf(b), clockOf(a));
+                    return cmp != 0 ? cmp : a.substring(0, a.lastIndexOf(':')).compareTo(b.substring(0, b.lastIndexOf(':')));
+                });
+                group.add(id);
+                parent = id;
+            }
+            undo.computeIfAbsent(user, k -> new java.util.ArrayDeque<>()).push(group.toArray(new String[0]));
+        }
+
+        void delete(String id) {
+            if (id.equals("root") || !deleted.add(id)) return;
+            String owner = id.substring(0, id.lastIndexOf(':'));
+            undo.computeIfAbsent(owner, k -> new java.util.ArrayDeque<>()).push(new String[]{"D", id});
+        }
+
+        void undo(String user) {
+            java.util.Deque<String[]> stack = undo.get(user);
+            if (stack == null || stack.isEmpty()) return;
+            String[] edit = stack.pop();
+            redo.computeIfAbsent(user, k -> new java.util.ArrayDeque<>()).push(edit);
+            for (int i = 1; i < edit.length; i++) {
+                if (edit[0].equals("I")) deleted.add(edit[i]); else deleted.remove(edit[i]);
+            }
+        }
+
+        void redo(String user) {
+            java.util.Deque<String[]> stack = redo.get(user);
+            if (stack == null || stack.isEmpty()) return;
+            String[] edit = stack.pop();
+            undo.get(user).push(edit);
+            for (int i = 1; i < edit.length; i++) {
+                if (edit[0].equals("I")) deleted.remove(edit[i]); else deleted.add(edit[i]);
+            }
+        }
+
+        String document() {
+            StringBuilder sb = new StringBuilder();
+            java.util.Deque<String> stack = new java.util.ArrayDeque<>();
+            stack.push("root");
+            while (!stack.isEmpty()) {
+                String id = stack.pop();
+                if (!id.equals("root") && !deleted.contains(id)) sb.append(values.get(id));
+                java.util.List<String> kids = children.getOrDefault(id, java.util.List.of());
+                for (int i = kids.size() - 1; i >= 0; i--) stack.push(kids.get(i));
+            }
+            return sb.toString();
+        }
+
+        static long clockOf(String id) {
+            return Long.parseLong(id.substring(id.lastIndexOf(':') + 1));
+        }
+    }
+
+    @Test
+    void testDeepTreeDoesNotOverflowTheStack() {
+        // Clocks step by two, so every character becomes its own span nested under the previous one
+        int n = 200_000;
+        for (int i = 0; i < n; i++) {
+            crdt.insertAtCursor((char) ('a' + i % 26), "u1", 2L * i + 1);
+        }
+        String doc = crdt.getDocument();
+        assertEquals(n, doc.length());
+        assertEquals(doc.substring(1000, 1010), crdt.getTextBetweenIndices(1000, 1009));
+        assertEquals(doc.substring(150_000), crdt.copy("u1:300001", "u1:" + (2L * n - 1)));
+
+        crdt.addCommentFromIndexRange("u2", "note", 10, 20);
+        crdt.delete("u1:31");
+        assertTrue(crdt.getAllComments().isEmpty());
+    }
+
+    @Test
+    void testDocumentMirrorMatchesTreeWalk() {
+        java.util.Random random = new java.util.Random(5);
+        long clock = 1;
+        for (int step = 0; step < 400; step++) {
+            int length = crdt.getDocument().length();
+            if (length > 0 && random.nextInt(3) == 0) {
+                int from = random.nextInt(length);
+                int count = Math.min(length - from, 1 + random.nextInt(700));
+                for (int i = 0; i < count; i++) {
+                    crdt.delete(crdt.getNodeIdByIndex(from));
+                }
+            } else {
+                crdt.updateCursorByIndex("u1", length == 0 ? 0 : random.nextInt(length));
+                int size = 1 + random.nextInt(random.nextBoolean() ? 5 : 1500);
+                StringBuilder text = new StringBuilder();
+                for (int i = 0; i < size; i++) {
+                    text.append((char) ('a' + random.nextInt(26)));
+                }
+                crdt.paste(text.toString(), "u1", clock);
+                clock += size;
+            }
+        }
+
+        String doc = crdt.getDocument();
+        // The image lists the spans in document order, tombstones included
+        DocumentImage image = crdt.toImage();
+        StringBuilder walked = new StringBuilder();
+        int at = 0;
+        for (int i = 0; i < image.spanCount; i++) {
+            if (!image.deleted[i]) walked.append(image.text, at, image.length[i]);
+            at += image.length[i];
+        }
+        assertEquals(walked.toString(), doc);
+        assertSame(doc, crdt.getDocument()); // unchanged document, shared string
+        assertEquals(doc.substring(doc.length() / 3, doc.length() / 2),
+                crdt.getTextBetweenIndices(doc.length() / 3, doc.length() / 2 - 1));
+    }
+
+    @Test
+    void testNodeIdsRoundTripThroughStringForm() {
+        long clock = 1_747_000_000_000L; // clients may send wall-clock millis
+        crdt.insert('A', "root", "team:alice", clock);
+        crdt.insert('B', "team:alice:" + clock, "bob", 1);
+
+        assertEquals("AB", crdt.getDocument());
+        assertEquals("team:alice:" + clock, crdt.getNodeIdByIndex(0));
+        assertEquals("bob:1", crdt.getNodeIdByIndex(1));
+        assertEquals(null, crdt.getNodeIdByIndex(2));
+    }
+
+    @Test
+    void testCursorIndexOfDeletedNode() {
+        crdt.insert('A', "root", "u1", 1);
+        crdt.insert('B', "u1:1", "u1", 2);
+        crdt.delete("u1:1");
+        crdt.updateCursor("u1", "u1:1");
+        assertEquals(-1, crdt.getCursorIndex("u1"));
+        crdt.updateCursor("u1", "u1:2");
+        assertEquals(0, crdt.getCursorIndex("u1"));
+    }
+
+    @Test
+    void testDeleteRemovesExactlyTheCoveringComments() {
+        java.util.Random random = new java.util.Random(11);
+        java.util.List<String> ids = new java.util.ArrayList<>();
+        ids.add("root");
+        for (int clock = 1; clock <= 400; clock++) {
+            String user = "u" + random.nextInt(3);
+            crdt.insert((char) ('a' + random.nextInt(26)), ids.get(random.nextInt(ids.size())), user, clock);
+            ids.add(user + ":" + clock);
+        }
+        for (int i = 0; i < 60; i++) {
+            int start = random.nextInt(400);
+            crdt.addCommentFromIndexRange("u1", "c" + i, start, Math.min(399, start + random.nextInt(40)));
+        }
+
+        while (!crdt.getAllComments().isEmpty()) {
+            String deleted = crdt.getNodeIdByIndex(random.nextInt(crdt.getDocument().length()));
+            int at = indexOf(deleted);
+            java.util.Set<String> expected = new java.util.HashSet<>();
+            for (Comment c : crdt.getAllComments()) {
+                if (indexOf(c.getStartNodeId()) > at || indexOf(c.getEndNodeId()) < at) {
+                    expected.add(c.getId());
+                }
+            }
+            crdt.delete(deleted);
+
+            java.util.Set<String> left = new java.util.HashSet<>();
+            for (Comment c : crdt.getAllComments()) {
+                left.add(c.getId());
+            }
+            assertEquals(expected, left);
+        }
+    }
+
+    @Test
+    void testDeleteSelectionDropsOverlappingComments() {
+        crdt.paste("abcdefghij", "u1", 1);
+        crdt.addCommentFromIndexRange("u2", "before", 0, 1); // "ab"
+        crdt.addCommentFromIndexRange("u2", "across", 2, 4); // "cde"
+        crdt.addCommentFromIndexRange("u2", "inside", 5, 5); // "f"
+        crdt.addCommentFromIndexRange("u2", "after", 7, 9); // "hij"
+
+        crdt.deleteBetweenIndices(4, 6); // "efg"
+        assertEquals("abcdhij", crdt.getDocument());
+        java.util.Set<String> left = new java.util.HashSet<>();
+        for (Comment c : crdt.getAllComments()) {
+            left.add(c.getContent());
+        }
+        assertEquals(java.util.Set.of("before", "after"), left);
+
+        crdt.undo("u1"); // the selection comes back as a whole
+        assertEquals("abcdefghij", crdt.getDocument());
+        crdt.deleteBetweenIndices(3, 20); // out of range, ignored
+        assertEquals("abcdefghij", crdt.getDocument());
+    }
+
+    @Test
+    void testCursorsFollowEditsMadeBeforeThem() {
+        crdt.paste("hello world", "u1", 1);
+        crdt.updateCursor("u2", "u1:7"); // the "w"
+        crdt.updateCursor("u3", "u1:11"); // the "d"
+        DocumentSnapshot before = crdt.snapshot();
+
+        crdt.updateCursorByIndex("u1", 0);
+        crdt.paste("oh ", "u1", 100); // after the "h"
+        crdt.delete("u1:8"); // the "o" of "world"
+
+        assertEquals("hoh ello wrld", crdt.getDocument());
+        assertEquals(9, crdt.getCursorIndex("u2"));
+        assertEquals(12, crdt.getCursorIndex("u3"));
+        java.util.Map<String, Integer> indices = new java.util.HashMap<>();
+        for (Cursor c : crdt.getAllCursors()) {
+            indices.put(c.getUserId(), c.getVisualIndex());
+        }
+        assertEquals(java.util.Map.of("u1", 3, "u2", 9, "u3", 12), indices);
+
+        assertEquals(6, before.getCursor("u2").getVisualIndex());
+        assertEquals(9, crdt.snapshot().getCursor("u2").getVisualIndex());
+        assertEquals(12, crdt.snapshot().getCursor("u3").getVisualIndex());
+    }
+
+    @Test
+    void testTypingAndBackspaceBurstsUndoAsOneGroup() {
+        for (int clock = 1; clock <= 5; clock++) {
+            crdt.insertAtCursor((char) ('a' + clock - 1), "u1", clock);
+        }
+        crdt.updateCursorByIndex("u1", 1);
+        crdt.insertAtCursor('X', "u1", 6); // moved the caret, so a new burst
+        assertEquals("abXcde", crdt.getDocument());
+
+        crdt.delete("u1:5"); // backspace from the end
+        crdt.delete("u1:4");
+        crdt.delete("u1:3");
+        crdt.delete("u1:1"); // somewhere else
+        assertEquals("bX", crdt.getDocument());
+
+        crdt.undo("u1");
+        assertEquals("abX", crdt.getDocument());
+        crdt.undo("u1");
+        assertEquals("abXcde", crdt.getDocument());
+        crdt.undo("u1");
+        assertEquals("abcde", crdt.getDocument());
+        crdt.undo("u1");
+        assertEquals("", crdt.getDocument());
+
+        crdt.redo("u1");
+        assertEquals("abcde", crdt.getDocument());
+    }
+
+    @Test
+    void testHistoryCapsForgetTheOldestGroups() {
+        EditHistory history = new EditHistory(3, 5, -1);
+        crdt = new CRDTService(new HeapNodeStore(), 16, history);
+        for (int i = 0; i < 5; i++) {
+            crdt.insert((char) ('a' + i), "root", "u1", 10 * i + 1);
+        }
+        assertEquals(3, history.undoDepth("u1")); // a and b are forgotten
+        for (int i = 0; i < 5; i++) {
+            crdt.undo("u1");
+        }
+        assertEquals("ba", crdt.getDocument());
+
+        // A paste is a single run however long it is
+        crdt.paste("x".repeat(1000), "u2", 1);
+        assertEquals(4, history.entries());
+        crdt.undo("u2");
+        assertEquals("ba", crdt.getDocument());
+
+        // Scattered single characters are one run each; past the document cap the oldest go
+        crdt.delete("u1:1");
+        crdt.delete("u1:11");
+        assertEquals(5, history.entries());
+        assertEquals(2, history.redoDepth("u1")); // the oldest group, u1's undone "c", is forgotten
+    }
+
+    @Test
+    void testSyncSendsOnlyMissedChanges() {
+        java.util.Random random = new java.util.Random(3);
+        java.util.List<String> ids = new java.util.ArrayList<>(java.util.List.of("root"));
+        java.util.Map<String, Long> clocks = new java.util.HashMap<>();
+        randomEdits(random, ids, clocks, 300);
+
+        CRDTService replica = new CRDTService();
+        replica.applySync(crdt.sync(java.util.Map.of(), 0, 100_000));
+        assertEquals(crdt.getDocument(), replica.getDocument());
+        java.util.Map<String, Long> stateVector = new java.util.HashMap<>(clocks);
+        long sequence = crdt.getSequence();
+
+        int before = ids.size();
+        randomEdits(random, ids, clocks, 40);
+        SyncResponse delta = crdt.sync(stateVector, sequence, 100_000);
+        assertFalse(delta.isSnapshot());
+        assertEquals(crdt.getSequence(), delta.getSequence());
+        int sent = 0;
+        for (SyncResponse.Span span : delta.getSpans()) {
+            sent += span.getText().length();
+        }
+        assertEquals(ids.size() - before, sent); // only the new characters travel
+        assertTrue(delta.getDeleted().size() + delta.getRestored().size() > 0);
+
+        replica.applySync(delta);
+        assertEquals(crdt.getDocument(), replica.getDocument());
+
+        // Nothing new since then: an empty delta
+        SyncResponse nothing = crdt.sync(clocks, crdt.getSequence(), 100_000);
+        assertTrue(nothing.getSpans().isEmpty() && nothing.getDeleted().isEmpty() && nothing.getRestored().isEmpty());
+    }
+
+    @Test
+    void testSyncFallsBackToSnapshotForLargeGaps() {
+        java.util.Random random = new java.util.Random(4);
+        java.util.List<String> ids = new java.util.ArrayList<>(java.util.List.of("root"));
+        randomEdits(random, ids, new java.util.HashMap<>(), 200);
+
+        SyncResponse tooBig = crdt.sync(java.util.Map.of(), 0, 10);
+        assertTrue(tooBig.isSnapshot());
+        assertTrue(crdt.sync(java.util.Map.of(), crdt.getSequence() + 1, 100_000).isSnapshot()); // unknown future
+
+        CRDTService replica = new CRDTService();
+        replica.applySync(tooBig);
+        assertEquals(crdt.getDocument(), replica.getDocument());
+        assertTrue(tooBig.getSpans().size() < ids.size()); // runs of characters, not one entry each
+    }
+
+    // Random inserts after random characters, deletes and undos by three users
+    private void randomEdits(java.util.Random random, java.util.List<String> ids, java.util.Map<String, Long> clocks, int steps) {
+        for (int step = 0; step < steps; step++) {
+            String user = "u" + random.nextInt(3);
+            int action = random.nextInt(10);
+            if (action < 7) {
+                long clock = clocks.merge(user, 1L, Long::sum);
+                String parent = random.nextInt(3) == 0 ? ids.get(random.nextInt(ids.size())) : ids.get(ids.size() - 1);
+                crdt.insert((char) ('a' + random.nextInt(26)), parent, user, clock);
+                ids.add(user + ":" + clock);
+            } else if (action < 9) {
+                crdt.delete(ids.get(1 + random.nextInt(ids.size() - 1)));
+            } else {
+                crdt.undo(user);
+            }
+        }
+    }
+
+    // Visible index of a character, read through a probe cursor
+    private int indexOf(String nodeId) {
+        crdt.updateCursor("probe", nodeId);
+        return crdt.getCursorIndex("probe");
+    }
 }
@@ -0,0 +1,202 @@
+package com.editor.backend.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.editor.backend.model.Comment;
+
+class DocumentActorTest {
+
+    @Test
+    void testConcurrentWritersAreAppliedOneAtATimeInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Object> broadcasts = Collections.synchronizedList(new ArrayList<>());
+        CRDTService crdt = new CRDTService();
+        DocumentActor actor = new DocumentActor("doc", crdt, pool, (destination, payload) -> broadcasts.add(payload));
+        AtomicBoolean inside = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+
+        // Each writer types its own letter 500 times at the end of its own text
+        List<CompletableFuture<?>> done = new ArrayList<>();
+        for (int w = 0; w < 8; w++) {
+            String user = "writer" + w;
+            char letter = (char) ('a' + w);
+            done.add(CompletableFuture.runAsync(() -> {
+                for (int clock = 1; clock <= 500; clock++) {
+                    long c = clock;
+                    actor.run(doc -> {
+                        if (!inside.compareAndSet(false, true)) overlapped.set(true);
+                        doc.insertAtCursor(letter, user, c);
+                        actor.publish("/topic/Document/doc", user + ":" + c);
+                        inside.set(false);
+                    });
+                }
+            }, writers));
+        }
+        for (CompletableFuture<?> f : done) {
+            f.join();
+        }
+        String document = actor.call(CRDTService::getDocument).get();
+        pool.shutdown();
+        writers.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS); // lets the last batch flush its broadcasts
+
+        assertFalse(overlapped.get());
+        assertEquals(8 * 500, document.length());
+        for (int w = 0; w < 8; w++) {
+            char letter = (char) ('a' + w);
+            assertEquals(500, document.chars().filter(c -> c == letter).count());
+        }
+
+        // Broadcasts go out in the order each writer's operations were applied
+        assertEquals(8 * 500, broadcasts.size());
+        long[] last = new long[8];
+        for (Object payload : broadcasts) {
+            String[] parts = payload.toString().split(":");
+            int w = parts[0].charAt(parts[0].length() - 1) - '0';
+            long clock = Long.parseLong(parts[1]);
+            assertEquals(last[w] + 1, clock);
+            last[w] = clock;
+        }
+    }
+
+    @Test
+    void testCompletedWorkIsVisibleInTheSnapshot() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        DocumentActor actor = new DocumentActor("doc", new CRDTService(), pool, (destination, payload) -> { });
+        assertEquals("", actor.snapshot().getDocument());
+
+        for (int clock = 1; clock <= 100; clock++) {
+            long c = clock;
+            actor.run(doc -> doc.insertAtCursor('x', "u1", c)).join();
+            assertEquals(clock, actor.snapshot().getLength());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    void testFailedWorkDoesNotStopTheMailbox() {
+        DocumentActor actor = new DocumentActor("doc", new CRDTService(), Runnable::run, (destination, payload) -> { });
+        CompletableFuture<Void> failed = actor.run(doc -> {
+            throw new IllegalStateException("boom");
+        });
+        assertEquals(true, failed.isCompletedExceptionally());
+
+        actor.run(doc -> doc.insert('x', "root", "u1", 1));
+        assertEquals("x", actor.call(CRDTService::getDocument).join());
+    }
+
+    @Test
+    void testClosedActorPassesWorkToItsSuccessor() {
+        List<Object> oldBroadcasts = new ArrayList<>();
+        List<Object> newBroadcasts = new ArrayList<>();
+        DocumentActor closed = new DocumentActor("doc", new CRDTService(), Runnable::run,
+                (destination, payload) -> oldBroadcasts.add(payload));
+        DocumentActor successor = new DocumentActor("doc", new CRDTService(), Runnable::run,
+                (destination, payload) -> newBroadcasts.add(payload));
+        closed.run(doc -> closed.close(() -> successor)).join();
+
+        // A caller still holding the old actor
+        closed.run(doc -> {
+            doc.insert('x', "root", "u1", 1);
+            closed.publish("/topic/Document/doc", "x");
+        }).join();
+
+        assertTrue(closed.isClosed());
+        assertEquals("x", successor.snapshot().getDocument());
+        assertEquals("", closed.snapshot().getDocument());
+        assertEquals(List.of("x"), newBroadcasts);
+        assertTrue(oldBroadcasts.isEmpty());
+    }
+
+    @Test
+    void testWorkOnAClosedActorWithoutSuccessorFails() {
+        DocumentActor closed = new DocumentActor("doc", new CRDTService(), Runnable::run, (destination, payload) -> { });
+        closed.run(doc -> closed.close(() -> null)).join();
+
+        assertTrue(closed.run(doc -> doc.insert('x', "root", "u1", 1)).isCompletedExceptionally());
+    }
+
+    @Test
+    void testBatchThatCannotBeCommittedIsNotBroadcast() {
+        CRDTService crdt = new CRDTService();
+        crdt.setJournal(new DocumentJournal() {
+            @Override public void inserted(String id, String parentId, CharSequence text) { }
+            @Override public void deletedChanged(String id, int count, boolean deleted) { }
+            @Override public void commentSaved(Comment comment) { }
+            @Override public void commentRemoved(String commentId) { }
+            @Override public void commit(long sequence) {
+                throw new IllegalStateException("disk gone");
+            }
+        });
+        List<Object> broadcasts = new ArrayList<>();
+        DocumentActor actor = new DocumentActor("doc", crdt, Runnable::run, (destination, payload) -> broadcasts.add(payload));
+        AtomicBoolean handled = new AtomicBoolean();
+        actor.onJournalFailure(() -> handled.set(true));
+
+        CompletableFuture<Void> edit = actor.run(doc -> {
+            doc.insert('x', "root", "u1", 1);
+            actor.publish("/topic/Document/doc", "x");
+        });
+
+        assertTrue(edit.isCompletedExceptionally());
+        assertTrue(handled.get());
+        assertTrue(broadcasts.isEmpty());
+    }
+
+    @Test
+    void testBatchesFinishInOrderOnceDurable() {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        CRDTService crdt = new CRDTService();
+        crdt.setJournal(new DocumentJournal() {
+            @Override public void inserted(String id, String parentId, CharSequence text) { }
+            @Override public void deletedChanged(String id, int count, boolean deleted) { }
+            @Override public void commentSaved(Comment comment) { }
+            @Override public void commentRemoved(String commentId) { }
+            @Override public void commit(long sequence) { }
+            @Override public CompletableFuture<Void> commitAsync(long sequence) {
+                CompletableFuture<Void> write = new CompletableFuture<>();
+                writes.add(write);
+                return write;
+            }
+        });
+        List<Object> broadcasts = new ArrayList<>();
+        DocumentActor actor = new DocumentActor("doc", crdt, Runnable::run, (destination, payload) -> broadcasts.add(payload));
+
+        CompletableFuture<Void> first = actor.run(doc -> {
+            doc.insert('a', "root", "u1", 1);
+            actor.publish("/topic/Document/doc", "a");
+        });
+        // The actor goes on to the next batch without waiting for the disk
+        CompletableFuture<Void> second = actor.run(doc -> {
+            doc.insert('b', "u1:1", "u1", 2);
+            actor.publish("/topic/Document/doc", "b");
+        });
+        assertEquals(2, writes.size());
+        assertFalse(first.isDone());
+        assertEquals("", actor.snapshot().getDocument());
+
+        // A later batch that is durable first still waits for the one before it
+        writes.get(1).complete(null);
+        assertFalse(second.isDone());
+        assertTrue(broadcasts.isEmpty());
+
+        writes.get(0).complete(null);
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertEquals(List.of("a", "b"), broadcasts);
+        assertEquals("ab", actor.snapshot().getDocument());
+    }
+}
@@ -0,0 +1,83 @@
+package com.editor.backend.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.mockito.Mockito;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.editor.backend.cluster.ClusterBroadcaster;
+import com.editor.backend.cluster.ClusterService;
+import com.editor.backend.cluster.LocalBroadcastRelay;
+import com.editor.backend.cluster.LocalDocumentRegistry;
+import com.editor.backend.model.DocumentSession;
+import com.editor.backend.storage.DocumentStore;
+
+/**
+ * Join-code lookups with 100k live documents: the code index against the scan over
+ * every session it replaced. Skipped in normal builds; run with
+ * {@code mvn test -Dtest=DocumentSessionServiceBenchmarkTest -Deditor.benchmarks=true}.
+ */
+@EnabledIfSystemProperty(named = "editor.benchmarks", matches = "true")
+class DocumentSessionServiceBenchmarkTest {
+
+    private static final int DOCUMENTS = 100_000;
+    private static final int LOOKUPS = 20_000;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void benchmarkJoinCodeLookup() throws InterruptedException {
+        LocalDocumentRegistry registry = new LocalDocumentRegistry();
+        ClusterService cluster = new ClusterService(registry, "bench", "http://localhost", 60_000);
+        cluster.join();
+        DocumentSessionService service = new DocumentSessionService(
+                new BroadcastBatcher(new ClusterBroadcaster(Mockito.mock(SimpMessageSendingOperations.class),
+                        new LocalBroadcastRelay(), cluster), 0, 1),
+                new DocumentStore(), cluster);
+        List<DocumentSession> sessions = new ArrayList<>(DOCUMENTS);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            sessions.add(service.createDocumentSession());
+        }
+
+        Random random = new Random(20);
+        String[] codes = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            DocumentSession session = sessions.get(random.nextInt(DOCUMENTS));
+            codes[i] = random.nextBoolean() ? session.getEditorCode() : session.getViewerCode();
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (String code : codes) {
+                if (!"none".equals(service.getSessionCode(code).get("role"))) found++;
+            }
+            long indexed = System.nanoTime() - start;
+            assertEquals(LOOKUPS, found);
+
+            // The previous lookup, over a tenth of the codes since each one walks every session
+            start = System.nanoTime();
+            found = 0;
+            for (int i = 0; i < LOOKUPS / 10; i++) {
+                if (scan(sessions, codes[i]) != null) found++;
+            }
+            long scanned = System.nanoTime() - start;
+            assertEquals(LOOKUPS / 10, found);
+
+            System.out.printf("[Benchmark] %d documents: index %d ns/lookup, scan %d ns/lookup%n",
+                    DOCUMENTS, indexed / LOOKUPS, scanned / (LOOKUPS / 10));
+        }
+        service.shutdown();
+    }
+
+    private static DocumentSession scan(List<DocumentSession> sessions, String code) {
+        for (DocumentSession session : sessions) {
+            if (session.getEditorCode().equals(code) || session.getViewerCode().equals(code)) return session;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,264 @@
+package com.editor.backend.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import com.editor.backend.cluster.ClusterBroadcaster;
+import com.editor.backend.cluster.ClusterService;
+import com.editor.backend.cluster.DocumentMovedException;
+import com.editor.backend.cluster.LocalBroadcastRelay;
+import com.editor.backend.cluster.LocalDocumentRegistry;
+import com.editor.backend.config.Threads;
+import com.editor.backend.model.Cursor;
+import com.editor.backend.model.DocumentSession;
+import com.editor.backend.model.SyncRequest;
+import com.editor.backend.storage.DocumentStore;
+
+class DocumentSessionServiceTest {
+
+    private static final long LEASE_MS = 1000;
+
+    private final AtomicLong now = new AtomicLong(1);
+    private final LocalDocumentRegistry registry = new LocalDocumentRegistry(now::get);
+    private final LocalBroadcastRelay relay = new LocalBroadcastRelay();
+    private final List<DocumentSessionService> nodes = new ArrayList<>();
+    private Path dir;
+    private DocumentSessionService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("sessions");
+        service = node("a");
+    }
+
+    // A backend node on the shared registry and storage directory
+    private DocumentSessionService node(String nodeId) {
+        return node(nodeId, Threads.PLATFORM);
+    }
+
+    private DocumentSessionService node(String nodeId, Threads threads) {
+        ClusterService cluster = new ClusterService(registry, nodeId, "http://" + nodeId, LEASE_MS);
+        cluster.join();
+        ClusterBroadcaster broadcaster = new ClusterBroadcaster(Mockito.mock(SimpMessageSendingOperations.class),
+                relay, cluster);
+        DocumentSessionService node = new DocumentSessionService(new BroadcastBatcher(broadcaster, 0, 1),
+                new DocumentStore(dir.toString(), Long.MAX_VALUE), cluster, threads);
+        node.registerStoredDocuments();
+        nodes.add(node);
+        return node;
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (DocumentSessionService node : nodes) {
+            node.shutdown();
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // Virtual threads before Java 21 fall back to the pool; either way edits apply in order
+    @Test
+    void testDocumentsRunOnVirtualThreadsWhereAvailable() {
+        DocumentSessionService virtual = node("v", Threads.VIRTUAL);
+        DocumentSession session = virtual.createDocumentSession();
+
+        AtomicReference<String> thread = new AtomicReference<>();
+        session.getActor().run(crdt -> {
+            crdt.paste("ab", "u1", 1);
+            thread.set(Thread.currentThread().getName());
+        }).join();
+        session.getActor().run(crdt -> crdt.paste("c", "u1", 3)).join();
+
+        assertEquals("abc", session.getActor().snapshot().getDocument());
+        assertEquals(Threads.virtualThreadsAvailable(), thread.get().startsWith("document-"));
+    }
+
+    @Test
+    void testIdleDocumentIsUnloadedAndComesBackOnUse() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "evictionIdleMs", 1L);
+        DocumentSession session = service.createDocumentSession();
+        session.getActor().run(crdt -> crdt.paste("kept on disk", "u1", 1)).join();
+        Thread.sleep(5);
+
+        service.evictColdDocuments().join();
+
+        assertTrue(service.documentSessionExists(session.getDocId()));
+        DocumentSession reloaded = service.getDocumentSession(session.getDocId());
+        assertNotSame(session, reloaded);
+        assertEquals("kept on disk", reloaded.getDocCRDT().getDocument());
+        assertEquals(session.getEditorCode(), reloaded.getEditorCode());
+        assertSame(reloaded, service.getDocumentSession(session.getDocId()));
+    }
+
+    @Test
+    void testWorkOnAnUnloadedSessionReachesTheCopyLoadedInItsPlace() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "evictionIdleMs", 1L);
+        DocumentSession session = service.createDocumentSession();
+        session.getActor().run(crdt -> crdt.paste("kept", "u1", 1)).join();
+        Thread.sleep(5);
+        service.evictColdDocuments().join();
+        assertTrue(session.getActor().isClosed());
+
+        // A caller that looked the document up just before it was unloaded
+        session.getActor().run(crdt -> crdt.paste(" and late", "u1", 5)).join();
+
+        DocumentSession reloaded = service.getDocumentSession(session.getDocId());
+        assertNotSame(session, reloaded);
+        assertEquals("kept and late", reloaded.getActor().snapshot().getDocument());
+
+        // and it was written to the log like any other edit
+        Thread.sleep(5);
+        service.evictColdDocuments().join();
+        assertEquals("kept and late", service.getDocumentSession(session.getDocId()).getDocCRDT().getDocument());
+    }
+
+    @Test
+    void testJoinCodeFindsAnUnloadedDocument() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "evictionIdleMs", 1L);
+        DocumentSession session = service.createDocumentSession();
+        Thread.sleep(5);
+        service.evictColdDocuments().join();
+
+        Map<String, String> joined = service.getSessionCode(session.getViewerCode());
+        assertEquals(session.getDocId(), joined.get("documentId"));
+        assertEquals("viewer", joined.get("role"));
+        assertEquals("none", service.getSessionCode("no-such-code").get("role"));
+    }
+
+    @Test
+    void testCursorMovesWithinATickGoAsOneFrame() {
+        List<Object> frames = new ArrayList<>();
+        ClusterService cluster = new ClusterService(registry, "c", "http://c", LEASE_MS);
+        cluster.join();
+        DocumentSessionService node = new DocumentSessionService(
+                new BroadcastBatcher((destination, payload) -> frames.add(destination + " " + describe(payload)), 0, 1),
+                new DocumentStore(), cluster);
+        nodes.add(node);
+        DocumentSession session = node.createDocumentSession();
+        session.getActor().run(crdt -> crdt.paste("hello", "u1", 1)).join();
+
+        session.moveCursor("alice", "u1:1");
+        session.moveCursor("alice", "u1:3");   // overtakes the move before it
+        session.moveCursor("bob", "u1:5");
+        session.moveCursor("carol", "u9:99");  // no such character
+        node.flushCursors();
+        node.flushCursors();                   // nothing moved since
+        session.getActor().run(crdt -> { }).join();
+
+        assertEquals(List.of("/topic/Document/" + session.getDocId() + "/cursors [alice@2, bob@4]"), frames);
+        assertEquals(2, session.getActor().snapshot().getAllCursors().stream()
+                .filter(c -> c.getUserId().equals("alice")).findFirst().get().getVisualIndex());
+    }
+
+    // Cursors as user@index, sorted by user
+    private static String describe(Object payload) {
+        List<String> cursors = new ArrayList<>();
+        for (Object cursor : (List<?>) payload) {
+            cursors.add(((Cursor) cursor).getUserId() + "@" + ((Cursor) cursor).getVisualIndex());
+        }
+        cursors.sort(null);
+        return cursors.toString();
+    }
+
+    @Test
+    void testRemovedDocumentNoLongerJoins() {
+        DocumentSession session = service.createDocumentSession();
+        assertEquals("editor", service.getSessionCode(session.getEditorCode()).get("role"));
+
+        service.removeDocumentSession(session.getDocId());
+        assertEquals("none", service.getSessionCode(session.getEditorCode()).get("role"));
+        assertEquals("none", service.getSessionCode(session.getViewerCode()).get("role"));
+    }
+
+    @Test
+    void testDisconnectOnlyLeavesTheDocumentsTheClientFollowed() {
+        DocumentSession followed = service.createDocumentSession();
+        DocumentSession synced = service.createDocumentSession();
+        DocumentSession other = service.createDocumentSession();
+        service.acknowledge(followed.getDocId(), "s1", 0);
+        service.sync(synced.getDocId(), "s1", new SyncRequest()).join();
+        service.acknowledge(other.getDocId(), "s2", 0);
+
+        service.removeReplica("s1");
+        service.removeReplica("s1"); // a repeated disconnect finds nothing to do
+        assertEquals(0, (int) followed.getActor().call(CRDTService::getReplicaCount).join());
+        assertEquals(0, (int) synced.getActor().call(CRDTService::getReplicaCount).join());
+        assertEquals(1, (int) other.getActor().call(CRDTService::getReplicaCount).join());
+    }
+
+    @Test
+    void testSyncOfUnknownOrMovedDocumentFailsTheFuture() {
+        CompletionException unknown = assertThrows(CompletionException.class,
+                () -> service.sync("no-such-document", "replica-1", new SyncRequest()).join());
+        assertTrue(unknown.getCause() instanceof IllegalArgumentException);
+
+        DocumentSession session = service.createDocumentSession();
+        CompletionException moved = assertThrows(CompletionException.class,
+                () -> node("b").sync(session.getDocId(), "replica-1", new SyncRequest()).join());
+        assertTrue(moved.getCause() instanceof DocumentMovedException);
+        assertEquals(0, service.sync(session.getDocId(), "replica-1", new SyncRequest()).join().getSequence());
+    }
+
+    @Test
+    void testOtherNodesSendJoinsToTheOwner() {
+        DocumentSessionService other = node("b");
+        DocumentSession session = service.createDocumentSession();
+
+        Map<String, String> joined = other.getSessionCode(session.getEditorCode());
+        assertEquals(session.getDocId(), joined.get("documentId"));
+        assertEquals("editor", joined.get("role"));
+        assertEquals("http://a", joined.get("server"));
+        DocumentMovedException moved = assertThrows(DocumentMovedException.class,
+                () -> other.getDocumentSession(session.getDocId()));
+        assertEquals("http://a", moved.getOwnerAddress());
+    }
+
+    @Test
+    void testDocumentMovesWhenItsOwnerStopsRenewing() {
+        DocumentSessionService other = node("b");
+        DocumentSession session = service.createDocumentSession();
+        session.getActor().run(crdt -> crdt.paste("survives failover", "u1", 1)).join();
+
+        // Node a goes silent; once its lease runs out b takes the document from shared storage
+        now.addAndGet(LEASE_MS + 1);
+        other.renewLeases().join();
+        DocumentSession takenOver = other.getDocumentSession(session.getDocId());
+        assertEquals("survives failover", takenOver.getDocCRDT().getDocument());
+
+        // When a comes back it finds its lease gone and drops its copy
+        service.renewLeases().join();
+        assertThrows(DocumentMovedException.class, () -> service.getDocumentSession(session.getDocId()));
+    }
+
+    @Test
+    void testRecentlyUsedDocumentStaysResident() {
+        DocumentSession session = service.createDocumentSession();
+        service.evictColdDocuments().join();
+        assertSame(session, service.getDocumentSession(session.getDocId()));
+    }
+}
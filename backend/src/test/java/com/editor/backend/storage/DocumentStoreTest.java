@@ -0,0 +1,276 @@
+package com.editor.backend.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import com.editor.backend.model.DocumentSession;
+import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentImage;
+
+class DocumentStoreTest {
+
+    @Test
+    void testRecoverReplaysCommittedBatches() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        try {
+            DocumentStore store = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+            DocumentSession session = new DocumentSession(new CRDTService());
+            store.create(session);
+
+            type(session, "u1", "hello world", 1);
+            session.getActor().run(crdt -> crdt.deleteBetweenIndices(5, 10)).join();
+            session.getActor().run(crdt -> crdt.addCommentFromIndexRange("u1", "greeting", 0, 4)).join();
+            store.close();
+
+            DocumentStore reopened = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+            DocumentStore.StoredDocument stored = reopened.find(session.getDocId());
+            assertEquals(session.getEditorCode(), stored.editorCode);
+            assertEquals(session.getViewerCode(), stored.viewerCode);
+            reopened.close();
+
+            CRDTService recovered = recoverOnly(dir, session.getDocId());
+            assertEquals(session.getDocCRDT().getDocument(), recovered.getDocument());
+            assertEquals("hello", recovered.getDocument());
+            assertEquals(session.getDocCRDT().getSequence(), recovered.getSequence());
+            assertEquals(1, recovered.getAllComments().size());
+            assertEquals("greeting", recovered.getAllComments().get(0).getContent());
+
+            // Deleted text is kept as tombstones, so remote edits anchored in it still apply
+            recovered.insert('!', "u1:11", "u2", 1);
+            assertEquals("hello!", recovered.getDocument());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void testRecoverContinuesWritingAfterARestart() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        try {
+            DocumentStore first = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+            DocumentSession session = new DocumentSession(new CRDTService());
+            first.create(session);
+            type(session, "u1", "abc", 1);
+            first.close();
+
+            DocumentStore second = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+            DocumentSession restored = new DocumentSession(session.getDocId(), session.getEditorCode(),
+                    session.getViewerCode(), second.load(session.getDocId(), DocumentStoreTest::load),
+                    Runnable::run, (destination, payload) -> { });
+            // Cursors are not kept across restarts; the client places its own again
+            restored.getActor().run(crdt -> crdt.updateCursor("u1", "u1:3")).join();
+            type(restored, "u1", "def", 4);
+            second.close();
+
+            assertEquals("abcdef", recoverOnly(dir, session.getDocId()).getDocument());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void testCheckpointReplacesOlderSegmentsWithASnapshot() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        try {
+            DocumentStore store = new DocumentStore(dir.toString(), 1);
+            DocumentSession session = new DocumentSession(new CRDTService());
+            store.create(session);
+            type(session, "u1", "before", 1);
+            assertTrue(store.needsCheckpoint(session.getDocId()));
+
+            DocumentStore.Checkpoint checkpoint = session.getActor()
+                    .call(crdt -> store.beginCheckpoint(session.getDocId(), crdt)).join();
+            assertFalse(store.needsCheckpoint(session.getDocId()));
+            type(session, "u1", " after", 7); // lands in the new segment while the snapshot is written
+            store.finishCheckpoint(checkpoint);
+            store.close();
+
+            Path documentDir = dir.resolve(session.getDocId());
+            assertFalse(Files.exists(documentDir.resolve(WriteAheadLog.segmentName(1))));
+            assertTrue(Files.exists(documentDir.resolve(WriteAheadLog.segmentName(2))));
+            assertEquals("before after", recoverOnly(dir, session.getDocId()).getDocument());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void testRecoverDropsATornLastBatch() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        try {
+            DocumentStore store = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+            DocumentSession session = new DocumentSession(new CRDTService());
+            store.create(session);
+            type(session, "u1", "kept", 1);
+            long sequence = session.getDocCRDT().getSequence();
+            type(session, "u1", "lost", 5);
+            store.close();
+
+            // A crash part way through the last write leaves only the start of its batch
+            Path segment = dir.resolve(session.getDocId()).resolve(WriteAheadLog.segmentName(1));
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+
+            CRDTService recovered = recoverOnly(dir, session.getDocId());
+            assertEquals("kept", recovered.getDocument());
+            assertEquals(sequence, recovered.getSequence());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void testUnloadedDocumentLoadsBackAndRefusesLateChanges() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        try {
+            DocumentStore store = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+            DocumentSession session = new DocumentSession(new CRDTService());
+            store.create(session);
+            type(session, "u1", "warm", 1);
+            session.getActor().run(crdt -> store.unload(session.getDocId(), crdt)).join();
+
+            // The whole document went into one snapshot; the older log is gone
+            Path documentDir = dir.resolve(session.getDocId());
+            assertFalse(Files.exists(documentDir.resolve(WriteAheadLog.segmentName(1))));
+
+            // An edit that reaches the dropped copy fails instead of being lost quietly
+            assertThrows(CompletionException.class, () -> type(session, "u1", "x", 5));
+
+            CRDTService loaded = store.load(session.getDocId(), DocumentStoreTest::load);
+            assertEquals("warm", loaded.getDocument());
+            loaded.insert('!', "u1:4", "u1", 5);
+            loaded.commitJournal();
+            store.close();
+            assertEquals("warm!", recoverOnly(dir, session.getDocId()).getDocument());
+            assertNull(store.load("missing", DocumentStoreTest::load));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    void testFailedWriteIsCutOffAndNothingIsAppendedAfterIt() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        try {
+            AtomicBoolean failNextWrite = new AtomicBoolean();
+            WriteAheadLog log = new WriteAheadLog(dir, 1, Runnable::run, file -> new FailingChannel(file, failNextWrite));
+            Path segment = dir.resolve(WriteAheadLog.segmentName(1));
+            CRDTService crdt = new CRDTService();
+            crdt.setJournal(log);
+            crdt.paste("kept", "u1", 1);
+            crdt.commitJournal().join();
+            long kept = Files.size(segment);
+
+            // Half the batch reaches the disk before the write fails
+            failNextWrite.set(true);
+            crdt.paste(" lost", "u1", 5);
+            assertThrows(CompletionException.class, () -> crdt.commitJournal().join());
+            assertEquals(kept, Files.size(segment));
+
+            // A later batch builds on the lost one, so it is refused rather than appended
+            crdt.paste("!", "u1", 10);
+            assertThrows(CompletionException.class, () -> crdt.commitJournal().join());
+            log.close();
+            assertEquals(kept, Files.size(segment));
+
+            CRDTService replayed = new CRDTService();
+            JournalReader.Result result = JournalReader.replay(segment, replayed);
+            assertTrue(result.complete);
+            assertEquals("kept", replayed.getDocument());
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    // Types text at the end of the document as one batch, one clock per character
+    private static void type(DocumentSession session, String user, String text, long firstClock) {
+        session.getActor().run(crdt -> {
+            for (int i = 0; i < text.length(); i++) {
+                crdt.insertAtCursor(text.charAt(i), user, firstClock + i);
+            }
+        }).join();
+    }
+
+    private static CRDTService load(DocumentImage image) {
+        return image == null ? new CRDTService() : new CRDTService(image);
+    }
+
+    private static CRDTService recoverOnly(Path dir, String documentId) {
+        DocumentStore store = new DocumentStore(dir.toString(), Long.MAX_VALUE);
+        assertEquals(1, store.size());
+        CRDTService crdt = store.load(documentId, DocumentStoreTest::load);
+        store.close();
+        return crdt;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    // A segment file whose next write, once armed, stops halfway and fails
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        private final AtomicBoolean failNextWrite;
+
+        FailingChannel(Path path, AtomicBoolean failNextWrite) {
+            try {
+                this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.failNextWrite = failNextWrite;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!failNextWrite.getAndSet(false)) return file.write(src);
+            ByteBuffer half = src.duplicate();
+            half.limit(src.position() + src.remaining() / 2);
+            src.position(src.position() + file.write(half));
+            throw new IOException("No space left on device");
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException { return file.read(dst); }
+        @Override public long read(ByteBuffer[] dsts, int offset, int length) throws IOException { return file.read(dsts, offset, length); }
+        @Override public long write(ByteBuffer[] srcs, int offset, int length) throws IOException { return file.write(srcs, offset, length); }
+        @Override public long position() throws IOException { return file.position(); }
+        @Override public FileChannel position(long newPosition) throws IOException { file.position(newPosition); return this; }
+        @Override public long size() throws IOException { return file.size(); }
+        @Override public FileChannel truncate(long size) throws IOException { file.truncate(size); return this; }
+        @Override public void force(boolean metaData) throws IOException { file.force(metaData); }
+        @Override public long transferTo(long position, long count, WritableByteChannel target) throws IOException { return file.transferTo(position, count, target); }
+        @Override public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException { return file.transferFrom(src, position, count); }
+        @Override public int read(ByteBuffer dst, long position) throws IOException { return file.read(dst, position); }
+        @Override public int write(ByteBuffer src, long position) throws IOException { return file.write(src, position); }
+        @Override public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException { return file.map(mode, position, size); }
+        @Override public FileLock lock(long position, long size, boolean shared) throws IOException { return file.lock(position, size, shared); }
+        @Override public FileLock tryLock(long position, long size, boolean shared) throws IOException { return file.tryLock(position, size, shared); }
+        @Override protected void implCloseChannel() throws IOException { file.close(); }
+    }
+}
@@ -0,0 +1,122 @@
+package com.editor.backend.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.editor.backend.model.Comment;
+import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentJournal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Save and load timings of the binary snapshot against a naive JSON dump of the
+ * same document: one object per character, loaded back through insert() and
+ * delete() one character at a time. Skipped in normal builds; run with
+ * {@code mvn test -Dtest=SnapshotCodecBenchmarkTest -Deditor.benchmarks=true}.
+ */
+@EnabledIfSystemProperty(named = "editor.benchmarks", matches = "true")
+class SnapshotCodecBenchmarkTest {
+
+    private static final int ROUNDS = 5;
+
+    /** One character as a naive dump would store it. */
+    public static class JsonNode {
+        public String userId;
+        public long clock;
+        public String parentId;
+        public char value;
+        public boolean deleted;
+    }
+
+    @Test
+    void benchmarkSaveAndLoad() throws IOException {
+        // A long typed document with scattered concurrent edits and deletions on top
+        CRDTService crdt = new CRDTService();
+        crdt.paste(text(200_000), "host", 1);
+        List<String> ids = new ArrayList<>(List.of("root", "host:200000"));
+        Map<String, Long> clocks = new HashMap<>();
+        SnapshotCodecTest.randomEdits(crdt, new Random(7), ids, clocks, 50_000);
+        ObjectMapper json = new ObjectMapper();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            byte[] binary = SnapshotCodec.encode(crdt.toImage());
+            long binarySave = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CRDTService fromBinary = new CRDTService(SnapshotCodec.decode(binary));
+            long binaryLoad = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            byte[] dump = json.writeValueAsBytes(characters(crdt));
+            long jsonSave = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CRDTService fromJson = new CRDTService();
+            JsonNode[] nodes = json.readValue(dump, JsonNode[].class);
+            for (JsonNode node : nodes) {
+                fromJson.insert(node.value, node.parentId, node.userId, node.clock);
+            }
+            for (JsonNode node : nodes) {
+                if (node.deleted) fromJson.delete(node.userId + ":" + node.clock);
+            }
+            long jsonLoad = System.nanoTime() - start;
+
+            System.out.printf("[Benchmark] %d chars: binary %d KB save %d ms load %d ms, JSON %d KB save %d ms load %d ms%n",
+                    nodes.length, binary.length / 1024, binarySave / 1_000_000, binaryLoad / 1_000_000,
+                    dump.length / 1024, jsonSave / 1_000_000, jsonLoad / 1_000_000);
+            assertEquals(crdt.getDocument(), fromBinary.getDocument());
+            assertEquals(crdt.getDocument(), fromJson.getDocument());
+        }
+    }
+
+    // Every character of the document, parents before children
+    private static List<JsonNode> characters(CRDTService crdt) {
+        List<JsonNode> nodes = new ArrayList<>();
+        crdt.exportTo(new DocumentJournal() {
+            @Override
+            public void inserted(String id, String parentId, CharSequence text) {
+                int sep = id.lastIndexOf(':');
+                String userId = id.substring(0, sep);
+                long clock = Long.parseLong(id.substring(sep + 1));
+                for (int i = 0; i < text.length(); i++) {
+                    JsonNode node = new JsonNode();
+                    node.userId = userId;
+                    node.clock = clock + i;
+                    node.parentId = i == 0 ? parentId : userId + ":" + (clock + i - 1);
+                    node.value = text.charAt(i);
+                    nodes.add(node);
+                }
+            }
+
+            @Override
+            public void deletedChanged(String id, int count, boolean deleted) {
+                for (int i = nodes.size() - count; i < nodes.size(); i++) { // the span just exported
+                    nodes.get(i).deleted = deleted;
+                }
+            }
+
+            @Override public void commentSaved(Comment comment) { }
+            @Override public void commentRemoved(String commentId) { }
+            @Override public void commit(long sequence) { }
+        });
+        return nodes;
+    }
+
+    private static String text(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        Random random = new Random(3);
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextInt(8) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,145 @@
+package com.editor.backend.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.editor.backend.crdt.ColumnarNodeStore;
+import com.editor.backend.model.Comment;
+import com.editor.backend.model.Cursor;
+import com.editor.backend.service.CRDTService;
+import com.editor.backend.service.DocumentImage;
+import com.editor.backend.service.EditHistory;
+
+class SnapshotCodecTest {
+
+    @Test
+    void testRoundTripKeepsTextTombstonesCommentsAndCursors() {
+        CRDTService crdt = new CRDTService();
+        crdt.paste("hello brave new world", "alice", 1);
+        crdt.deleteBetweenIndices(5, 10); // " brave"
+        crdt.insert('!', "alice:21", "bob", 1);
+        crdt.addCommentFromIndexRange("bob", "greeting", 0, 4);
+        crdt.resolveComment(crdt.getAllComments().get(0).getId());
+        crdt.updateCursor("alice", "alice:8"); // inside the deleted word
+        crdt.updateCursorByIndex("carol", 3);
+
+        CRDTService copy = roundTrip(crdt);
+
+        assertEquals("hello new world!", copy.getDocument());
+        assertEquals(crdt.getSequence(), copy.getSequence());
+        assertEquals(crdt.getNodeCount(), copy.getNodeCount());
+        Comment comment = copy.getAllComments().get(0);
+        assertEquals("greeting", comment.getContent());
+        assertEquals("hello", comment.getSelectedText());
+        assertTrue(comment.isResolved());
+        assertEquals(cursorIndices(crdt), cursorIndices(copy));
+
+        // Encoding the copy again gives the same bytes
+        assertArrayEquals(SnapshotCodec.encode(crdt.toImage()), SnapshotCodec.encode(copy.toImage()));
+    }
+
+    @Test
+    void testEmptyDocumentRoundTrips() {
+        CRDTService copy = roundTrip(new CRDTService());
+        assertEquals("", copy.getDocument());
+
+        copy.insert('a', "root", "alice", 1);
+        assertEquals("a", copy.getDocument());
+    }
+
+    @Test
+    void testLoadedCopyConvergesWithTheOriginal() {
+        // Concurrent edits leave siblings, tombstones and split spans behind; the copy must
+        // place later edits exactly where the original does
+        Random random = new Random(16);
+        CRDTService original = new CRDTService();
+        List<String> ids = new ArrayList<>(List.of("root"));
+        Map<String, Long> clocks = new HashMap<>();
+        randomEdits(original, random, ids, clocks, 3000);
+
+        CRDTService copy = new CRDTService(new ColumnarNodeStore(false), 2, new EditHistory(),
+                SnapshotCodec.decode(SnapshotCodec.encode(original.toImage())));
+        assertEquals(original.getDocument(), copy.getDocument());
+
+        Random again = new Random(61);
+        randomEdits(original, again, new ArrayList<>(ids), new HashMap<>(clocks), 2000);
+        again = new Random(61);
+        randomEdits(copy, again, new ArrayList<>(ids), new HashMap<>(clocks), 2000);
+        assertEquals(original.getDocument(), copy.getDocument());
+    }
+
+    @Test
+    void testTypingCollapsesIntoRuns() {
+        CRDTService crdt = new CRDTService();
+        for (int i = 0; i < 10_000; i++) {
+            crdt.insertAtCursor((char) ('a' + i % 26), "alice", i + 1);
+        }
+        // One byte per character and a few bytes for everything else
+        byte[] typed = SnapshotCodec.encode(crdt.toImage());
+        assertTrue(typed.length < 10_000 + 100, "snapshot is " + typed.length + " bytes");
+
+        // Every tenth character deleted again: 2000 spans alternating in length and state.
+        // Those columns no longer repeat, and cost a byte per span each
+        for (int i = 10_000; i > 0; i -= 10) {
+            crdt.delete("alice:" + i);
+        }
+        byte[] holed = SnapshotCodec.encode(crdt.toImage());
+        assertTrue(holed.length < 10_000 + 2 * 2000 + 100, "snapshot is " + holed.length + " bytes");
+        assertEquals(crdt.getDocument(), new CRDTService(SnapshotCodec.decode(holed)).getDocument());
+    }
+
+    @Test
+    void testDamagedOrForeignBytesAreRejected() {
+        CRDTService crdt = new CRDTService();
+        crdt.paste("some text", "alice", 1);
+        byte[] bytes = SnapshotCodec.encode(crdt.toImage());
+
+        byte[] flipped = bytes.clone();
+        flipped[flipped.length / 2] ^= 0x40;
+        assertThrows(IllegalArgumentException.class, () -> SnapshotCodec.decode(flipped));
+        assertThrows(IllegalArgumentException.class,
+                () -> SnapshotCodec.decode(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertThrows(IllegalArgumentException.class, () -> SnapshotCodec.decode(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+    }
+
+    private static CRDTService roundTrip(CRDTService crdt) {
+        DocumentImage image = SnapshotCodec.decode(SnapshotCodec.encode(crdt.toImage()));
+        return new CRDTService(image);
+    }
+
+    private static Map<String, Integer> cursorIndices(CRDTService crdt) {
+        Map<String, Integer> indices = new HashMap<>();
+        for (Cursor cursor : crdt.getAllCursors()) {
+            indices.put(cursor.getUserId(), cursor.getVisualIndex());
+        }
+        return indices;
+    }
+
+    // Inserts after random characters, deletes and undoes, from three users
+    static void randomEdits(CRDTService crdt, Random random, List<String> ids, Map<String, Long> clocks, int steps) {
+        for (int step = 0; step < steps; step++) {
+            String user = "u" + random.nextInt(3);
+            int action = random.nextInt(10);
+            if (action < 7) {
+                long clock = clocks.merge(user, 1L, Long::sum);
+                String parent = random.nextInt(3) == 0 ? ids.get(random.nextInt(ids.size())) : ids.get(ids.size() - 1);
+                crdt.insert((char) ('a' + random.nextInt(26)), parent, user, clock);
+                ids.add(user + ":" + clock);
+            } else if (action < 9) {
+                crdt.delete(ids.get(1 + random.nextInt(ids.size() - 1)));
+            } else {
+                crdt.undo(user);
+            }
+        }
+    }
+}
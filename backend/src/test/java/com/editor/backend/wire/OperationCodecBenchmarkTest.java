@@ -0,0 +1,110 @@
+package com.editor.backend.wire;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.editor.backend.model.Operation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Encode and decode timings and bytes per operation of the binary wire format
+ * against the JSON the broker sends today, for a stream of keystrokes from a few
+ * users. Binary is measured both as separate frames sharing a connection's site
+ * table and as the one-frame-per-broadcast form. Skipped in normal builds; run with
+ * {@code mvn test -Dtest=OperationCodecBenchmarkTest -Deditor.benchmarks=true}.
+ */
+@EnabledIfSystemProperty(named = "editor.benchmarks", matches = "true")
+class OperationCodecBenchmarkTest {
+
+    private static final int OPS = 200_000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    void benchmarkEncodeAndDecode() throws IOException {
+        List<Operation> ops = keystrokes(new Random(11));
+        ObjectMapper json = new ObjectMapper();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            List<byte[]> jsonFrames = new ArrayList<>(OPS);
+            for (Operation op : ops) jsonFrames.add(json.writeValueAsBytes(op));
+            long jsonEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Operation> fromJson = new ArrayList<>(OPS);
+            for (byte[] frame : jsonFrames) fromJson.add(fromJson(json.readTree(frame)));
+            long jsonDecode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            OperationCodec.SiteTable sent = new OperationCodec.SiteTable();
+            List<byte[]> binaryFrames = new ArrayList<>(OPS);
+            for (Operation op : ops) binaryFrames.add(OperationCodec.encode(List.of(op), sent));
+            long binaryEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            OperationCodec.SiteTable received = new OperationCodec.SiteTable();
+            List<Operation> fromBinary = new ArrayList<>(OPS);
+            for (byte[] frame : binaryFrames) fromBinary.add(OperationCodec.decode(frame, received).get(0));
+            long binaryDecode = System.nanoTime() - start;
+
+            long broadcastBytes = 0;
+            for (Operation op : ops) broadcastBytes += OperationCodec.encode(List.of(op)).length;
+
+            System.out.printf("[Benchmark] %d ops: JSON %.1f B/op encode %d ns/op decode %d ns/op, "
+                    + "binary %.1f B/op encode %d ns/op decode %d ns/op, binary broadcast %.1f B/op%n",
+                    OPS, bytes(jsonFrames) / (double) OPS, jsonEncode / OPS, jsonDecode / OPS,
+                    bytes(binaryFrames) / (double) OPS, binaryEncode / OPS, binaryDecode / OPS,
+                    broadcastBytes / (double) OPS);
+            assertEquals(describe(ops), describe(fromBinary));
+            assertEquals(describe(ops), describe(fromJson));
+        }
+    }
+
+    // Four users typing in turns, each continuing from their own previous character
+    private static List<Operation> keystrokes(Random random) {
+        String[] users = { "3f2a9c1e-alice", "8b7d04f6-bob", "c1e5a2d9-carol", "0d9e6b3a-dave" };
+        long[] clocks = new long[users.length];
+        List<Operation> ops = new ArrayList<>(OPS);
+        for (int i = 0; i < OPS; i++) {
+            int user = (i / 20) % users.length;
+            long clock = ++clocks[user];
+            String parent = clock == 1 ? "root" : users[user] + ":" + (clock - 1);
+            Operation op = new Operation(Operation.Type.INSERT, users[user] + ":" + clock, parent,
+                    (char) ('a' + random.nextInt(26)), clock, users[user]);
+            op.setSequence(i + 1);
+            ops.add(op);
+        }
+        return ops;
+    }
+
+    // Operation has no default constructor, so Jackson is given the tree
+    private static Operation fromJson(JsonNode node) {
+        Operation op = new Operation(Operation.Type.valueOf(node.get("type").asText()), node.get("nodeId").asText(),
+                node.get("parentId").asText(), node.get("value").asText().charAt(0), node.get("clock").asLong(),
+                node.get("userId").asText());
+        op.setSequence(node.get("sequence").asLong());
+        return op;
+    }
+
+    private static long bytes(List<byte[]> frames) {
+        long total = 0;
+        for (byte[] frame : frames) total += frame.length;
+        return total;
+    }
+
+    private static List<String> describe(List<Operation> ops) {
+        List<String> out = new ArrayList<>(ops.size());
+        for (Operation op : ops) {
+            out.add(op.getType() + " " + op.getNodeId() + " " + op.getParentId() + " " + op.getValue() + " "
+                    + op.getClock() + " " + op.getUserId() + " " + op.getSequence());
+        }
+        return out;
+    }
+}
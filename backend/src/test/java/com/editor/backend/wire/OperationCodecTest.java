@@ -0,0 +1,103 @@
+package com.editor.backend.wire;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.editor.backend.model.Operation;
+
+class OperationCodecTest {
+
+    @Test
+    void testRoundTripKeepsEveryField() {
+        List<Operation> ops = List.of(
+                op(Operation.Type.INSERT, "alice:1", "root", 'h', 1, "alice", 7),
+                op(Operation.Type.INSERT, "alice:2", "alice:1", 'é', 2, "alice", 8),
+                op(Operation.Type.DELETE, "bob:40", null, '\0', 3, "bob", 9),
+                op(Operation.Type.UNDO, null, null, '\0', 0, "carol", 0),
+                op(null, "weird:id:x", "no-clock", '字', 5, null, 10));
+
+        List<Operation> copy = OperationCodec.decode(OperationCodec.encode(ops));
+
+        assertEquals(describe(ops), describe(copy));
+    }
+
+    @Test
+    void testUserIdsAreSentOncePerTable() {
+        OperationCodec.SiteTable sent = new OperationCodec.SiteTable();
+        OperationCodec.SiteTable received = new OperationCodec.SiteTable();
+        byte[] first = OperationCodec.encode(List.of(keystroke("a-rather-long-user-id", 1)), sent);
+        byte[] second = OperationCodec.encode(List.of(keystroke("a-rather-long-user-id", 2)), sent);
+
+        assertEquals("a-rather-long-user-id:1", OperationCodec.decode(first, received).get(0).getNodeId());
+        assertEquals("a-rather-long-user-id:2", OperationCodec.decode(second, received).get(0).getNodeId());
+        assertTrue(second.length < 12, "second frame was " + second.length + " bytes");
+
+        // Without the first frame the receiver cannot resolve the user
+        assertThrows(IllegalArgumentException.class, () -> OperationCodec.decode(second));
+    }
+
+    @Test
+    void testIdsThatDoNotPrintBackAreSpelledOut() {
+        // "u:007" parses as clock 7 but must not come back as "u:7"
+        Operation op = op(Operation.Type.INSERT, "u:007", "u:-3", 'x', 1, "u", 1);
+
+        Operation copy = OperationCodec.decode(OperationCodec.encode(List.of(op))).get(0);
+
+        assertEquals("u:007", copy.getNodeId());
+        assertEquals("u:-3", copy.getParentId());
+    }
+
+    @Test
+    void testDamagedFramesAreRejected() {
+        byte[] frame = OperationCodec.encode(List.of(keystroke("alice", 5), keystroke("bob", 9)));
+
+        for (int length = 0; length < frame.length; length++) {
+            byte[] truncated = Arrays.copyOf(frame, length);
+            assertThrows(IllegalArgumentException.class, () -> OperationCodec.decode(truncated));
+        }
+        assertThrows(IllegalArgumentException.class, () -> OperationCodec.decode(Arrays.copyOf(frame, frame.length + 1)));
+        byte[] future = frame.clone();
+        future[0] = 2;
+        assertThrows(IllegalArgumentException.class, () -> OperationCodec.decode(future));
+    }
+
+    @Test
+    void testOnlyOperationPayloadsAreEncoded() {
+        Operation op = keystroke("alice", 1);
+
+        assertEquals(1, OperationCodec.decode(OperationCodec.encodePayload(op)).size());
+        assertEquals(2, OperationCodec.decode(OperationCodec.encodePayload(List.of(op, op))).size());
+        assertNull(OperationCodec.encodePayload("text"));
+        assertNull(OperationCodec.encodePayload(List.of()));
+        assertNull(OperationCodec.encodePayload(List.of(op, "text")));
+    }
+
+    // A typed character, as the editor sends it
+    static Operation keystroke(String userId, long clock) {
+        String parent = clock == 1 ? "root" : userId + ":" + (clock - 1);
+        return op(Operation.Type.INSERT, userId + ":" + clock, parent, (char) ('a' + clock % 26), clock, userId, clock);
+    }
+
+    private static Operation op(Operation.Type type, String nodeId, String parentId, char value, long clock,
+            String userId, long sequence) {
+        Operation op = new Operation(type, nodeId, parentId, value, clock, userId);
+        op.setSequence(sequence);
+        return op;
+    }
+
+    private static List<String> describe(List<Operation> ops) {
+        List<String> out = new ArrayList<>();
+        for (Operation op : ops) {
+            out.add(op.getType() + " " + op.getNodeId() + " " + op.getParentId() + " " + (int) op.getValue() + " "
+                    + op.getClock() + " " + op.getUserId() + " " + op.getSequence());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,222 @@
+package com.editor.backend.wire;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+class OutboundQueuesTest {
+
+    private final List<Object[]> notices = new CopyOnWriteArrayList<>();
+    private final OutboundQueues queues = new OutboundQueues(() -> recorder(notices), 3, 1 << 20, 60_000);
+
+    @AfterEach
+    void tearDown() {
+        queues.close();
+    }
+
+    @Test
+    void testSlowSessionDropsBroadcastsThenIsToldToResync() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Connection slow = new Connection("s1", release);
+        WebSocketSession session = connect(slow);
+
+        // The connection holds the first frame; sending never waits on it
+        long start = System.nanoTime();
+        session.sendMessage(frame("/topic/Document/d0", 0));
+        await(() -> slow.sent.size() == 1);
+        for (int i = 1; i < 8; i++) {
+            session.sendMessage(frame("/topic/Document/d" + (i % 2), i));
+        }
+        // A reply meant for the session alone is kept even though the queue is full
+        session.sendMessage(frame("/user/queue/sync-users1", 99));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "sending blocked on a slow connection");
+
+        assertEquals(1, queues.stats().get("sessionsBehind"));
+        assertTrue(notices.isEmpty());
+
+        release.countDown();
+        await(() -> notices.size() == 1);
+        // First frame was already on the wire; the three queued behind it were dropped with the four after
+        assertEquals(List.of("0", "99"), slow.bodies());
+        assertEquals("s1", notices.get(0)[0]);
+        assertEquals(OutboundQueues.RESYNC_DESTINATION, notices.get(0)[1]);
+        Map<?, ?> notice = (Map<?, ?>) notices.get(0)[2];
+        assertEquals(List.of("d0", "d1"), notice.get("documentIds"));
+        assertEquals(7L, notice.get("dropped"));
+
+        // Caught up: broadcasts flow again
+        session.sendMessage(frame("/topic/Document/d0", 100));
+        await(() -> slow.sent.size() == 3);
+        assertEquals(7L, queues.stats().get("droppedMessages"));
+        assertEquals(1L, queues.stats().get("resyncNotices"));
+        assertEquals(0, queues.stats().get("sessionsBehind"));
+        assertEquals(0L, queues.stats().get("queuedMessages"));
+    }
+
+    @Test
+    void testOtherSessionsAreUnaffected() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        Connection slow = new Connection("slow", never);
+        Connection fast = new Connection("fast", null);
+        WebSocketSession slowSession = connect(slow);
+        WebSocketSession fastSession = connect(fast);
+        slowSession.sendMessage(frame("/topic/Document/d1", 0));
+        await(() -> slow.sent.size() == 1);
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) slowSession.sendMessage(frame("/topic/Document/d1", i));
+            fastSession.sendMessage(frame("/topic/Document/d1", i));
+            int written = i + 1;
+            await(() -> fast.sent.size() == written);
+        }
+
+        // One frame on the wire, the three queued behind it dropped along with the six after
+        Map<String, Object> stats = queues.stats();
+        assertEquals(1, stats.get("sessionsBehind"));
+        assertEquals(0, stats.get("deepestQueue"));
+        assertEquals(9L, stats.get("droppedMessages"));
+        never.countDown();
+    }
+
+    @Test
+    void testConnectionStuckPastTheTimeLimitIsClosed() throws Exception {
+        OutboundQueues strict = new OutboundQueues(() -> recorder(notices), 3, 1 << 20, 50);
+        CountDownLatch never = new CountDownLatch(1);
+        Connection stuck = new Connection("s1", never);
+        WebSocketSession session = connect(strict, stuck);
+        session.sendMessage(frame("/topic/Document/d1", 0));
+        await(() -> stuck.sent.size() == 1);
+        Thread.sleep(100);
+
+        session.sendMessage(frame("/topic/Document/d1", 1));
+
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE, stuck.closed);
+        never.countDown();
+        strict.close();
+    }
+
+    @Test
+    void testDisconnectedSessionIsForgotten() throws Exception {
+        Connection connection = new Connection("s1", null);
+        WebSocketHandler handler = queues.decorate(handler(new WebSocketSession[1]));
+        handler.afterConnectionEstablished(connection.session());
+        assertEquals(1, queues.stats().get("sessions"));
+
+        handler.afterConnectionClosed(connection.session(), CloseStatus.NORMAL);
+
+        assertEquals(0, queues.stats().get("sessions"));
+    }
+
+    @Test
+    void testOnlyTopicMessagesAreBroadcasts() {
+        assertEquals("/topic/Document/d1", OutboundQueues.broadcastDestination(frame("/topic/Document/d1", 1)));
+        assertEquals("/topic/Document/d1", OutboundQueues.broadcastDestination(
+                new BinaryMessage(frame("/topic/Document/d1", 1).getPayload().getBytes(StandardCharsets.UTF_8))));
+        assertNull(OutboundQueues.broadcastDestination(frame("/user/queue/resync", 1)));
+        assertNull(OutboundQueues.broadcastDestination(new TextMessage("CONNECTED\nversion:1.2\n\n\0")));
+        assertNull(OutboundQueues.broadcastDestination(new TextMessage("\n")));
+    }
+
+    private WebSocketSession connect(Connection connection) throws Exception {
+        return connect(queues, connection);
+    }
+
+    // The session the STOMP handler would be given, and so send through
+    private static WebSocketSession connect(OutboundQueues queues, Connection connection) throws Exception {
+        WebSocketSession[] given = new WebSocketSession[1];
+        queues.decorate(handler(given)).afterConnectionEstablished(connection.session());
+        return given[0];
+    }
+
+    private static TextMessage frame(String destination, int body) {
+        return new TextMessage("MESSAGE\ndestination:" + destination + "\nsubscription:sub-0\nmessage-id:" + body
+                + "\ncontent-length:" + String.valueOf(body).length() + "\n\n" + body + "\0");
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    // A WebSocket connection that records what is written to it, holding the first write until released
+    private static final class Connection {
+        private final String id;
+        private final CountDownLatch release;
+        private final List<WebSocketMessage<?>> sent = new CopyOnWriteArrayList<>();
+        private volatile CloseStatus closed;
+        private WebSocketSession session;
+
+        Connection(String id, CountDownLatch release) {
+            this.id = id;
+            this.release = release;
+        }
+
+        WebSocketSession session() {
+            if (session == null) {
+                session = (WebSocketSession) Proxy.newProxyInstance(OutboundQueuesTest.class.getClassLoader(),
+                        new Class<?>[] { WebSocketSession.class }, (proxy, method, args) -> switch (method.getName()) {
+                            case "getId" -> id;
+                            case "isOpen" -> closed == null;
+                            case "sendMessage" -> {
+                                sent.add((WebSocketMessage<?>) args[0]);
+                                if (release != null) release.await();
+                                yield null;
+                            }
+                            case "close" -> {
+                                closed = args == null ? CloseStatus.NORMAL : (CloseStatus) args[0];
+                                yield null;
+                            }
+                            case "toString" -> "Connection " + id;
+                            default -> null;
+                        });
+            }
+            return session;
+        }
+
+        List<String> bodies() {
+            return sent.stream().map(message -> {
+                String frame = (String) message.getPayload();
+                return frame.substring(frame.indexOf("\n\n") + 2, frame.length() - 1);
+            }).toList();
+        }
+    }
+
+    private static WebSocketHandler handler(WebSocketSession[] given) {
+        return (WebSocketHandler) Proxy.newProxyInstance(OutboundQueuesTest.class.getClassLoader(),
+                new Class<?>[] { WebSocketHandler.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("afterConnectionEstablished")) given[0] = (WebSocketSession) args[0];
+                    return method.getReturnType() == boolean.class ? false : null;
+                });
+    }
+
+    // Records convertAndSendToUser calls as { user, destination, payload }
+    private static SimpMessageSendingOperations recorder(List<Object[]> calls) {
+        return (SimpMessageSendingOperations) Proxy.newProxyInstance(OutboundQueuesTest.class.getClassLoader(),
+                new Class<?>[] { SimpMessageSendingOperations.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("convertAndSendToUser")) {
+                        calls.add(new Object[] { args[0], args[1], args[2] });
+                    }
+                    return null;
+                });
+    }
+}